@@ -1,14 +1,12 @@
 package gr.iti.mklab.visual.aggregation;
 
-import gr.iti.mklab.visual.utilities.Result;
+import gr.iti.mklab.visual.utilities.TopKCollector;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 
-import com.aliasi.util.BoundedPriorityQueue;
-
 /**
  * All methods which aggregate a set of local image descriptors should extend this abstract class.
  * 
@@ -184,22 +182,23 @@ public abstract class AbstractFeatureAggregator {
 
 	/**
 	 * Returns the indices of the k centroids which are closer to the given descriptor. Can be used for soft
-	 * quantization. Fast implementation with a bounded priority queue. TO DO: early stopping!
+	 * quantization. Fast implementation with a {@link TopKCollector} and early stopping of the distance
+	 * computations.
 	 * 
 	 * @param descriptor
 	 * @param k
 	 * @return
 	 */
 	protected int[] computeKNearestCentroids(double[] descriptor, int k) {
-		BoundedPriorityQueue<Result> bpq = new BoundedPriorityQueue<Result>(new Result(), k);
+		TopKCollector nn = new TopKCollector(k);
 
-		double minDistance = Double.MAX_VALUE;
 		for (int i = 0; i < numCentroids; i++) {
+			double threshold = nn.threshold();
 			double distance = 0;
 			boolean skip = false;
 			for (int j = 0; j < descriptorLength; j++) {
 				distance += (codebook[i][j] - descriptor[j]) * (codebook[i][j] - descriptor[j]);
-				if (distance > minDistance) {
+				if (distance > threshold) {
 					skip = true;
 					break;
 				}
@@ -207,16 +206,14 @@ public abstract class AbstractFeatureAggregator {
 			if (skip) {
 				continue;
 			}
-			bpq.offer(new Result(i, distance));
-			if (i >= k) {
-				minDistance = bpq.last().getDistance();
-			}
+			nn.offer(i, distance);
 		}
-		int[] nn = new int[k];
+		nn.sort();
+		int[] indices = new int[k];
 		for (int i = 0; i < k; i++) {
-			nn[i] = bpq.poll().getId();
+			indices[i] = nn.getId(i);
 		}
-		return nn;
+		return indices;
 	}
 
 	/**
@@ -0,0 +1,87 @@
+package gr.iti.mklab.visual.datastructures;
+
+/**
+ * All methods that assign vectors to the nearest centroids of the coarse quantizer of an {@link IVFPQ} index
+ * should extend this abstract class. The assigner is used both at indexing time (to find the list of a new
+ * vector) and at query time (to find the lists that will be visited).
+ * 
+ * @author Eleftherios Spyromitros-Xioufis
+ * 
+ */
+public abstract class AbstractCoarseAssigner {
+
+	/**
+	 * The centroids of the coarse quantizer. Each centroid is stored in a different row.
+	 */
+	protected final double[][] centroids;
+
+	/**
+	 * The number of centroids of the coarse quantizer.
+	 */
+	protected final int numCentroids;
+
+	/**
+	 * The dimensionality of the centroids.
+	 */
+	protected final int vectorLength;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param centroids
+	 *            The centroids of the coarse quantizer
+	 */
+	protected AbstractCoarseAssigner(double[][] centroids) {
+		this.centroids = centroids;
+		this.numCentroids = centroids.length;
+		this.vectorLength = centroids[0].length;
+	}
+
+	/**
+	 * Returns the index of the centroid which is closer to the given vector.
+	 * 
+	 * @param vector
+	 *            The vector
+	 * @return The index of the nearest centroid
+	 */
+	public int computeNearestIndex(double[] vector) {
+		return computeNearestIndices(vector, 1, null)[0];
+	}
+
+	/**
+	 * Returns the indices of the k centroids which are closer to the given vector, ordered by increasing
+	 * distance, and optionally their squared distances from the vector.
+	 * 
+	 * @param vector
+	 *            The vector
+	 * @param k
+	 *            The number of nearest centroids to return
+	 * @param distances
+	 *            If not null, the squared distances of the k nearest centroids are written here
+	 * @return The indices of the k nearest centroids
+	 */
+	public abstract int[] computeNearestIndices(double[] vector, int k, double[] distances);
+
+	/**
+	 * Returns the squared Euclidean distance between the given vector and the centroid with the given index.
+	 * 
+	 * @param vector
+	 *            The vector
+	 * @param centroidIndex
+	 *            The index of the centroid
+	 * @return The squared distance
+	 */
+	protected double computeDistance(double[] vector, int centroidIndex) {
+		double[] centroid = centroids[centroidIndex];
+		double distance = 0;
+		for (int i = 0; i < vectorLength; i++) {
+			distance += (centroid[i] - vector[i]) * (centroid[i] - vector[i]);
+		}
+		return distance;
+	}
+
+	public double[][] getCentroids() {
+		return centroids;
+	}
+
+}
@@ -3,16 +3,28 @@ package gr.iti.mklab.visual.datastructures;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.aliasi.util.BoundedPriorityQueue;
 import com.javadocmd.simplelatlng.LatLng;
 import com.sleepycat.bind.tuple.IntegerBinding;
 import com.sleepycat.bind.tuple.StringBinding;
 import com.sleepycat.bind.tuple.TupleBinding;
 import com.sleepycat.bind.tuple.TupleInput;
 import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
@@ -22,14 +34,16 @@ import com.sleepycat.je.EnvironmentNotFoundException;
 import com.sleepycat.je.ForwardCursor;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
 import com.sleepycat.persist.EntityStore;
 import com.sleepycat.persist.PrimaryIndex;
 import com.sleepycat.persist.StoreConfig;
 
 import gr.iti.mklab.visual.utilities.Answer;
+import gr.iti.mklab.visual.utilities.AnswerCache;
 import gr.iti.mklab.visual.utilities.AnswerWithGeolocation;
 import gr.iti.mklab.visual.utilities.MetaDataEntity;
-import gr.iti.mklab.visual.utilities.Result;
+import gr.iti.mklab.visual.utilities.TopKCollector;
 
 /**
  * This class abstracts operations related to persistence and id lookup from the actual indexing structures.
@@ -60,9 +74,12 @@ public abstract class AbstractSearchStructure {
 	protected int vectorLength;
 
 	/**
-	 * Keeps track of the total number of indexed vectors, acts as an auto-increment primary key field.
+	 * Keeps track of the total number of indexed vectors, acts as an auto-increment primary key field. It is
+	 * volatile and incremented only after a new vector has been appended to the in-memory index, so that
+	 * searches that run concurrently with indexing and read it once at their start see a consistent prefix of
+	 * the index without locking.
 	 */
-	protected int loadCounter;
+	protected volatile int loadCounter;
 
 	/**
 	 * Whether the index will be loaded in memory. We can avoid loading the index in memory when we only want
@@ -104,6 +121,25 @@ public abstract class AbstractSearchStructure {
 	 */
 	protected Database iidToIdDB;
 
+	/**
+	 * BDB store holding the iids of the deleted vectors (with empty data), see {@link #deleteVector(String)}.
+	 * Null if the index is read-only and has no deletions.
+	 */
+	protected Database tombstonesDB;
+
+	/**
+	 * A bitset over iids where the bits of the deleted vectors are set, or null if no vector has been
+	 * deleted, so that scans can skip the check entirely (see {@link #isDeleted(long[], int)}). It is
+	 * allocated once for maxNumVectors iids. Bits are only set while holding the lock of the index and the
+	 * field is re-assigned after each change, so that scans that read it once see all previous deletions.
+	 */
+	protected volatile long[] tombstones;
+
+	/**
+	 * The number of deleted vectors.
+	 */
+	protected volatile int numDeleted;
+
 	/**
 	 * BDB store holding iid to longitude-latitude mappings, required for geolocation look-up during nn
 	 * search.
@@ -115,6 +151,13 @@ public abstract class AbstractSearchStructure {
 	 */
 	protected EntityStore iidToMetadataDB;
 
+	/**
+	 * An optional in-memory columnar store of geolocations and other attributes. When it holds
+	 * geolocations, the results of each query are decorated from its arrays instead of
+	 * {@link #iidToGeolocationDB}.
+	 */
+	private volatile ColumnarMetadataStore metadataStore;
+
 	/**
 	 * Average time taken for internal vector indexing operations.
 	 */
@@ -130,6 +173,151 @@ public abstract class AbstractSearchStructure {
 	 */
 	private long totalVectorIndexingTime;
 
+	/**
+	 * The next internal id to be reserved by {@link #reserveInternalId(String)}. When vectors are indexed
+	 * concurrently, internal ids are reserved ahead of {@link #loadCounter}, which only counts the vectors
+	 * whose indexing has completed (see {@link #publishInternalId(int, String, long, long, long)}).
+	 */
+	private final AtomicInteger nextInternalId = new AtomicInteger();
+
+	/**
+	 * The ids of the vectors that have reserved an internal id but have not been published yet.
+	 */
+	private final ConcurrentHashMap<String, Boolean> pendingIds = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * The monitor used by indexing threads to publish their internal ids in order.
+	 */
+	private final Object publicationLock = new Object();
+
+	/**
+	 * The smallest reserved internal id whose indexing failed (see {@link #abortInternalIds(int, String[])})
+	 * or Integer.MAX_VALUE if there is none. Since internal ids are published in order, the ids reserved
+	 * after it can never be published, so no more vectors are indexed until the index is reopened.
+	 */
+	private volatile int firstAbortedIid = Integer.MAX_VALUE;
+
+	/**
+	 * The fork-join pool used by the structures that support intra-query parallelism. It is shared by all
+	 * structures and created on first use with a parallelism equal to the number of available processors.
+	 */
+	private static ForkJoinPool searchPool;
+
+	/**
+	 * The number of threads used for loading the persistent index in memory. The internal id range is split
+	 * in this many partitions that are read concurrently, so the loaded index is the same as with a single
+	 * thread. Loading takes place in the constructors of the structures, so this is set through their
+	 * advanced constructors. When 1, the index is loaded with a single cursor walk.
+	 */
+	protected int numLoadThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The number of threads used for encoding the vectors of a batch during bulk indexing (see
+	 * {@link #indexVectors(String[], double[][])}), one per available processor by default.
+	 */
+	private volatile int numIndexingThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * An optional cache of the answers of recent queries (see {@link #setAnswerCache(int)}). Null when
+	 * caching is disabled.
+	 */
+	protected volatile AnswerCache answerCache;
+
+	/**
+	 * The number of changes of the search settings, see {@link #searchSettingsChanged()}.
+	 */
+	private final AtomicInteger searchSettingsVersion = new AtomicInteger();
+
+	/**
+	 * Enables caching of the answers of the given number of most recently used queries, or disables caching
+	 * if the given capacity is 0. Answers are cached per query id or (single precision) query vector and k,
+	 * and are invalidated as soon as new vectors are indexed or a search setting of the index (e.g. the w of
+	 * an {@link IVFPQ} index) is changed (see {@link #searchSettingsChanged()}).
+	 * 
+	 * @param capacity
+	 *            The maximum number of cached answers
+	 */
+	public void setAnswerCache(int capacity) {
+		answerCache = capacity > 0 ? new AnswerCache(capacity) : null;
+	}
+
+	/**
+	 * Returns the answer cache, which exposes hit/miss statistics, or null if caching is disabled.
+	 * 
+	 * @return
+	 */
+	public AnswerCache getAnswerCache() {
+		return answerCache;
+	}
+
+	/**
+	 * Should be called by the setters of the search settings that change the answers of the queries (e.g. the
+	 * w of an {@link IVFPQ} index), after the setting is changed. The cached answers are cleared and, since
+	 * the version of the settings is part of the cache keys (see {@link #getSearchSettingsVersion()}), the
+	 * answers of the queries that are still running with the old settings are never returned from the cache.
+	 */
+	protected void searchSettingsChanged() {
+		searchSettingsVersion.incrementAndGet();
+		AnswerCache cache = answerCache;
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of changes of the search settings (see {@link #searchSettingsChanged()}), which is
+	 * part of the keys of the cached answers. Should be read before the settings are used by a query.
+	 * 
+	 * @return
+	 */
+	protected int getSearchSettingsVersion() {
+		return searchSettingsVersion.get();
+	}
+
+	/**
+	 * Sets the number of threads used for encoding the vectors of a batch during bulk indexing (see
+	 * {@link #indexVectors(String[], double[][])}).
+	 * 
+	 * @param numIndexingThreads
+	 * @throws Exception
+	 *             If the given number of threads is not positive
+	 */
+	public void setNumIndexingThreads(int numIndexingThreads) throws Exception {
+		if (numIndexingThreads < 1) {
+			throw new Exception("The number of indexing threads should be positive!");
+		}
+		this.numIndexingThreads = numIndexingThreads;
+	}
+
+	public int getNumIndexingThreads() {
+		return numIndexingThreads;
+	}
+
+	/**
+	 * Sets the columnar store used to decorate the results with geolocations (see {@link #lookUp}) and to
+	 * create attribute filters (e.g. {@link ColumnarMetadataStore#createRangeFilter(String, double, double)}).
+	 * The store is indexed by internal id, so it should cover {@link #maxNumVectors} internal ids.
+	 * 
+	 * @param metadataStore
+	 *            The store or null to remove it
+	 * @throws Exception
+	 *             If the store does not cover all internal ids
+	 */
+	public void setMetadataStore(ColumnarMetadataStore metadataStore) throws Exception {
+		if (metadataStore != null && metadataStore.getCapacity() < maxNumVectors) {
+			throw new Exception("The metadata store should cover " + maxNumVectors + " internal ids!");
+		}
+		this.metadataStore = metadataStore;
+		AnswerCache cache = answerCache;
+		if (cache != null) {
+			cache.clear(); // cached answers may lack geolocations
+		}
+	}
+
+	public ColumnarMetadataStore getMetadataStore() {
+		return metadataStore;
+	}
+
 	/**
 	 * Whether to create/load geolocation db.
 	 */
@@ -228,6 +416,7 @@ public abstract class AbstractSearchStructure {
 	 */
 	public synchronized boolean indexVector(String id, double[] vector) throws Exception {
 		long startIndexing = System.currentTimeMillis();
+		checkIndexingNotAborted();
 		// check if we can index more vectors
 		if (loadCounter >= maxNumVectors) {
 			System.out.println("Maximum index capacity reached, no more vectors can be indexed!");
@@ -266,10 +455,566 @@ public abstract class AbstractSearchStructure {
 	 */
 	protected abstract void indexVectorInternal(double[] vector) throws Exception;
 
+	/**
+	 * Reserves the next internal id for the vector with the given id, so that structures that support
+	 * concurrent indexing can append the vector without holding the lock of the index. The reservation fails
+	 * if the index is full or if the id is already indexed or being indexed by another thread. Every
+	 * successful reservation should be followed by a call to
+	 * {@link #publishInternalId(int, String, long, long, long)} once the vector is appended, or by a call to
+	 * {@link #abortInternalIds(int, String[])} if indexing fails, otherwise the vectors reserved later will
+	 * never be published.
+	 * 
+	 * @param id
+	 *            The id of the vector
+	 * @return The reserved internal id or -1 if the vector cannot be indexed
+	 */
+	protected int reserveInternalId(String id) {
+		if (firstAbortedIid != Integer.MAX_VALUE) {
+			System.out.println("Indexing of internal id " + firstAbortedIid
+					+ " failed, no more vectors can be indexed!");
+			return -1;
+		}
+		// check if name is already indexed or being indexed
+		if (pendingIds.putIfAbsent(id, Boolean.TRUE) != null) {
+			System.out.println("Vector '" + id + "' already indexed!");
+			return -1;
+		}
+		if (isIndexed(id)) {
+			pendingIds.remove(id);
+			System.out.println("Vector '" + id + "' already indexed!");
+			return -1;
+		}
+		int iid = reserveInternalIds(1);
+		// check if we can index more vectors
+		if (iid >= maxNumVectors) {
+			pendingIds.remove(id);
+			System.out.println("Maximum index capacity reached, no more vectors can be indexed!");
+			return -1;
+		}
+		return iid;
+	}
+
+	/**
+	 * Atomically reserves up to count consecutive internal ids, fewer if the index capacity is reached.
+	 * 
+	 * @param count
+	 *            The number of internal ids to reserve
+	 * @return The first reserved internal id. The number of reserved ids is min(count, maxNumVectors - first)
+	 *         (none if the index is full).
+	 */
+	private int reserveInternalIds(int count) {
+		while (true) {
+			int first = nextInternalId.get();
+			int published = loadCounter;
+			if (first < published) { // the loadCounter was set when the index was loaded
+				nextInternalId.compareAndSet(first, published);
+				continue;
+			}
+			int granted = Math.max(Math.min(count, maxNumVectors - first), 0);
+			if (nextInternalId.compareAndSet(first, first + granted)) {
+				return first;
+			}
+		}
+	}
+
+	/**
+	 * Publishes an internal id reserved with {@link #reserveInternalId(String)} after the vector has been
+	 * appended to the index, by advancing the {@link #loadCounter}. Internal ids are published in the order
+	 * they were reserved, so the calling thread waits until all the smaller internal ids have been
+	 * published. Since only this short step is serialized, the vectors can be encoded and appended in
+	 * parallel.
+	 * 
+	 * @param iid
+	 *            The reserved internal id
+	 * @param id
+	 *            The id of the vector
+	 * @param startIndexing
+	 *            The time when indexing of the vector started
+	 * @param idMappingTime
+	 *            The time taken to create the id mappings of the vector
+	 * @param internalIndexingTime
+	 *            The time taken by the method specific indexing operations
+	 * @return True if the internal id was published, false if it was aborted because indexing of a smaller
+	 *         internal id failed
+	 */
+	protected boolean publishInternalId(int iid, String id, long startIndexing, long idMappingTime,
+			long internalIndexingTime) {
+		if (!publishInternalIds(iid, 1, startIndexing, idMappingTime, internalIndexingTime)) {
+			abortInternalIds(iid, new String[] { id });
+			return false;
+		}
+		pendingIds.remove(id);
+		if (loadCounter % 100 == 0) { // debug message (may be skipped when indexing concurrently)
+			System.out.println(new Date() + " # indexed vectors: " + loadCounter);
+		}
+		return true;
+	}
+
+	/**
+	 * Publishes count consecutive internal ids starting from firstIid, waiting until all the smaller internal
+	 * ids have been published. Gives up (without publishing) if indexing of a smaller internal id fails.
+	 * 
+	 * @return True if the internal ids were published
+	 */
+	private boolean publishInternalIds(int firstIid, int count, long startIndexing, long idMappingTime,
+			long internalIndexingTime) {
+		boolean interrupted = false;
+		synchronized (publicationLock) {
+			while (loadCounter != firstIid) {
+				if (firstAbortedIid < firstIid) { // the smaller internal ids will never be published
+					return false;
+				}
+				try {
+					publicationLock.wait();
+				} catch (InterruptedException e) {
+					interrupted = true; // the ids must be published anyway
+				}
+			}
+			totalIdMappingTime += idMappingTime;
+			totalInternalVectorIndexingTime += internalIndexingTime;
+			loadCounter = firstIid + count; // increase the loadCounter
+			totalVectorIndexingTime += System.currentTimeMillis() - startIndexing;
+			publicationLock.notifyAll();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return true;
+	}
+
+	/**
+	 * Gives up count consecutive reserved internal ids starting from firstIid (one for each of the given
+	 * ids) instead of publishing them, after indexing their vectors failed. The internal ids reserved later
+	 * can no longer be published either, so the threads waiting to publish them give up as well and no more
+	 * vectors are indexed until the index is reopened. The id mappings and the records of the given ids are
+	 * removed (see {@link #deleteRecordsInternal(int, int)}) and their internal ids are marked as deleted, so
+	 * that a partly appended vector is never returned by a search. The internal ids are marked only in
+	 * memory, since they were never published and will be reserved again when the index is reopened.
+	 * 
+	 * @param firstIid
+	 *            The first reserved internal id
+	 * @param ids
+	 *            The ids of the vectors
+	 */
+	protected void abortInternalIds(int firstIid, String[] ids) {
+		synchronized (publicationLock) {
+			if (firstIid < firstAbortedIid) {
+				firstAbortedIid = firstIid;
+			}
+			publicationLock.notifyAll(); // wake up the threads waiting to publish larger internal ids
+		}
+		System.out.println("Indexing of internal ids " + firstIid + " to " + (firstIid + ids.length - 1)
+				+ " failed, no more vectors can be indexed!");
+		synchronized (this) {
+			for (int i = 0; i < ids.length; i++) {
+				int iid = firstIid + i;
+				try {
+					DatabaseEntry key = new DatabaseEntry();
+					IntegerBinding.intToEntry(iid, key);
+					DatabaseEntry idKey = new DatabaseEntry();
+					StringBinding.stringToEntry(ids[i], idKey);
+					iidToIdDB.delete(null, key);
+					idToIidDB.delete(null, idKey);
+				} catch (RuntimeException e) { // the failure may be caused by the persistent store itself
+					System.out.println("Could not remove internal id " + iid + " from the persistent store: "
+							+ e);
+				}
+				markDeleted(iid);
+				pendingIds.remove(ids[i]);
+			}
+			try {
+				deleteRecordsInternal(firstIid, ids.length);
+			} catch (Exception e) {
+				System.out.println("Could not remove the records of internal ids " + firstIid + " to "
+						+ (firstIid + ids.length - 1) + " from the persistent store: " + e);
+			}
+		}
+	}
+
+	/**
+	 * This method should be implemented in all subclasses and delete the structure specific persistent
+	 * records (if any were written) of count consecutive internal ids starting from firstIid, whose indexing
+	 * failed (see {@link #abortInternalIds(int, String[])}).
+	 * 
+	 * @param firstIid
+	 *            The first internal id
+	 * @param count
+	 *            The number of internal ids
+	 * @throws Exception
+	 */
+	protected abstract void deleteRecordsInternal(int firstIid, int count) throws Exception;
+
+	/**
+	 * Deletes the records of the given database with internal ids in [fromIid, toIid), if they exist.
+	 * 
+	 * @param db
+	 *            A database whose keys are internal ids
+	 * @param fromIid
+	 *            The first internal id (inclusive)
+	 * @param toIid
+	 *            The last internal id (exclusive)
+	 */
+	protected static void deleteRecords(Database db, int fromIid, int toIid) {
+		DatabaseEntry key = new DatabaseEntry();
+		for (int iid = fromIid; iid < toIid; iid++) {
+			IntegerBinding.intToEntry(iid, key);
+			db.delete(null, key);
+		}
+	}
+
+	/**
+	 * Throws an exception if indexing of a reserved internal id has failed (see
+	 * {@link #abortInternalIds(int, String[])}), since no more vectors can be indexed in that case.
+	 * 
+	 * @throws Exception
+	 */
+	protected void checkIndexingNotAborted() throws Exception {
+		if (firstAbortedIid != Integer.MAX_VALUE) {
+			throw new Exception("Indexing of internal id " + firstAbortedIid
+					+ " failed, the index should be reopened before indexing more vectors!");
+		}
+	}
+
+	/**
+	 * Updates the index with the given batch of vectors. This is much faster than calling
+	 * {@link #indexVector(String, double[])} for each vector, because the per-vector overhead is removed:
+	 * <ul>
+	 * <li>The ids are deduplicated in one pass (ids that are already indexed or repeated in the batch are
+	 * skipped) and a contiguous range of internal ids is reserved for the whole batch.</li>
+	 * <li>The vectors are encoded in parallel by {@link #numIndexingThreads} threads and appended to the
+	 * index in groups (see {@link #indexVectorsInternal(int, double[][], Transaction)}).</li>
+	 * <li>All BDB records of the batch are written in internal id order, within a single transaction if the
+	 * environment is transactional.</li>
+	 * <li>One progress line is printed per batch.</li>
+	 * </ul>
+	 * This is a synchronized method, like {@link #indexVector(String, double[])}. Batches of a few thousand
+	 * vectors are recommended, see also {@link #indexVectors(Iterator, int)}. If indexing of the batch
+	 * fails, its internal ids are given up (see {@link #abortInternalIds(int, String[])}) and no more vectors
+	 * can be indexed until the index is reopened. The records of the batch are rolled back with the
+	 * transaction or, if the environment is not transactional, deleted.
+	 * 
+	 * @param ids
+	 *            The ids of the vectors
+	 * @param vectors
+	 *            The vectors
+	 * @return The number of vectors that were indexed
+	 * @throws Exception
+	 */
+	public synchronized int indexVectors(String[] ids, double[][] vectors) throws Exception {
+		long startIndexing = System.currentTimeMillis();
+		checkIndexingNotAborted();
+		if (ids.length != vectors.length) {
+			throw new Exception("The number of ids is different from the number of vectors!");
+		}
+		for (double[] vector : vectors) {
+			if (vector.length != vectorLength) {
+				throw new Exception("The dimensionality of the vector is wrong!");
+			}
+		}
+		// deduplicate the ids in one pass, against the index and within the batch
+		int numAccepted = 0;
+		String[] acceptedIds = new String[ids.length];
+		double[][] acceptedVectors = new double[ids.length][];
+		for (int i = 0; i < ids.length; i++) {
+			if (pendingIds.putIfAbsent(ids[i], Boolean.TRUE) != null) {
+				continue;
+			}
+			if (isIndexed(ids[i])) {
+				pendingIds.remove(ids[i]);
+				continue;
+			}
+			acceptedIds[numAccepted] = ids[i];
+			acceptedVectors[numAccepted] = vectors[i];
+			numAccepted++;
+		}
+		int firstIid = reserveInternalIds(numAccepted);
+		int numReserved = Math.max(Math.min(numAccepted, maxNumVectors - firstIid), 0);
+		for (int i = numReserved; i < numAccepted; i++) {
+			pendingIds.remove(acceptedIds[i]);
+		}
+		if (numReserved < numAccepted) {
+			System.out.println("Maximum index capacity reached, no more vectors can be indexed!");
+		}
+		if (numReserved == 0) {
+			return 0;
+		}
+		acceptedIds = Arrays.copyOf(acceptedIds, numReserved);
+		acceptedVectors = Arrays.copyOf(acceptedVectors, numReserved);
+
+		long idMappingTime = 0;
+		long internalIndexingTime = 0;
+		boolean indexed = false;
+		Transaction txn = transactional ? dbEnv.beginTransaction(null, null) : null;
+		try {
+			// persist id to name and the reverse mappings
+			long startMapping = System.currentTimeMillis();
+			for (int i = 0; i < numReserved; i++) {
+				createMapping(acceptedIds[i], firstIid + i, txn);
+			}
+			idMappingTime = System.currentTimeMillis() - startMapping;
+			// method specific indexing
+			long startInternalIndexing = System.currentTimeMillis();
+			indexVectorsInternal(firstIid, acceptedVectors, txn);
+			internalIndexingTime = System.currentTimeMillis() - startInternalIndexing;
+			if (txn != null) {
+				txn.commit();
+				txn = null;
+			}
+			indexed = true;
+		} finally {
+			if (txn != null) {
+				txn.abort();
+			}
+			if (!indexed) { // undo the mappings and stop indexing, the later ids cannot be published
+				abortInternalIds(firstIid, acceptedIds);
+			}
+		}
+		if (!publishInternalIds(firstIid, numReserved, startIndexing, idMappingTime, internalIndexingTime)) {
+			abortInternalIds(firstIid, acceptedIds);
+			throw new Exception("Indexing of a previous vector failed, the batch was not indexed!");
+		}
+		for (String id : acceptedIds) {
+			pendingIds.remove(id);
+		}
+		System.out.println(new Date() + " # indexed vectors: " + loadCounter + " (batch of " + ids.length
+				+ ": " + numReserved + " indexed in " + (System.currentTimeMillis() - startIndexing)
+				+ " ms)");
+		return numReserved;
+	}
+
+	/**
+	 * Updates the index with the vectors given by the iterator (as id to vector entries), calling
+	 * {@link #indexVectors(String[], double[][])} for every batchSize vectors. Useful for streaming a large
+	 * collection (e.g. the vectors of another index) without holding it in memory.
+	 * 
+	 * @param vectors
+	 *            An iterator over the ids and vectors to be indexed
+	 * @param batchSize
+	 *            The number of vectors in each batch
+	 * @return The number of vectors that were indexed
+	 * @throws Exception
+	 */
+	public int indexVectors(Iterator<Map.Entry<String, double[]>> vectors, int batchSize) throws Exception {
+		int numIndexed = 0;
+		List<String> batchIds = new ArrayList<String>(batchSize);
+		List<double[]> batchVectors = new ArrayList<double[]>(batchSize);
+		while (vectors.hasNext()) {
+			Map.Entry<String, double[]> entry = vectors.next();
+			batchIds.add(entry.getKey());
+			batchVectors.add(entry.getValue());
+			if (batchIds.size() == batchSize || !vectors.hasNext()) {
+				numIndexed += indexVectors(batchIds.toArray(new String[batchIds.size()]),
+						batchVectors.toArray(new double[batchVectors.size()][]));
+				batchIds.clear();
+				batchVectors.clear();
+			}
+		}
+		return numIndexed;
+	}
+
+	/**
+	 * This method should be implemented in all subclasses and do the operations required for indexing the
+	 * given batch of vectors, which have been assigned the consecutive internal ids starting from firstIid.
+	 * The id mappings have already been created and the {@link #loadCounter} is advanced when this method
+	 * returns. Implementations should encode the vectors in parallel (see
+	 * {@link #processInParallel(int, VectorTask)}) and write the persistent records within the given
+	 * transaction.
+	 * 
+	 * @param firstIid
+	 *            The internal id of the first vector
+	 * @param vectors
+	 *            The vectors to be indexed
+	 * @param txn
+	 *            The transaction of the batch or null if the environment is not transactional
+	 * @throws Exception
+	 */
+	protected abstract void indexVectorsInternal(int firstIid, double[][] vectors, Transaction txn)
+			throws Exception;
+
+	/**
+	 * Processes the vectors 0..numVectors-1 of a batch by calling the given task for each of them. The range
+	 * is split in {@link #numIndexingThreads} contiguous partitions that are processed concurrently.
+	 * 
+	 * @param numVectors
+	 *            The number of vectors
+	 * @param task
+	 *            The task
+	 * @throws Exception
+	 */
+	protected void processInParallel(int numVectors, final VectorTask task) throws Exception {
+		int numPartitions = Math.max(Math.min(numIndexingThreads, numVectors), 1);
+		if (numPartitions == 1) {
+			for (int i = 0; i < numVectors; i++) {
+				task.process(i);
+			}
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(numPartitions);
+		List<Future<Object>> partitions = new ArrayList<Future<Object>>();
+		for (int p = 0; p < numPartitions; p++) {
+			final int from = (int) ((long) numVectors * p / numPartitions);
+			final int to = (int) ((long) numVectors * (p + 1) / numPartitions);
+			partitions.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					for (int i = from; i < to; i++) {
+						task.process(i);
+					}
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<Object> partition : partitions) {
+				partition.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Deletes the vector with the given id from the index. The vector is marked as deleted in a tombstone
+	 * bitset over iids (which is also persisted), so it is no longer returned by any search, and its id can
+	 * be indexed again (with a new iid). The space of the vector is reclaimed by structure specific
+	 * compaction, if supported (see {@link IVFPQ#setCompactionThreshold(double)}).
+	 * 
+	 * @param id
+	 *            The id of the vector
+	 * @return True if the vector was deleted, false if it is not indexed
+	 * @throws Exception
+	 *             If the index is read-only
+	 */
+	public synchronized boolean deleteVector(String id) throws Exception {
+		if (readOnly) {
+			throw new Exception("Cannot delete vectors from a read-only index!");
+		}
+		int iid = getInternalId(id);
+		if (iid == -1) {
+			System.out.println("Vector '" + id + "' is not indexed!");
+			return false;
+		}
+		// persist the tombstone and remove the id to iid mapping, the reverse mapping is kept
+		DatabaseEntry key = new DatabaseEntry();
+		IntegerBinding.intToEntry(iid, key);
+		tombstonesDB.put(null, key, new DatabaseEntry(new byte[0]));
+		DatabaseEntry idKey = new DatabaseEntry();
+		StringBinding.stringToEntry(id, idKey);
+		idToIidDB.delete(null, idKey);
+		markDeleted(iid);
+		deleteVectorInternal(iid);
+		return true;
+	}
+
+	/**
+	 * Sets the bit of the given iid in the tombstone bitset (allocating it on first use) and publishes the
+	 * bitset.
+	 * 
+	 * @param iid
+	 *            The internal id
+	 */
+	private void markDeleted(int iid) {
+		long[] deleted = tombstones;
+		if (deleted == null) {
+			deleted = new long[(maxNumVectors + 63) / 64];
+		}
+		if (isDeleted(deleted, iid)) {
+			return;
+		}
+		deleted[iid >>> 6] |= 1L << iid;
+		numDeleted++;
+		tombstones = deleted; // publish the change
+	}
+
+	/**
+	 * Loads the tombstones of the deleted vectors from the persistent store.
+	 */
+	private void loadTombstones() {
+		DatabaseEntry foundKey = new DatabaseEntry();
+		DatabaseEntry foundData = new DatabaseEntry();
+		Cursor cursor = tombstonesDB.openCursor(null, null);
+		try {
+			while (cursor.getNext(foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+				int iid = IntegerBinding.entryToInt(foundKey);
+				if (iid < maxNumVectors) {
+					markDeleted(iid);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		if (numDeleted > 0) {
+			System.out.println("Deleted vectors: " + numDeleted);
+		}
+	}
+
+	/**
+	 * Structure specific operations after the vector with the given iid has been marked as deleted, e.g.
+	 * scheduling the compaction of its list. Does nothing by default, i.e. deleted vectors keep occupying
+	 * space and are only skipped by the scans.
+	 * 
+	 * @param iid
+	 *            The internal id of the deleted vector
+	 * @throws Exception
+	 */
+	protected void deleteVectorInternal(int iid) throws Exception {
+	}
+
+	/**
+	 * Returns whether the given iid is marked in the given tombstone bitset. Scans should read
+	 * {@link #tombstones} once and check only the candidates that would enter the results, so that the check
+	 * costs nothing when there are no deletions.
+	 * 
+	 * @param tombstones
+	 *            The tombstone bitset or null if there are no deletions
+	 * @param iid
+	 *            The internal id
+	 * @return
+	 */
+	protected static boolean isDeleted(long[] tombstones, int iid) {
+		return tombstones != null && (tombstones[iid >>> 6] & (1L << iid)) != 0;
+	}
+
+	/**
+	 * Returns whether the vector with the given iid has been deleted.
+	 * 
+	 * @param iid
+	 *            The internal id
+	 * @return
+	 */
+	public boolean isDeleted(int iid) {
+		return isDeleted(tombstones, iid);
+	}
+
+	/**
+	 * Returns the number of deleted vectors.
+	 * 
+	 * @return
+	 */
+	public int getNumDeleted() {
+		return numDeleted;
+	}
+
+	/**
+	 * Returns a number that changes whenever vectors are indexed or deleted, used to invalidate the cached
+	 * answers (see {@link AnswerCache}).
+	 * 
+	 * @return
+	 */
+	protected long getIndexVersion() {
+		return ((long) numDeleted << 32) | loadCounter;
+	}
+
 	/**
 	 * This method returns an {@link Answer} object, which contains the k nearest neighbors along with their
 	 * ids and distances from the query vector, ordered by lowest distance. The methods calls
-	 * {@link #computeNearestNeighborsInternal(int, double[])} and then performs name lookup.
+	 * {@link #computeNearestNeighborsInternal(int, double[], IidFilter)} and then performs name lookup. If
+	 * answer caching is enabled (see {@link #setAnswerCache(int)}), a cached answer is returned when
+	 * available.
 	 * 
 	 * @param k
 	 *            The number of nearest neighbors to return
@@ -279,36 +1024,123 @@ public abstract class AbstractSearchStructure {
 	 * @throws Exception
 	 */
 	public Answer computeNearestNeighbors(int k, double[] queryVector) throws Exception {
+		return computeNearestNeighbors(k, queryVector, (IidFilter) null);
+	}
+
+	/**
+	 * This method returns an {@link Answer} object, which contains the k nearest neighbors among the vectors
+	 * accepted by the given filter, along with their ids and distances from the query vector, ordered by
+	 * lowest distance. The filter is applied inside the scan, before distances are computed. Filtered queries
+	 * bypass the answer cache.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to return
+	 * @param queryVector
+	 *            The query vector
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @return The answer
+	 * @throws Exception
+	 */
+	public Answer computeNearestNeighbors(int k, double[] queryVector, IidFilter filter) throws Exception {
 		if (!loadIndexInMemory) {
 			throw new Exception("Cannot execute query because the index is not loaded in memory!");
 		}
+		AnswerCache cache = filter == null ? answerCache : null;
+		AnswerCache.Key key = null;
+		long version = getIndexVersion();
+		if (cache != null) {
+			key = new AnswerCache.Key(queryVector, k, getSearchSettingsVersion());
+			Answer answer = cache.get(key, version);
+			if (answer != null) {
+				return answer;
+			}
+		}
 		long start = System.nanoTime();
-		BoundedPriorityQueue<Result> nnQueue = computeNearestNeighborsInternal(k, queryVector);
+		TopKCollector nn = computeNearestNeighborsInternal(k, queryVector, filter);
 		long indexSearchTime = System.nanoTime() - start;
 
-		return lookUp(nnQueue, indexSearchTime);
+		Answer answer = lookUp(nn, indexSearchTime);
+		if (cache != null) {
+			cache.put(key, version, answer);
+		}
+		return answer;
 
 	}
 
 	/**
-	 * This method returns a bounded priority queue of Result objects, which contains the k nearest neighbors
-	 * along with their iids and distances from the query vector, ordered by lowest distance. Subclasses
+	 * This method returns a {@link TopKCollector}, which contains the k nearest neighbors among the vectors
+	 * accepted by the given filter along with their iids and distances from the query vector. Subclasses
 	 * should implement this method.
 	 * 
 	 * @param k
 	 *            The number of nearest neighbors to return
 	 * @param queryVector
 	 *            The query vector
-	 * @return A bounded priority queue of Result objects
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @return A collector of the k nearest neighbors
+	 * @throws Exception
+	 */
+	protected abstract TopKCollector computeNearestNeighborsInternal(int k, double[] queryVector,
+			IidFilter filter) throws Exception;
+
+	/**
+	 * This method returns one {@link Answer} object per query vector, which contains the k nearest neighbors
+	 * of the query along with their ids and distances from the query, ordered by lowest distance. The method
+	 * calls {@link #computeNearestNeighborsInternal(int, double[][])} and then performs name lookup. The index
+	 * search time of each answer is the search time of the whole batch divided by the number of queries.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to return for each query
+	 * @param queryVectors
+	 *            The query vectors
+	 * @return The answers, in the order of the query vectors
+	 * @throws Exception
+	 */
+	public Answer[] computeNearestNeighbors(int k, double[][] queryVectors) throws Exception {
+		if (!loadIndexInMemory) {
+			throw new Exception("Cannot execute query because the index is not loaded in memory!");
+		}
+		long start = System.nanoTime();
+		TopKCollector[] nns = computeNearestNeighborsInternal(k, queryVectors);
+		long indexSearchTime = (System.nanoTime() - start) / Math.max(queryVectors.length, 1);
+
+		Answer[] answers = new Answer[queryVectors.length];
+		for (int i = 0; i < queryVectors.length; i++) {
+			answers[i] = lookUp(nns[i], indexSearchTime);
+		}
+		return answers;
+	}
+
+	/**
+	 * This method returns one {@link TopKCollector} per query vector, which contains the k nearest neighbors
+	 * of the query along with their iids and distances from the query. By default, each query is processed
+	 * separately with {@link #computeNearestNeighborsInternal(int, double[], IidFilter)}. Subclasses can
+	 * override this
+	 * method to share work among the queries of a batch.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to return for each query
+	 * @param queryVectors
+	 *            The query vectors
+	 * @return One collector of the k nearest neighbors per query
 	 * @throws Exception
 	 */
-	protected abstract BoundedPriorityQueue<Result> computeNearestNeighborsInternal(int k,
-			double[] queryVector) throws Exception;
+	protected TopKCollector[] computeNearestNeighborsInternal(int k, double[][] queryVectors)
+			throws Exception {
+		TopKCollector[] nns = new TopKCollector[queryVectors.length];
+		for (int i = 0; i < queryVectors.length; i++) {
+			nns[i] = computeNearestNeighborsInternal(k, queryVectors[i], null);
+		}
+		return nns;
+	}
 
 	/**
 	 * This method returns an {@link Answer} object, which contains the k nearest neighbors along with their
 	 * ids and distances from the query vector, ordered by lowest distance. The methods calls
-	 * {@link #computeNearestNeighborsInternal(int, int)} and then performs id lookup.
+	 * {@link #computeNearestNeighborsInternal(int, int, IidFilter)} and then performs id lookup. If answer
+	 * caching is enabled (see {@link #setAnswerCache(int)}), a cached answer is returned when available.
 	 * 
 	 * @param k
 	 *            The number of nearest neighbors to return
@@ -318,53 +1150,151 @@ public abstract class AbstractSearchStructure {
 	 * @throws Exception
 	 */
 	public Answer computeNearestNeighbors(int k, String queryId) throws Exception {
+		return computeNearestNeighbors(k, queryId, null);
+	}
+
+	/**
+	 * This method returns an {@link Answer} object, which contains the k nearest neighbors among the vectors
+	 * accepted by the given filter, along with their ids and distances from the vector with the given id,
+	 * ordered by lowest distance. Filtered queries bypass the answer cache.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to return
+	 * @param queryId
+	 *            The id of the query vector
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @return The answer
+	 * @throws Exception
+	 */
+	public Answer computeNearestNeighbors(int k, String queryId, IidFilter filter) throws Exception {
+		AnswerCache cache = filter == null ? answerCache : null;
+		AnswerCache.Key key = null;
+		long version = getIndexVersion();
+		if (cache != null) {
+			key = new AnswerCache.Key(queryId, k, getSearchSettingsVersion());
+			Answer answer = cache.get(key, version);
+			if (answer != null) {
+				return answer;
+			}
+		}
 		int internalIdQuery = getInternalId(queryId);
 
 		long start = System.nanoTime();
-		BoundedPriorityQueue<Result> nnQueue = computeNearestNeighborsInternal(k, internalIdQuery);
+		TopKCollector nn = computeNearestNeighborsInternal(k, internalIdQuery, filter);
 		long indexSearchTime = System.nanoTime() - start;
 
-		return lookUp(nnQueue, indexSearchTime);
+		Answer answer = lookUp(nn, indexSearchTime);
+		if (cache != null) {
+			cache.put(key, version, answer);
+		}
+		return answer;
 	}
 
 	/**
-	 * This method returns a bounded priority queue of Result objects, which contains the k nearest neighbors
-	 * along with their iids and distances from the query vector, ordered by lowest distance. Subclasses
+	 * This method returns a {@link TopKCollector}, which contains the k nearest neighbors among the vectors
+	 * accepted by the given filter along with their iids and distances from the query vector. Subclasses
 	 * should implement this method.
 	 * 
 	 * @param k
 	 *            The number of nearest neighbors to return
 	 * @param iid
 	 *            The internal id of the query vector
-	 * @return A bounded priority queue of Result objects
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @return A collector of the k nearest neighbors
 	 * @throws Exception
 	 */
-	protected abstract BoundedPriorityQueue<Result> computeNearestNeighborsInternal(int k, int iid)
+	protected abstract TopKCollector computeNearestNeighborsInternal(int k, int iid, IidFilter filter)
 			throws Exception;
 
-	private Answer lookUp(BoundedPriorityQueue<Result> nnQueue, long indexSearchTime) {
-		Result[] nn = new Result[nnQueue.size()];
-		nn = nnQueue.toArray(nn);
+	/**
+	 * Returns the smallest internal id in [from, to) that is accepted by the given filter, or to if there is
+	 * none. Scans over contiguous internal ids use this method to visit only the accepted vectors.
+	 * 
+	 * @param filter
+	 *            The filter or null to accept all internal ids
+	 * @param from
+	 *            The first internal id
+	 * @param to
+	 *            The end of the range (exclusive)
+	 * @return
+	 */
+	protected static int nextCandidate(IidFilter filter, int from, int to) {
+		return filter == null ? from : filter.nextAccepted(from, to);
+	}
 
-		String[] ids = new String[nnQueue.size()];
-		double[] distances = new double[nnQueue.size()];
+	/**
+	 * Creates an {@link IidSet} with the internal ids of the given ids, to be used as a search filter. Ids
+	 * that are not indexed are ignored.
+	 * 
+	 * @param ids
+	 *            The ids of the vectors
+	 * @return
+	 */
+	public IidSet createIidSet(Iterable<String> ids) {
+		IidSet set = new IidSet();
+		for (String id : ids) {
+			int iid = getInternalId(id);
+			if (iid >= 0) {
+				set.add(iid);
+			}
+		}
+		return set;
+	}
+
+	/**
+	 * Computes the (squared Euclidean) distances between the given query vector and the indexed vectors with
+	 * the given internal ids, as estimated by this index. Used for re-ranking the candidates returned by a
+	 * coarser index (see {@link IVFPQ#setRerankIndex(AbstractSearchStructure, int)}). By default this
+	 * operation is not supported.
+	 *
+	 * @param queryVector
+	 *            The query vector
+	 * @param iids
+	 *            The internal ids of the indexed vectors
+	 * @return The distances, in the order of the internal ids
+	 * @throws Exception
+	 */
+	public double[] computeDistances(double[] queryVector, int[] iids) throws Exception {
+		throw new Exception("Distance computation by internal id is not supported by this index!");
+	}
+
+	/**
+	 * Sorts the given nearest neighbors and attaches their external ids (and geolocations if they are
+	 * available in the {@link #metadataStore} or {@link #iidToGeolocationDB}) to build the {@link Answer} of
+	 * a query.
+	 * 
+	 * @param nn
+	 *            The nearest neighbors of the query
+	 * @param indexSearchTime
+	 *            The time spent in index search
+	 * @return The answer
+	 */
+	protected Answer lookUp(TopKCollector nn, long indexSearchTime) {
+		nn.sort(); // order the results by lowest distance
+
+		String[] ids = new String[nn.size()];
+		double[] distances = new double[nn.size()];
 
 		long start = System.nanoTime();
-		for (int i = 0; i < nn.length; i++) { // attach external ids to the results
-			distances[i] = nn[i].getDistance();
-			int iid = nn[i].getId();
+		for (int i = 0; i < nn.size(); i++) { // attach external ids to the results
+			distances[i] = nn.getDistance(i);
+			int iid = nn.getId(i);
 			ids[i] = getId(iid);
 		}
 		long nameLookUpTime = System.nanoTime() - start;
 
-		if (!useMetaData) {
+		ColumnarMetadataStore store = metadataStore;
+		boolean columnarGeolocations = store != null && store.hasGeolocations();
+		if (!columnarGeolocations && !useGeolocation) {
 			return new Answer(ids, distances, nameLookUpTime, indexSearchTime);
 		} else {
 			start = System.nanoTime();
-			LatLng[] geolocations = new LatLng[nn.length];
-			for (int i = 0; i < nn.length; i++) { // attach external ids to the results
-				int iid = nn[i].getId();
-				geolocations[i] = getGeolocation(iid);
+			LatLng[] geolocations = new LatLng[nn.size()];
+			for (int i = 0; i < nn.size(); i++) { // attach geolocations to the results
+				int iid = nn.getId(i);
+				geolocations[i] = columnarGeolocations ? store.getGeolocation(iid) : getGeolocation(iid);
 			}
 			long geolocationLookupTime = System.nanoTime() - start;
 			return new AnswerWithGeolocation(ids, distances, geolocations, nameLookUpTime, indexSearchTime,
@@ -420,7 +1350,8 @@ public abstract class AbstractSearchStructure {
 
 	/**
 	 * Returns a {@link LatLng} object with the geolocation of the vector with the given internal id or null
-	 * if the internal id does not exist. Accesses the BDB store!
+	 * if the internal id does not exist. Reads the {@link #metadataStore} if it holds geolocations, otherwise
+	 * accesses the BDB store!
 	 * 
 	 * @param iid
 	 *            The internal id of the vector
@@ -431,6 +1362,10 @@ public abstract class AbstractSearchStructure {
 			System.out.println("Internal id " + iid + " is out of range!");
 			return null;
 		}
+		ColumnarMetadataStore store = metadataStore;
+		if ((store != null && store.hasGeolocations()) || !useGeolocation) {
+			return store != null ? store.getGeolocation(iid) : null;
+		}
 		DatabaseEntry key = new DatabaseEntry();
 		IntegerBinding.intToEntry(iid, key);
 		DatabaseEntry data = new DatabaseEntry();
@@ -466,7 +1401,8 @@ public abstract class AbstractSearchStructure {
 
 	/**
 	 * This method is used to set the geolocation of a previously indexed vector. If the geolocation is
-	 * already set, this method replaces it.
+	 * already set, this method replaces it. The geolocation is set in the {@link #metadataStore} (if any) and
+	 * in the BDB store (if used).
 	 * 
 	 * @param iid
 	 *            The internal id of the vector
@@ -479,6 +1415,13 @@ public abstract class AbstractSearchStructure {
 			System.out.println("Internal id " + iid + " is out of range!");
 			return false;
 		}
+		ColumnarMetadataStore store = metadataStore;
+		if (store != null && !store.setGeolocation(iid, latitude, longitude)) {
+			return false;
+		}
+		if (!useGeolocation) {
+			return store != null;
+		}
 		DatabaseEntry key = new DatabaseEntry();
 		DatabaseEntry data = new DatabaseEntry();
 
@@ -553,12 +1496,27 @@ public abstract class AbstractSearchStructure {
 	 *            The id
 	 */
 	protected void createMapping(String id) {
+		createMapping(id, loadCounter, null);
+	}
+
+	/**
+	 * This method is used to create a persistent mapping between the given id and the given internal id
+	 * (reserved with {@link #reserveInternalId(String)}).
+	 * 
+	 * @param id
+	 *            The id
+	 * @param iid
+	 *            The internal id
+	 * @param txn
+	 *            The transaction or null
+	 */
+	protected void createMapping(String id, int iid, Transaction txn) {
 		DatabaseEntry key = new DatabaseEntry();
 		DatabaseEntry data = new DatabaseEntry();
-		IntegerBinding.intToEntry(loadCounter, key);
+		IntegerBinding.intToEntry(iid, key);
 		StringBinding.stringToEntry(id, data);
-		iidToIdDB.put(null, key, data); // required during name look-up
-		idToIidDB.put(null, data, key); // required during indexing
+		iidToIdDB.put(txn, key, data); // required during name look-up
+		idToIidDB.put(txn, data, key); // required during indexing
 	}
 
 	/**
@@ -586,6 +1544,11 @@ public abstract class AbstractSearchStructure {
 
 		idToIidDB = dbEnv.openDatabase(null, "nameToId", dbConfig);
 
+		if (!readOnly || dbEnv.getDatabaseNames().contains("tombstones")) {
+			tombstonesDB = dbEnv.openDatabase(null, "tombstones", dbConfig);
+			loadTombstones();
+		}
+
 		if (useGeolocation) {// create/open geolocation db using config
 			iidToGeolocationDB = dbEnv.openDatabase(null, "idToGeolocation", dbConfig);
 		}
@@ -712,6 +1675,205 @@ public abstract class AbstractSearchStructure {
 		return loadCounter;
 	}
 
+	/**
+	 * Returns the fork-join pool that is shared by all structures for intra-query parallelism.
+	 * 
+	 * @return
+	 */
+	public static synchronized ForkJoinPool getSearchPool() {
+		if (searchPool == null) {
+			searchPool = new ForkJoinPool();
+		}
+		return searchPool;
+	}
+
+	/**
+	 * Replaces the fork-join pool that is shared by all structures for intra-query parallelism, e.g. to limit
+	 * the number of cores used by a single query.
+	 * 
+	 * @param pool
+	 */
+	public static synchronized void setSearchPool(ForkJoinPool pool) {
+		searchPool = pool;
+	}
+
+	/**
+	 * Receives the records of a persistent index while it is loaded in memory (see
+	 * {@link AbstractSearchStructure#readRecordsInParallel(Database, int, int, RecordConsumer[])}).
+	 */
+	protected interface RecordConsumer {
+
+		/**
+		 * Called for each record, in increasing internal id order.
+		 * 
+		 * @param iid
+		 *            The internal id (key) of the record
+		 * @param input
+		 *            The data of the record
+		 * @throws Exception
+		 */
+		void consume(int iid, TupleInput input) throws Exception;
+	}
+
+	/**
+	 * Processes a single vector of a batch during bulk indexing (see
+	 * {@link AbstractSearchStructure#processInParallel(int, VectorTask)}).
+	 */
+	protected interface VectorTask {
+
+		/**
+		 * Called once for each vector of the batch, concurrently for different vectors.
+		 * 
+		 * @param index
+		 *            The position of the vector in the batch
+		 * @throws Exception
+		 */
+		void process(int index) throws Exception;
+	}
+
+	/**
+	 * Reads the records of the given database with internal ids in [fromIid, toIid) and passes them to the
+	 * given consumer in increasing internal id order.
+	 * 
+	 * @param db
+	 *            A database whose keys are internal ids
+	 * @param fromIid
+	 *            The first internal id (inclusive)
+	 * @param toIid
+	 *            The last internal id (exclusive)
+	 * @param consumer
+	 *            The consumer
+	 * @return The number of records read
+	 * @throws Exception
+	 */
+	protected static int readRecords(Database db, int fromIid, int toIid, RecordConsumer consumer)
+			throws Exception {
+		DatabaseEntry foundKey = new DatabaseEntry();
+		DatabaseEntry foundData = new DatabaseEntry();
+		IntegerBinding.intToEntry(fromIid, foundKey);
+		Cursor cursor = db.openCursor(null, null);
+		int counter = 0;
+		try {
+			OperationStatus status = cursor.getSearchKeyRange(foundKey, foundData, LockMode.DEFAULT);
+			while (status == OperationStatus.SUCCESS) {
+				int iid = IntegerBinding.entryToInt(foundKey);
+				if (iid >= toIid) {
+					break;
+				}
+				consumer.consume(iid, TupleBinding.entryToInput(foundData));
+				counter++;
+				status = cursor.getNext(foundKey, foundData, LockMode.DEFAULT);
+			}
+		} finally {
+			cursor.close();
+		}
+		return counter;
+	}
+
+	/**
+	 * Sets the number of threads used for loading the persistent index in memory (see
+	 * {@link #numLoadThreads}).
+	 * 
+	 * @param numLoadThreads
+	 * @throws Exception
+	 *             If the given number of threads is not positive
+	 */
+	protected void setNumLoadThreads(int numLoadThreads) throws Exception {
+		if (numLoadThreads < 1) {
+			throw new Exception("The number of load threads should be positive!");
+		}
+		this.numLoadThreads = numLoadThreads;
+	}
+
+	/**
+	 * Returns the internal id that follows the largest key of the given database, i.e. the end (exclusive)
+	 * of the range of internal ids stored in it, or 0 if the database is empty.
+	 * 
+	 * @param db
+	 *            A database whose keys are internal ids
+	 * @return
+	 */
+	protected static int getKeyRangeEnd(Database db) {
+		DatabaseEntry foundKey = new DatabaseEntry();
+		DatabaseEntry foundData = new DatabaseEntry();
+		foundData.setPartial(0, 0, true); // only the key is needed
+		Cursor cursor = db.openCursor(null, null);
+		try {
+			if (cursor.getLast(foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+				return IntegerBinding.entryToInt(foundKey) + 1;
+			}
+			return 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the end (exclusive) of the range of internal ids that should be loaded from the given database.
+	 * This is the {@link #loadCounter} if it is known (counted on load or given), since records with larger
+	 * internal ids were never published, otherwise {@link #getKeyRangeEnd(Database)} limited to
+	 * {@link #maxNumVectors}.
+	 * 
+	 * @param db
+	 *            A database whose keys are internal ids
+	 * @return
+	 */
+	protected int getLoadRangeEnd(Database db) {
+		if (countSizeOnLoad || loadCounter > 0) {
+			return loadCounter;
+		}
+		return Math.min(getKeyRangeEnd(db), maxNumVectors);
+	}
+
+	/**
+	 * Splits the internal ids in [fromIid, toIid) evenly in one partition per consumer and reads the
+	 * partitions concurrently, each into its own consumer. The partitions are contiguous and ordered, i.e.
+	 * all internal ids of the 1st consumer are smaller than those of the 2nd consumer, etc. The range is
+	 * typically [fromIid, {@link #getLoadRangeEnd(Database)}).
+	 * 
+	 * @param db
+	 *            A database whose keys are internal ids
+	 * @param fromIid
+	 *            The first internal id to read (inclusive)
+	 * @param toIid
+	 *            The last internal id to read (exclusive)
+	 * @param consumers
+	 *            One consumer per partition
+	 * @return The total number of records read
+	 * @throws Exception
+	 */
+	protected static int readRecordsInParallel(final Database db, int fromIid, int toIid,
+			RecordConsumer[] consumers) throws Exception {
+		int numPartitions = consumers.length;
+		long span = Math.max(toIid - fromIid, 0);
+		ExecutorService executor = Executors.newFixedThreadPool(numPartitions);
+		List<Future<Integer>> partitions = new ArrayList<Future<Integer>>();
+		for (int p = 0; p < numPartitions; p++) {
+			final int from = fromIid + (int) (span * p / numPartitions);
+			final int to = fromIid + (int) (span * (p + 1) / numPartitions);
+			final RecordConsumer consumer = consumers[p];
+			partitions.add(executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					return readRecords(db, from, to, consumer);
+				}
+			}));
+		}
+		int counter = 0;
+		try {
+			for (Future<Integer> partition : partitions) {
+				counter += partition.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		} finally {
+			executor.shutdownNow();
+		}
+		return counter;
+	}
+
 	/**
 	 * This method can be called to output indexing time measurements.
 	 */
@@ -736,6 +1898,9 @@ public abstract class AbstractSearchStructure {
 			// closing dbs
 			iidToIdDB.close();
 			idToIidDB.close();
+			if (tombstonesDB != null) {
+				tombstonesDB.close();
+			}
 			if (useGeolocation) {
 				iidToGeolocationDB.close();
 			}
@@ -0,0 +1,669 @@
+package gr.iti.mklab.visual.datastructures;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.javadocmd.simplelatlng.LatLng;
+
+/**
+ * A column-oriented in-memory store of per-vector attributes, used to decorate the results of a search (see
+ * {@link AbstractSearchStructure#setMetadataStore(ColumnarMetadataStore)}) with array reads instead of one
+ * BDB lookup per result. Each column is a primitive buffer indexed by internal id:
+ * <ul>
+ * <li>the geolocation is held in two float columns (latitude and longitude),</li>
+ * <li>numeric columns (e.g. timestamps) hold doubles,</li>
+ * <li>string columns (e.g. collection names) hold int codes into a per-column dictionary of distinct values.
+ * </li>
+ * </ul>
+ * Missing values are NaN for geolocation and numeric columns and null for string columns. The store can be
+ * written to a file with {@link #save(String)} and opened with {@link #load(String, boolean)} either on the
+ * heap or memory-mapped. A mapped column is copied to the heap the first time it is written. Reads are
+ * lock-free while writes are synchronized, so a value that is set concurrently with a search may or may not
+ * be seen by it.
+ *
+ * @author Eleftherios Spyromitros-Xioufis
+ *
+ */
+public class ColumnarMetadataStore {
+
+	/**
+	 * The first int of a store file (see {@link #save(String)}).
+	 */
+	private static final int MAGIC = 0x434f4c53;
+
+	/**
+	 * The version of the store file format.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The size in bytes of the buffer through which the columns are written and read on the heap, so that
+	 * no full copy of a column is made.
+	 */
+	private static final int CHUNK_BYTES = 1024 * 1024;
+
+	/**
+	 * The number of internal ids covered by each column.
+	 */
+	private final int capacity;
+
+	/**
+	 * The latitudes of the vectors or null if no geolocation has been set.
+	 */
+	private volatile FloatBuffer latitudes;
+
+	/**
+	 * The longitudes of the vectors or null if no geolocation has been set.
+	 */
+	private volatile FloatBuffer longitudes;
+
+	/**
+	 * The numeric columns by name. Columns are only added (by writers), so readers see complete columns.
+	 */
+	private volatile Map<String, NumericColumn> numericColumns = new LinkedHashMap<String, NumericColumn>();
+
+	/**
+	 * The string columns by name. Columns are only added (by writers), so readers see complete columns.
+	 */
+	private volatile Map<String, StringColumn> stringColumns = new LinkedHashMap<String, StringColumn>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *            The number of internal ids covered by each column, typically the maximum number of vectors
+	 *            of the index
+	 */
+	public ColumnarMetadataStore(int capacity) {
+		this.capacity = capacity;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the geolocation of the vector with the given internal id.
+	 *
+	 * @param iid
+	 *            The internal id of the vector
+	 * @param latitude
+	 * @param longitude
+	 * @return true if the geolocation is set, false if the internal id is out of range
+	 */
+	public synchronized boolean setGeolocation(int iid, double latitude, double longitude) {
+		if (!checkRange(iid)) {
+			return false;
+		}
+		if (latitudes == null) {
+			latitudes = newFloatColumn();
+			longitudes = newFloatColumn();
+		}
+		if (latitudes.isReadOnly()) { // mapped
+			latitudes = heapCopy(latitudes);
+			longitudes = heapCopy(longitudes);
+		}
+		latitudes.put(iid, (float) latitude);
+		longitudes.put(iid, (float) longitude);
+		return true;
+	}
+
+	/**
+	 * Returns whether the geolocation of any vector has been set.
+	 *
+	 * @return
+	 */
+	public boolean hasGeolocations() {
+		return latitudes != null;
+	}
+
+	/**
+	 * Returns the geolocation of the vector with the given internal id or null if it is not set.
+	 *
+	 * @param iid
+	 *            The internal id of the vector
+	 * @return
+	 */
+	public LatLng getGeolocation(int iid) {
+		FloatBuffer longitudes = this.longitudes; // published after the latitudes
+		FloatBuffer latitudes = this.latitudes;
+		if (latitudes == null || longitudes == null || iid < 0 || iid >= capacity) {
+			return null;
+		}
+		float latitude = latitudes.get(iid);
+		if (Float.isNaN(latitude)) {
+			return null;
+		}
+		return new LatLng(latitude, longitudes.get(iid));
+	}
+
+	/**
+	 * Sets the value of the given numeric column for the vector with the given internal id, creating the
+	 * column if needed.
+	 *
+	 * @param column
+	 *            The name of the column
+	 * @param iid
+	 *            The internal id of the vector
+	 * @param value
+	 *            The value
+	 * @return true if the value is set, false if the internal id is out of range
+	 */
+	public synchronized boolean setNumeric(String column, int iid, double value) {
+		if (!checkRange(iid)) {
+			return false;
+		}
+		NumericColumn numeric = numericColumns.get(column);
+		if (numeric == null) {
+			double[] values = new double[capacity];
+			Arrays.fill(values, Double.NaN);
+			numeric = new NumericColumn(DoubleBuffer.wrap(values));
+			Map<String, NumericColumn> columns = new LinkedHashMap<String, NumericColumn>(numericColumns);
+			columns.put(column, numeric);
+			numericColumns = columns; // publish the new column
+		}
+		numeric.set(iid, value);
+		return true;
+	}
+
+	/**
+	 * Returns the value of the given numeric column for the vector with the given internal id or NaN if it
+	 * is not set.
+	 *
+	 * @param column
+	 *            The name of the column
+	 * @param iid
+	 *            The internal id of the vector
+	 * @return
+	 */
+	public double getNumeric(String column, int iid) {
+		NumericColumn numeric = numericColumns.get(column);
+		if (numeric == null || iid < 0 || iid >= capacity) {
+			return Double.NaN;
+		}
+		return numeric.values.get(iid);
+	}
+
+	/**
+	 * Sets the value of the given string column for the vector with the given internal id, creating the
+	 * column if needed.
+	 *
+	 * @param column
+	 *            The name of the column
+	 * @param iid
+	 *            The internal id of the vector
+	 * @param value
+	 *            The value or null to clear it
+	 * @return true if the value is set, false if the internal id is out of range
+	 */
+	public synchronized boolean setString(String column, int iid, String value) {
+		if (!checkRange(iid)) {
+			return false;
+		}
+		StringColumn strings = stringColumns.get(column);
+		if (strings == null) {
+			strings = new StringColumn(IntBuffer.wrap(new int[capacity]), new String[0]);
+			Map<String, StringColumn> columns = new LinkedHashMap<String, StringColumn>(stringColumns);
+			columns.put(column, strings);
+			stringColumns = columns; // publish the new column
+		}
+		strings.set(iid, value);
+		return true;
+	}
+
+	/**
+	 * Returns the value of the given string column for the vector with the given internal id or null if it
+	 * is not set.
+	 *
+	 * @param column
+	 *            The name of the column
+	 * @param iid
+	 *            The internal id of the vector
+	 * @return
+	 */
+	public String getString(String column, int iid) {
+		StringColumn strings = stringColumns.get(column);
+		if (strings == null || iid < 0 || iid >= capacity) {
+			return null;
+		}
+		return strings.get(iid);
+	}
+
+	public List<String> getNumericColumnNames() {
+		return new ArrayList<String>(numericColumns.keySet());
+	}
+
+	public List<String> getStringColumnNames() {
+		return new ArrayList<String>(stringColumns.keySet());
+	}
+
+	/**
+	 * Creates a search filter that accepts the vectors whose value in the given numeric column is in [min,
+	 * max], e.g. a time window.
+	 *
+	 * @param column
+	 *            The name of the column
+	 * @param min
+	 *            The minimum value (inclusive)
+	 * @param max
+	 *            The maximum value (inclusive)
+	 * @return
+	 * @throws Exception
+	 *             If the column does not exist
+	 */
+	public IidFilter createRangeFilter(String column, final double min, final double max) throws Exception {
+		final NumericColumn numeric = numericColumns.get(column);
+		if (numeric == null) {
+			throw new Exception("Numeric column " + column + " does not exist!");
+		}
+		return new IidFilter() {
+			public boolean accept(int iid) {
+				if (iid >= capacity) {
+					return false;
+				}
+				double value = numeric.values.get(iid);
+				return value >= min && value <= max;
+			}
+		};
+	}
+
+	/**
+	 * Creates a search filter that accepts the vectors whose value in the given string column equals the
+	 * given value, e.g. the images of a collection. Only the codes of the column are compared.
+	 *
+	 * @param column
+	 *            The name of the column
+	 * @param value
+	 *            The value
+	 * @return
+	 * @throws Exception
+	 *             If the column does not exist
+	 */
+	public IidFilter createEqualityFilter(String column, String value) throws Exception {
+		final StringColumn strings = stringColumns.get(column);
+		if (strings == null) {
+			throw new Exception("String column " + column + " does not exist!");
+		}
+		final int code = strings.codeOf(value); // values added later get new codes that are never matched
+		return new IidFilter() {
+			public boolean accept(int iid) {
+				return iid < capacity && code > 0 && strings.codes.get(iid) == code;
+			}
+		};
+	}
+
+	/**
+	 * Writes the store to the given file. The file consists of:
+	 * <ul>
+	 * <li>a header with the magic number, the version and the length of the column directory (ints),</li>
+	 * <li>the column directory: capacity, whether geolocations exist, the names of the numeric columns and
+	 * the names and dictionaries of the string columns,</li>
+	 * <li>the columns (each capacity values long and aligned to 8 bytes): latitudes and longitudes (floats),
+	 * numeric columns (doubles) and string columns (int codes), in directory order.</li>
+	 * </ul>
+	 *
+	 * @param filename
+	 *            Full path to the store file
+	 * @throws Exception
+	 */
+	public synchronized void save(String filename) throws Exception {
+		long start = System.currentTimeMillis();
+		ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+		DataOutputStream directory = new DataOutputStream(directoryBytes);
+		directory.writeInt(capacity);
+		directory.writeBoolean(latitudes != null);
+		directory.writeInt(numericColumns.size());
+		for (String name : numericColumns.keySet()) {
+			directory.writeUTF(name);
+		}
+		directory.writeInt(stringColumns.size());
+		for (Map.Entry<String, StringColumn> column : stringColumns.entrySet()) {
+			directory.writeUTF(column.getKey());
+			StringColumn strings = column.getValue();
+			directory.writeInt(strings.size);
+			for (int i = 0; i < strings.size; i++) {
+				directory.writeUTF(strings.values[i]);
+			}
+		}
+		directory.close();
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename),
+				1024 * 1024));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(directoryBytes.size());
+		directoryBytes.writeTo(out);
+		pad(out, 3 * 4 + directoryBytes.size());
+		if (latitudes != null) {
+			writeColumn(out, latitudes, 4);
+			writeColumn(out, longitudes, 4);
+		}
+		for (NumericColumn numeric : numericColumns.values()) {
+			writeColumn(out, numeric.values, 8);
+		}
+		for (StringColumn strings : stringColumns.values()) {
+			writeColumn(out, strings.codes, 4);
+		}
+		out.close();
+		System.out.println("Metadata store written in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Opens a store file written by {@link #save(String)}.
+	 *
+	 * @param filename
+	 *            Full path to the store file
+	 * @param map
+	 *            Whether to memory-map the columns instead of reading them on the heap
+	 * @return The store
+	 * @throws Exception
+	 *             If the file is not a store file
+	 */
+	public static ColumnarMetadataStore load(String filename, boolean map) throws Exception {
+		long start = System.currentTimeMillis();
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			if (file.readInt() != MAGIC || file.readInt() != VERSION) {
+				throw new Exception("The file is not a metadata store!");
+			}
+			byte[] directoryBytes = new byte[file.readInt()];
+			file.readFully(directoryBytes);
+			DataInputStream directory = new DataInputStream(new ByteArrayInputStream(directoryBytes));
+			ColumnarMetadataStore store = new ColumnarMetadataStore(directory.readInt());
+			FileChannel channel = file.getChannel();
+			long offset = align(3 * 4 + directoryBytes.length);
+			if (directory.readBoolean()) {
+				FloatBuffer latitudes = map ? mapColumn(channel, offset, store.capacity, 4).asFloatBuffer()
+						: FloatBuffer.allocate(store.capacity);
+				offset = readColumn(channel, offset, latitudes, 4, map);
+				FloatBuffer longitudes = map ? mapColumn(channel, offset, store.capacity, 4).asFloatBuffer()
+						: FloatBuffer.allocate(store.capacity);
+				offset = readColumn(channel, offset, longitudes, 4, map);
+				store.latitudes = latitudes;
+				store.longitudes = longitudes;
+			}
+			int numNumericColumns = directory.readInt();
+			for (int c = 0; c < numNumericColumns; c++) {
+				String name = directory.readUTF();
+				DoubleBuffer values = map ? mapColumn(channel, offset, store.capacity, 8).asDoubleBuffer()
+						: DoubleBuffer.allocate(store.capacity);
+				offset = readColumn(channel, offset, values, 8, map);
+				store.numericColumns.put(name, new NumericColumn(values));
+			}
+			int numStringColumns = directory.readInt();
+			for (int c = 0; c < numStringColumns; c++) {
+				String name = directory.readUTF();
+				int dictionarySize = directory.readInt();
+				String[] dictionary = new String[dictionarySize];
+				for (int i = 0; i < dictionarySize; i++) {
+					dictionary[i] = directory.readUTF();
+				}
+				IntBuffer codes = map ? mapColumn(channel, offset, store.capacity, 4).asIntBuffer()
+						: IntBuffer.allocate(store.capacity);
+				offset = readColumn(channel, offset, codes, 4, map);
+				store.stringColumns.put(name, new StringColumn(codes, dictionary));
+			}
+			System.out.println("Metadata store " + (map ? "mapped" : "loaded") + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			return store;
+		} finally {
+			file.close(); // the mappings remain valid after the channel is closed
+		}
+	}
+
+	/**
+	 * Returns whether the given internal id is covered by the columns, printing a message if not.
+	 */
+	private boolean checkRange(int iid) {
+		if (iid < 0 || iid >= capacity) {
+			System.out.println("Internal id " + iid + " is out of range!");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a new heap float column filled with NaN.
+	 */
+	private FloatBuffer newFloatColumn() {
+		float[] values = new float[capacity];
+		Arrays.fill(values, Float.NaN);
+		return FloatBuffer.wrap(values);
+	}
+
+	/**
+	 * Returns an array-backed copy of the given (mapped or view) column.
+	 */
+	private static FloatBuffer heapCopy(FloatBuffer column) {
+		FloatBuffer source = column.duplicate();
+		source.clear();
+		FloatBuffer heap = FloatBuffer.allocate(source.capacity());
+		heap.put(source);
+		return heap;
+	}
+
+	/**
+	 * Returns an array-backed copy of the given (mapped or view) column.
+	 */
+	private static DoubleBuffer heapCopy(DoubleBuffer column) {
+		DoubleBuffer source = column.duplicate();
+		source.clear();
+		DoubleBuffer heap = DoubleBuffer.allocate(source.capacity());
+		heap.put(source);
+		return heap;
+	}
+
+	/**
+	 * Returns an array-backed copy of the given (mapped or view) column.
+	 */
+	private static IntBuffer heapCopy(IntBuffer column) {
+		IntBuffer source = column.duplicate();
+		source.clear();
+		IntBuffer heap = IntBuffer.allocate(source.capacity());
+		heap.put(source);
+		return heap;
+	}
+
+	/**
+	 * Writes the whole given column (of the given element size in bytes) followed by padding to 8 bytes. The
+	 * column is written in chunks of {@link #CHUNK_BYTES}.
+	 */
+	private static void writeColumn(DataOutputStream out, Buffer column, int elementSize) throws Exception {
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+		int chunkLength = CHUNK_BYTES / elementSize;
+		int capacity = column.capacity();
+		for (int from = 0; from < capacity; from += chunkLength) {
+			int to = Math.min(from + chunkLength, capacity);
+			chunk.clear();
+			if (column instanceof FloatBuffer) {
+				FloatBuffer source = ((FloatBuffer) column).duplicate();
+				source.limit(to);
+				source.position(from);
+				chunk.asFloatBuffer().put(source);
+			} else if (column instanceof DoubleBuffer) {
+				DoubleBuffer source = ((DoubleBuffer) column).duplicate();
+				source.limit(to);
+				source.position(from);
+				chunk.asDoubleBuffer().put(source);
+			} else {
+				IntBuffer source = ((IntBuffer) column).duplicate();
+				source.limit(to);
+				source.position(from);
+				chunk.asIntBuffer().put(source);
+			}
+			out.write(chunk.array(), 0, (to - from) * elementSize);
+		}
+		pad(out, (long) capacity * elementSize);
+	}
+
+	/**
+	 * Maps (read-only) the column of the given capacity and element size at the given offset.
+	 */
+	private static ByteBuffer mapColumn(FileChannel channel, long offset, int capacity, int elementSize)
+			throws Exception {
+		long length = (long) capacity * elementSize;
+		if (length > Integer.MAX_VALUE || offset + length > channel.size()) {
+			throw new Exception("A column of the metadata store is too large or truncated!");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+	}
+
+	/**
+	 * Fills the given heap column (of the given element size in bytes) with the column at the given offset,
+	 * reading it in chunks of {@link #CHUNK_BYTES}, unless the column is mapped (see
+	 * {@link #mapColumn(FileChannel, long, int, int)}).
+	 * 
+	 * @return The offset of the next column
+	 */
+	private static long readColumn(FileChannel channel, long offset, Buffer column, int elementSize,
+			boolean mapped) throws Exception {
+		long length = (long) column.capacity() * elementSize;
+		if (!mapped) {
+			if (offset + length > channel.size()) {
+				throw new Exception("A column of the metadata store is truncated!");
+			}
+			ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+			long position = offset;
+			while (position < offset + length) {
+				chunk.clear();
+				chunk.limit((int) Math.min(CHUNK_BYTES, offset + length - position));
+				while (chunk.hasRemaining()) {
+					if (channel.read(chunk, position + chunk.position()) < 0) {
+						throw new Exception("A column of the metadata store is truncated!");
+					}
+				}
+				chunk.flip();
+				if (column instanceof FloatBuffer) {
+					((FloatBuffer) column).put(chunk.asFloatBuffer());
+				} else if (column instanceof DoubleBuffer) {
+					((DoubleBuffer) column).put(chunk.asDoubleBuffer());
+				} else {
+					((IntBuffer) column).put(chunk.asIntBuffer());
+				}
+				position += chunk.limit();
+			}
+			column.clear();
+		}
+		return align(offset + length);
+	}
+
+	/**
+	 * Writes zeros after a section of the given length so that the next section is aligned to 8 bytes.
+	 */
+	private static void pad(DataOutputStream out, long length) throws Exception {
+		for (long position = length; position < align(length); position++) {
+			out.writeByte(0);
+		}
+	}
+
+	/**
+	 * Returns the given offset rounded up to a multiple of 8.
+	 */
+	private static long align(long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	/**
+	 * A numeric column, copied to the heap when it is first written if it is mapped.
+	 */
+	private static class NumericColumn {
+
+		private volatile DoubleBuffer values;
+
+		private NumericColumn(DoubleBuffer values) {
+			this.values = values;
+		}
+
+		private void set(int iid, double value) {
+			if (values.isReadOnly()) { // mapped
+				values = heapCopy(values);
+			}
+			values.put(iid, value);
+		}
+	}
+
+	/**
+	 * A string column. Each vector holds the code of its value, i.e. its (1-based) position in the
+	 * dictionary of distinct values, or 0 if it has no value. The dictionary is only appended and the codes
+	 * are copied to the heap when they are first written if they are mapped.
+	 */
+	private static class StringColumn {
+
+		private volatile IntBuffer codes;
+
+		/**
+		 * The distinct values of the column in code order. Only the first {@link #size} positions are used.
+		 * The array is published again after each new value is stored, so a reader that reads this field once
+		 * sees all the values stored before it.
+		 */
+		private volatile String[] values;
+
+		private int size;
+
+		/**
+		 * The code of each distinct value.
+		 */
+		private final Map<String, Integer> codeOf = new HashMap<String, Integer>();
+
+		private StringColumn(IntBuffer codes, String[] dictionary) {
+			this.codes = codes;
+			this.values = dictionary;
+			this.size = dictionary.length;
+			for (int i = 0; i < size; i++) {
+				codeOf.put(dictionary[i], i + 1);
+			}
+		}
+
+		private String get(int iid) {
+			String[] dictionary = values; // a single snapshot, read before the code
+			int code = codes.get(iid);
+			// the code of a value stored after the snapshot is outside the snapshot or not yet filled in it
+			return code == 0 || code > dictionary.length ? null : dictionary[code - 1];
+		}
+
+		private synchronized int codeOf(String value) {
+			Integer code = codeOf.get(value);
+			return code == null ? 0 : code;
+		}
+
+		private synchronized void set(int iid, String value) {
+			int code = 0;
+			if (value != null) {
+				Integer existing = codeOf.get(value);
+				if (existing == null) {
+					String[] dictionary = values;
+					if (size == dictionary.length) {
+						dictionary = Arrays.copyOf(dictionary, Math.max(2 * size, 16));
+					}
+					dictionary[size++] = value;
+					values = dictionary; // publish the new value before any code refers to it
+					existing = size;
+					codeOf.put(value, existing);
+				}
+				code = existing;
+			}
+			if (codes.isReadOnly()) { // mapped
+				codes = heapCopy(codes);
+			}
+			codes.put(iid, code);
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+package gr.iti.mklab.visual.datastructures;
+
+import gr.iti.mklab.visual.utilities.TopKCollector;
+
+/**
+ * This class implements exact coarse assignment by comparing the vector with all the centroids of the coarse
+ * quantizer. Partial distance computations are abandoned as soon as they exceed the distance of the current
+ * k-th nearest centroid. This is the default assigner of {@link IVFPQ}.
+ * 
+ * @author Eleftherios Spyromitros-Xioufis
+ * 
+ */
+public class ExhaustiveCoarseAssigner extends AbstractCoarseAssigner {
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param centroids
+	 *            The centroids of the coarse quantizer
+	 */
+	public ExhaustiveCoarseAssigner(double[][] centroids) {
+		super(centroids);
+	}
+
+	@Override
+	public int computeNearestIndex(double[] vector) {
+		int centroidIndex = -1;
+		double minDistance = Double.MAX_VALUE;
+		for (int i = 0; i < numCentroids; i++) {
+			double distance = 0;
+			for (int j = 0; j < vectorLength; j++) {
+				distance += (centroids[i][j] - vector[j]) * (centroids[i][j] - vector[j]);
+				if (distance >= minDistance) {
+					break;
+				}
+			}
+			if (distance < minDistance) {
+				minDistance = distance;
+				centroidIndex = i;
+			}
+		}
+		return centroidIndex;
+	}
+
+	@Override
+	public int[] computeNearestIndices(double[] vector, int k, double[] distances) {
+		TopKCollector nn = new TopKCollector(k);
+
+		for (int i = 0; i < numCentroids; i++) {
+			double threshold = nn.threshold();
+			boolean skip = false;
+			double l2distance = 0;
+			for (int j = 0; j < vectorLength; j++) {
+				l2distance += (centroids[i][j] - vector[j]) * (centroids[i][j] - vector[j]);
+				if (l2distance > threshold) {
+					skip = true;
+					break;
+				}
+			}
+			if (!skip) {
+				nn.offer(i, l2distance);
+			}
+		}
+		nn.sort();
+		int[] indices = new int[k];
+		for (int i = 0; i < k; i++) {
+			indices[i] = nn.getId(i);
+			if (distances != null) {
+				distances[i] = nn.getDistance(i);
+			}
+		}
+		return indices;
+	}
+
+}
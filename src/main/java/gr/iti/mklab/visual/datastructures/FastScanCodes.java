@@ -0,0 +1,269 @@
+package gr.iti.mklab.visual.datastructures;
+
+import java.util.Arrays;
+
+/**
+ * This class stores 4-bit product quantization codes (sub-quantizers with 16 centroids) in a packed, blocked
+ * layout that allows fast approximate scanning with quantized lookup tables ("fast-scan"), as described in:<br>
+ *
+ * <em>André, F., Kermarrec, A. M., & Le Scouarnec, N. (2015). Cache locality is not enough: high-performance nearest neighbor search with product quantization fast scan. Proceedings of the VLDB Endowment, 9(4), 288-299.</em>
+ * <br>
+ * Two consecutive sub-codes are packed in one byte (low nibble = even sub-quantizer, high nibble = odd
+ * sub-quantizer), which halves the memory of each vector compared to byte codes. The vectors are grouped in
+ * blocks of {@link #BLOCK_SIZE} and within each block the bytes are stored sub-quantizer pair major, i.e. the
+ * bytes of the 1st pair of all vectors of the block come first, followed by those of the 2nd pair, etc. A
+ * block is scanned with one small table per pair of sub-quantizers (256 quantized entries), which stays in
+ * L1 cache, giving one table lookup per byte of code.<br>
+ * The codes can be read while a single thread appends them, as long as readers only access positions that
+ * were published by the owner of the codes (see {@link InvertedList}).
+ *
+ * @author Eleftherios Spyromitros-Xioufis
+ *
+ */
+public class FastScanCodes {
+
+	/**
+	 * The number of vectors in each block.
+	 */
+	public static final int BLOCK_SIZE = 32;
+
+	/**
+	 * The number of sub-vectors (= length of each code).
+	 */
+	private final int numSubVectors;
+
+	/**
+	 * The number of pairs of sub-vectors (= bytes per vector).
+	 */
+	private final int numPairs;
+
+	/**
+	 * The packed codes in blocked layout. Replaced by a larger copy when full, so readers should read it once
+	 * per operation.
+	 */
+	private volatile byte[] codes;
+
+	/**
+	 * The number of vectors stored.
+	 */
+	private int size;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param numSubVectors
+	 *            The number of sub-vectors (= length of each code)
+	 * @param initialCapacity
+	 *            The initial capacity (in number of vectors)
+	 */
+	public FastScanCodes(int numSubVectors, int initialCapacity) {
+		this.numSubVectors = numSubVectors;
+		this.numPairs = (numSubVectors + 1) / 2;
+		int numBlocks = Math.max((initialCapacity + BLOCK_SIZE - 1) / BLOCK_SIZE, 1);
+		codes = new byte[numBlocks * numPairs * BLOCK_SIZE];
+	}
+
+	/**
+	 * Appends the given code, given in the byte representation used by {@link PQ} and {@link IVFPQ} (each
+	 * centroid index minus 128).
+	 *
+	 * @param code
+	 *            The code of the vector
+	 */
+	public void add(byte[] code) {
+		ensureCapacity(size + 1);
+		byte[] codes = this.codes;
+		int offset = blockOffset(size);
+		for (int p = 0; p < numPairs; p++) {
+			int low = code[2 * p] + 128;
+			int high = 2 * p + 1 < numSubVectors ? code[2 * p + 1] + 128 : 0;
+			codes[offset + p * BLOCK_SIZE] = (byte) (low | (high << 4));
+		}
+		size++;
+	}
+
+	/**
+	 * Returns the centroid index of the given sub-vector of the vector at the given position.
+	 *
+	 * @param index
+	 *            The position of the vector
+	 * @param subVector
+	 *            The index of the sub-vector
+	 * @return
+	 */
+	public int getCode(int index, int subVector) {
+		int b = codes[blockOffset(index) + (subVector / 2) * BLOCK_SIZE] & 0xFF;
+		return subVector % 2 == 0 ? b & 0x0F : b >>> 4;
+	}
+
+	/**
+	 * Returns the code of the vector at the given position in the byte representation used by {@link PQ} and
+	 * {@link IVFPQ}.
+	 *
+	 * @param index
+	 *            The position of the vector
+	 * @return
+	 */
+	public byte[] getByteCode(int index) {
+		byte[] code = new byte[numSubVectors];
+		for (int m = 0; m < numSubVectors; m++) {
+			code[m] = (byte) (getCode(index, m) - 128);
+		}
+		return code;
+	}
+
+	/**
+	 * Computes the (exact) ADC distance of the vector at the given position using the given lookup table.
+	 *
+	 * @param lookUpTable
+	 *            A numSubVectors x 16 lookup table
+	 * @param index
+	 *            The position of the vector
+	 * @return
+	 */
+	public double computeDistance(double[][] lookUpTable, int index) {
+		byte[] codes = this.codes;
+		int offset = blockOffset(index);
+		double l2distance = 0;
+		for (int p = 0; p < numPairs; p++) {
+			int b = codes[offset + p * BLOCK_SIZE] & 0xFF;
+			l2distance += lookUpTable[2 * p][b & 0x0F];
+			if (2 * p + 1 < numSubVectors) {
+				l2distance += lookUpTable[2 * p + 1][b >>> 4];
+			}
+		}
+		return l2distance;
+	}
+
+	/**
+	 * Computes the quantized distances of all the vectors of the given block. Positions of the block beyond
+	 * {@link #size()} get meaningless values.
+	 *
+	 * @param table
+	 *            The quantized lookup table
+	 * @param block
+	 *            The index of the block
+	 * @param distances
+	 *            An array of length {@link #BLOCK_SIZE} where the quantized distances are written
+	 */
+	public void scanBlock(QuantizedLookupTable table, int block, int[] distances) {
+		Arrays.fill(distances, 0);
+		byte[] codes = this.codes;
+		int blockStart = block * numPairs * BLOCK_SIZE;
+		for (int p = 0; p < numPairs; p++) {
+			short[] pairTable = table.pairTables[p];
+			int offset = blockStart + p * BLOCK_SIZE;
+			for (int v = 0; v < BLOCK_SIZE; v++) {
+				distances[v] += pairTable[codes[offset + v] & 0xFF];
+			}
+		}
+	}
+
+	/**
+	 * Returns the position of the 1st byte of the vector at the given position.
+	 */
+	private int blockOffset(int index) {
+		return (index / BLOCK_SIZE) * numPairs * BLOCK_SIZE + index % BLOCK_SIZE;
+	}
+
+	/**
+	 * Grows the backing array (at least doubling it) so that it can hold the given number of vectors.
+	 */
+	private void ensureCapacity(int minCapacity) {
+		int capacity = codes.length / numPairs;
+		if (minCapacity <= capacity) {
+			return;
+		}
+		int numBlocks = (Math.max(minCapacity, capacity * 2) + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		codes = Arrays.copyOf(codes, numBlocks * numPairs * BLOCK_SIZE);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Quantizes the given numSubVectors x 16 lookup table to 8 bits per entry and combines the tables of
+	 * each pair of sub-quantizers into a single table of 256 entries indexed by the packed byte.
+	 *
+	 * @param lookUpTable
+	 *            The lookup table
+	 * @return
+	 */
+	public static QuantizedLookupTable quantize(double[][] lookUpTable) {
+		return new QuantizedLookupTable(lookUpTable);
+	}
+
+	/**
+	 * A lookup table quantized to 8 bits per entry. Each entry d of the table of sub-quantizer m is replaced
+	 * by q = round((d - min_m) / delta), where min_m is the smallest entry of the table of sub-quantizer m and
+	 * delta is common to all sub-quantizers. The exact distance of a vector is thus within
+	 * (numSubVectors/2)*delta of bias + delta*(sum of its quantized entries), which allows discarding
+	 * vectors using only their quantized distance without missing any of the true nearest neighbors.
+	 */
+	public static class QuantizedLookupTable {
+
+		private final short[][] pairTables;
+
+		private final double delta;
+
+		private final double bias;
+
+		/**
+		 * The maximum error of a quantized distance, in quantization steps (with a small safety margin).
+		 */
+		private final double maxError;
+
+		private QuantizedLookupTable(double[][] lookUpTable) {
+			int numSubVectors = lookUpTable.length;
+			double[] mins = new double[numSubVectors];
+			double maxRange = 0;
+			double totalMin = 0;
+			for (int m = 0; m < numSubVectors; m++) {
+				double min = Double.MAX_VALUE;
+				double max = -Double.MAX_VALUE;
+				for (int j = 0; j < lookUpTable[m].length; j++) {
+					min = Math.min(min, lookUpTable[m][j]);
+					max = Math.max(max, lookUpTable[m][j]);
+				}
+				mins[m] = min;
+				totalMin += min;
+				maxRange = Math.max(maxRange, max - min);
+			}
+			delta = maxRange > 0 ? maxRange / 255 : 1;
+			bias = totalMin;
+			maxError = numSubVectors / 2.0 + 1;
+
+			int numPairs = (numSubVectors + 1) / 2;
+			pairTables = new short[numPairs][256];
+			for (int p = 0; p < numPairs; p++) {
+				for (int b = 0; b < 256; b++) {
+					int m = 2 * p;
+					int q = (int) Math.round((lookUpTable[m][b & 0x0F] - mins[m]) / delta);
+					if (m + 1 < numSubVectors) {
+						q += (int) Math.round((lookUpTable[m + 1][b >>> 4] - mins[m + 1]) / delta);
+					}
+					pairTables[p][b] = (short) q;
+				}
+			}
+		}
+
+		/**
+		 * Returns the largest quantized distance that a vector can have if its exact distance is not larger
+		 * than the given distance.
+		 *
+		 * @param distance
+		 *            An exact distance
+		 * @return
+		 */
+		public int threshold(double distance) {
+			double steps = (distance - bias) / delta + maxError;
+			if (steps >= Integer.MAX_VALUE) {
+				return Integer.MAX_VALUE;
+			}
+			return (int) Math.floor(steps);
+		}
+
+	}
+
+}
@@ -0,0 +1,367 @@
+package gr.iti.mklab.visual.datastructures;
+
+import gr.iti.mklab.visual.utilities.Result;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * This class implements approximate coarse assignment using a Hierarchical Navigable Small World (HNSW)
+ * graph built over the centroids of the coarse quantizer, as described in:<br>
+ *
+ * <em>Malkov, Y. A., & Yashunin, D. A. (2016). Efficient and robust approximate nearest neighbor search using Hierarchical Navigable Small World graphs. arXiv:1603.09320.</em>
+ * <br>
+ * The cost of an assignment grows roughly logarithmically with the number of centroids instead of linearly,
+ * which allows using coarse quantizers with tens of thousands of centroids. The graph is built once when the
+ * assigner is constructed, which requires in the order of numCentroids*efConstruction distance computations.
+ *
+ * @author Eleftherios Spyromitros-Xioufis
+ *
+ */
+public class HNSWCoarseAssigner extends AbstractCoarseAssigner {
+
+	/**
+	 * The maximum number of neighbors of each node in the upper layers of the graph (M). Nodes of layer 0 can
+	 * have up to 2*M neighbors.
+	 */
+	private final int maxNeighbors;
+
+	/**
+	 * The size of the dynamic candidate list used when inserting a node in the graph.
+	 */
+	private final int efConstruction;
+
+	/**
+	 * The size of the dynamic candidate list used at search time. Larger values give more accurate
+	 * assignments at a higher cost. The actual size used is max(efSearch, k).
+	 */
+	private int efSearch;
+
+	/**
+	 * The adjacency lists of the graph. links[i][l] holds the neighbors of node i at layer l (only the first
+	 * numLinks[i][l] positions are valid).
+	 */
+	private final int[][][] links;
+
+	/**
+	 * The number of neighbors of each node at each layer.
+	 */
+	private final int[][] numLinks;
+
+	/**
+	 * The entry point of the graph (a node of the top layer).
+	 */
+	private int entryPoint;
+
+	/**
+	 * The top layer of the graph.
+	 */
+	private int maxLevel;
+
+	/**
+	 * The visited marks used by {@link #searchLayer(double[], int, double, int, int)}, one array per thread,
+	 * so that no array of numCentroids elements is allocated per call.
+	 */
+	private final ThreadLocal<VisitedMarks> visitedMarks = new ThreadLocal<VisitedMarks>() {
+		@Override
+		protected VisitedMarks initialValue() {
+			return new VisitedMarks(numCentroids);
+		}
+	};
+
+	/**
+	 * Marks of the nodes visited by a layer search. A node has been visited by the current search if its mark
+	 * equals the epoch of the search, so the marks never need to be cleared between searches.
+	 */
+	private static class VisitedMarks {
+
+		private final int[] marks;
+
+		private int epoch;
+
+		VisitedMarks(int numNodes) {
+			marks = new int[numNodes];
+		}
+
+		/**
+		 * Starts a new search, in which no node has been visited yet.
+		 */
+		void reset() {
+			if (epoch == Integer.MAX_VALUE) {
+				Arrays.fill(marks, 0);
+				epoch = 0;
+			}
+			epoch++;
+		}
+
+		/**
+		 * Marks the given node as visited and returns whether it was already visited by the current search.
+		 */
+		boolean visit(int node) {
+			if (marks[node] == epoch) {
+				return true;
+			}
+			marks[node] = epoch;
+			return false;
+		}
+	}
+
+	/**
+	 * Constructor with default parameters (M=16, efConstruction=100, efSearch=64).
+	 *
+	 * @param centroids
+	 *            The centroids of the coarse quantizer
+	 */
+	public HNSWCoarseAssigner(double[][] centroids) {
+		this(centroids, 16, 100, 64, 1);
+	}
+
+	/**
+	 * Constructor. Builds the graph over the given centroids.
+	 *
+	 * @param centroids
+	 *            The centroids of the coarse quantizer
+	 * @param maxNeighbors
+	 *            The maximum number of neighbors per node in the upper layers (M)
+	 * @param efConstruction
+	 *            The size of the dynamic candidate list used during construction
+	 * @param efSearch
+	 *            The size of the dynamic candidate list used during search
+	 * @param seed
+	 *            The seed used for drawing the layer of each node
+	 */
+	public HNSWCoarseAssigner(double[][] centroids, int maxNeighbors, int efConstruction, int efSearch,
+			int seed) {
+		super(centroids);
+		this.maxNeighbors = maxNeighbors;
+		this.efConstruction = efConstruction;
+		this.efSearch = efSearch;
+		this.links = new int[numCentroids][][];
+		this.numLinks = new int[numCentroids][];
+
+		long start = System.currentTimeMillis();
+		Random rand = new Random(seed);
+		double levelMultiplier = 1 / Math.log(maxNeighbors);
+		for (int i = 0; i < numCentroids; i++) {
+			int level = (int) (-Math.log(1 - rand.nextDouble()) * levelMultiplier);
+			insert(i, level);
+		}
+		System.out.println("HNSW graph over " + numCentroids + " coarse centroids built in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	public void setEfSearch(int efSearch) {
+		this.efSearch = efSearch;
+	}
+
+	/**
+	 * Inserts the given node in the graph at the given layer and all layers below it.
+	 *
+	 * @param node
+	 *            The index of the centroid
+	 * @param level
+	 *            The top layer of the node
+	 */
+	private void insert(int node, int level) {
+		links[node] = new int[level + 1][];
+		numLinks[node] = new int[level + 1];
+		for (int l = 0; l <= level; l++) {
+			links[node][l] = new int[maxLinks(l)];
+		}
+		if (node == 0) { // the first node becomes the entry point
+			entryPoint = 0;
+			maxLevel = level;
+			return;
+		}
+
+		double[] vector = centroids[node];
+		int ep = entryPoint;
+		double epDistance = computeDistance(vector, ep);
+		// greedy descent through the layers above the top layer of the new node
+		for (int l = maxLevel; l > level; l--) {
+			Result nearest = searchLayerGreedy(vector, ep, epDistance, l);
+			ep = nearest.getId();
+			epDistance = nearest.getDistance();
+		}
+		for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+			Result[] candidates = sortAscending(searchLayer(vector, ep, epDistance, efConstruction, l));
+			int[] selected = selectNeighbors(node, candidates, maxNeighbors);
+			System.arraycopy(selected, 0, links[node][l], 0, selected.length);
+			numLinks[node][l] = selected.length;
+			for (int neighbor : selected) { // add the reverse links, shrinking the lists that overflow
+				addLink(neighbor, node, l);
+			}
+			ep = candidates[0].getId();
+			epDistance = candidates[0].getDistance();
+		}
+		if (level > maxLevel) {
+			maxLevel = level;
+			entryPoint = node;
+		}
+	}
+
+	/**
+	 * Adds a link from the given node to the given neighbor at the given layer. If the node already has the
+	 * maximum number of neighbors, its neighbors are re-selected with the heuristic of
+	 * {@link #selectNeighbors(int, Result[], int)}.
+	 */
+	private void addLink(int node, int neighbor, int level) {
+		int count = numLinks[node][level];
+		if (count < links[node][level].length) {
+			links[node][level][count] = neighbor;
+			numLinks[node][level]++;
+			return;
+		}
+		Result[] candidates = new Result[count + 1];
+		double[] vector = centroids[node];
+		for (int i = 0; i < count; i++) {
+			int existing = links[node][level][i];
+			candidates[i] = new Result(existing, computeDistance(vector, existing));
+		}
+		candidates[count] = new Result(neighbor, computeDistance(vector, neighbor));
+		Arrays.sort(candidates, Collections.reverseOrder(new Result()));
+		int[] selected = selectNeighbors(node, candidates, links[node][level].length);
+		System.arraycopy(selected, 0, links[node][level], 0, selected.length);
+		numLinks[node][level] = selected.length;
+	}
+
+	/**
+	 * Selects up to maxSelected neighbors among the given candidates (sorted by increasing distance from the
+	 * base node) using the heuristic of the HNSW paper: a candidate is kept only if it is closer to the base
+	 * node than to any of the already selected neighbors. This favors links in diverse directions and keeps
+	 * the graph navigable for clustered data.
+	 */
+	private int[] selectNeighbors(int node, Result[] candidates, int maxSelected) {
+		int[] selected = new int[Math.min(maxSelected, candidates.length)];
+		int numSelected = 0;
+		for (int i = 0; i < candidates.length && numSelected < selected.length; i++) {
+			int candidate = candidates[i].getId();
+			if (candidate == node) {
+				continue;
+			}
+			boolean keep = true;
+			for (int j = 0; j < numSelected; j++) {
+				if (computeDistance(centroids[candidate], selected[j]) < candidates[i].getDistance()) {
+					keep = false;
+					break;
+				}
+			}
+			if (keep) {
+				selected[numSelected++] = candidate;
+			}
+		}
+		return Arrays.copyOf(selected, numSelected);
+	}
+
+	/**
+	 * Greedily moves from the given entry point to the neighbor that is closest to the vector, until no
+	 * neighbor is closer. Used in the upper layers of the graph.
+	 */
+	private Result searchLayerGreedy(double[] vector, int ep, double epDistance, int level) {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			int[] neighbors = links[ep][level];
+			int count = numLinks[ep][level];
+			for (int i = 0; i < count; i++) {
+				double distance = computeDistance(vector, neighbors[i]);
+				if (distance < epDistance) {
+					epDistance = distance;
+					ep = neighbors[i];
+					changed = true;
+				}
+			}
+		}
+		return new Result(ep, epDistance);
+	}
+
+	/**
+	 * Searches the given layer starting from the given entry point and returns (at most) the ef nodes that
+	 * are closest to the vector, in a queue whose head is the farthest of them.
+	 */
+	private PriorityQueue<Result> searchLayer(double[] vector, int ep, double epDistance, int ef, int level) {
+		VisitedMarks visited = visitedMarks.get();
+		visited.reset();
+		// candidates to expand, nearest first
+		PriorityQueue<Result> candidates = new PriorityQueue<Result>(ef, Collections.reverseOrder(new Result()));
+		// nearest nodes found so far, farthest first
+		PriorityQueue<Result> nearest = new PriorityQueue<Result>(ef + 1, new Result());
+		Result start = new Result(ep, epDistance);
+		candidates.add(start);
+		nearest.add(start);
+		visited.visit(ep);
+		while (!candidates.isEmpty()) {
+			Result candidate = candidates.poll();
+			if (candidate.getDistance() > nearest.peek().getDistance()) {
+				break; // all remaining candidates are farther than the farthest nearest node
+			}
+			int[] neighbors = links[candidate.getId()][level];
+			int count = numLinks[candidate.getId()][level];
+			for (int i = 0; i < count; i++) {
+				int neighbor = neighbors[i];
+				if (visited.visit(neighbor)) {
+					continue;
+				}
+				double distance = computeDistance(vector, neighbor);
+				if (nearest.size() < ef || distance < nearest.peek().getDistance()) {
+					Result result = new Result(neighbor, distance);
+					candidates.add(result);
+					nearest.add(result);
+					if (nearest.size() > ef) {
+						nearest.poll();
+					}
+				}
+			}
+		}
+		return nearest;
+	}
+
+	@Override
+	public int[] computeNearestIndices(double[] vector, int k, double[] distances) {
+		if (k >= numCentroids) { // the graph cannot be more efficient than an exhaustive search
+			return new ExhaustiveCoarseAssigner(centroids).computeNearestIndices(vector, k, distances);
+		}
+		int ep = entryPoint;
+		double epDistance = computeDistance(vector, ep);
+		for (int l = maxLevel; l > 0; l--) {
+			Result nearest = searchLayerGreedy(vector, ep, epDistance, l);
+			ep = nearest.getId();
+			epDistance = nearest.getDistance();
+		}
+		PriorityQueue<Result> nearest = searchLayer(vector, ep, epDistance, Math.max(efSearch, k), 0);
+		if (nearest.size() < k) { // should not happen in a connected graph
+			return new ExhaustiveCoarseAssigner(centroids).computeNearestIndices(vector, k, distances);
+		}
+		while (nearest.size() > k) {
+			nearest.poll();
+		}
+		int[] nn = new int[k];
+		for (int i = k - 1; i >= 0; i--) { // the farthest node is polled first
+			Result result = nearest.poll();
+			nn[i] = result.getId();
+			if (distances != null) {
+				distances[i] = result.getDistance();
+			}
+		}
+		return nn;
+	}
+
+	/**
+	 * Returns the maximum number of neighbors of a node at the given layer.
+	 */
+	private int maxLinks(int level) {
+		return level == 0 ? 2 * maxNeighbors : maxNeighbors;
+	}
+
+	/**
+	 * Returns the results of the given queue sorted by increasing distance.
+	 */
+	private static Result[] sortAscending(PriorityQueue<Result> queue) {
+		Result[] results = queue.toArray(new Result[queue.size()]);
+		Arrays.sort(results, Collections.reverseOrder(new Result()));
+		return results;
+	}
+
+}
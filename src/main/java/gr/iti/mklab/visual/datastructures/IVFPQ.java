@@ -1,19 +1,42 @@
 package gr.iti.mklab.visual.datastructures;
 
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import com.aliasi.util.BoundedPriorityQueue;
 import com.sleepycat.bind.tuple.IntegerBinding;
 import com.sleepycat.bind.tuple.TupleBinding;
 import com.sleepycat.bind.tuple.TupleInput;
 import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
@@ -21,15 +44,16 @@ import com.sleepycat.je.DiskOrderedCursorConfig;
 import com.sleepycat.je.ForwardCursor;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
 
-import gnu.trove.list.array.TByteArrayList;
-import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.list.array.TShortArrayList;
 import gr.iti.mklab.visual.aggregation.AbstractFeatureAggregator;
 import gr.iti.mklab.visual.datastructures.PQ.TransformationType;
+import gr.iti.mklab.visual.utilities.Answer;
+import gr.iti.mklab.visual.utilities.AnswerCache;
+import gr.iti.mklab.visual.utilities.LearnedRotation;
 import gr.iti.mklab.visual.utilities.RandomPermutation;
 import gr.iti.mklab.visual.utilities.RandomRotation;
-import gr.iti.mklab.visual.utilities.Result;
+import gr.iti.mklab.visual.utilities.TopKCollector;
 
 /**
  * This class implements indexing and non-exhaustive approximate nearest neighbor search using the combination
@@ -66,21 +90,47 @@ public class IVFPQ extends AbstractSearchStructure {
 	private int numProductCentroids;
 
 	/**
-	 * The product-quantization codes for all vectors are stored in this list if the code can fit in the byte
-	 * range.
+	 * The inverted lists containing the internal ids and the product-quantization codes of the vectors
+	 * quantized in each list. Codes are stored as bytes if they fit in the byte range and as shorts
+	 * otherwise. Each list is appended while holding its own monitor, so that vectors quantized in different
+	 * lists are appended in parallel (see {@link #indexVector(String, double[])}). A compacted list replaces
+	 * the original one in a new copy of the array (see {@link #compactList(int)}), so appenders re-check
+	 * that the list they locked is still current.
+	 */
+	private volatile InvertedList[] invertedLists;
+
+	/**
+	 * The number of deleted vectors in each inverted list that have not been removed by compaction yet.
+	 */
+	private AtomicIntegerArray numDeletedPerList;
+
+	/**
+	 * The fraction of deleted vectors in a list above which the list is compacted in the background.
+	 */
+	private double compactionThreshold = 0.2;
+
+	/**
+	 * The lists whose compaction has been scheduled but has not started yet.
 	 */
-	private TByteArrayList[] pqByteCodes;
+	private final Set<Integer> scheduledCompactions = Collections
+			.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
 
 	/**
-	 * The product-quantization codes for all vector are stored in this list if the code cannot fit in the
-	 * byte range.
+	 * The single (daemon) thread that compacts lists in the background, created on first use.
 	 */
-	private TShortArrayList[] pqShortCodes;
+	private ExecutorService compactionExecutor;
 
 	/**
-	 * The inverted lists containing the internal ids of the vectors qunatized in each list.
+	 * Set when the index is closed, so that the compactions that have not started yet are cancelled.
 	 */
-	private TIntArrayList[] invertedLists;
+	private volatile boolean closing;
+
+	/**
+	 * Indexing threads hold the read lock of this lock, so that they can index vectors concurrently, while
+	 * {@link #exportSegment(String)} and {@link #loadIndexFromSegment(String)} hold the write lock, so that
+	 * no vector is being indexed while they run.
+	 */
+	private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
 
 	/**
 	 * Number of centroids in the coarse quantizer.
@@ -88,12 +138,109 @@ public class IVFPQ extends AbstractSearchStructure {
 	private int numCoarseCentroids;
 
 	/**
-	 * Number of lists to be visited during nn search.
+	 * Number of lists to be visited during nn search. Can be overridden per query (see
+	 * {@link #computeNearestNeighbors(int, double[], SearchParameters)}).
 	 */
 	private int w;
 
 	public void setW(int w) {
 		this.w = w;
+		searchSettingsChanged();
+	}
+
+	/**
+	 * The number of vectors of a list that are evaluated against all the queries of a batch before moving to
+	 * the next vectors of the list (see {@link #computeNearestNeighborsInternal(int, double[][])}).
+	 */
+	private static final int BATCH_SCAN_BLOCK_SIZE = 256;
+
+	/**
+	 * The maximum number of queries of a batch that are evaluated in a single pass over a list. Bounds the
+	 * memory used by the lookup tables of a batch.
+	 */
+	private static final int BATCH_MAX_QUERIES_PER_PASS = 64;
+
+	/**
+	 * The first int of a segment file (see {@link #exportSegment(String)}).
+	 */
+	private static final int SEGMENT_MAGIC = 0x49564653;
+
+	/**
+	 * The version of the segment file format.
+	 */
+	private static final int SEGMENT_VERSION = 1;
+
+	/**
+	 * The maximum size of each region of a segment file that is mapped at once. Consecutive lists are mapped
+	 * together in regions of up to this size, which keeps the number of mappings small.
+	 */
+	private static final long SEGMENT_MAPPING_SIZE = 1L << 30;
+
+	/**
+	 * The minimum total number of candidates (vectors in the w visited lists) for which the list scans of a
+	 * single query are fanned out over the shared search pool (see {@link #getSearchPool()}). Each worker
+	 * keeps its own collector and the collectors are merged at the end. By default, the scans are always
+	 * performed sequentially on the caller thread.
+	 */
+	private int parallelismThreshold = Integer.MAX_VALUE;
+
+	/**
+	 * Sets the minimum number of candidates for which a query is scanned in parallel. Use
+	 * Integer.MAX_VALUE to disable intra-query parallelism.
+	 * 
+	 * @param parallelismThreshold
+	 */
+	public void setParallelismThreshold(int parallelismThreshold) {
+		this.parallelismThreshold = parallelismThreshold;
+	}
+
+	/**
+	 * An optional index that is used for re-ranking the candidates of IVFADC search (IVFADC+R). It can be a
+	 * {@link Linear} index holding the full vectors (exact re-ranking) or a {@link PQ} index with finer codes
+	 * (refinement re-ranking). In both cases the re-ranking index should contain the same vectors as this
+	 * index, indexed in the same order, so that internal ids coincide.
+	 */
+	private AbstractSearchStructure rerankIndex;
+
+	/**
+	 * The number of IVFADC candidates that are re-ranked by {@link #rerankIndex}. If smaller than k, k
+	 * candidates are re-ranked.
+	 */
+	private int numRerank;
+
+	/**
+	 * Enables re-ranking of the top numRerank candidates of IVFADC search with the given index. Use null to
+	 * disable re-ranking.
+	 * 
+	 * @param rerankIndex
+	 *            The index used for re-ranking, see {@link #rerankIndex}
+	 * @param numRerank
+	 *            The number of candidates to re-rank
+	 */
+	public void setRerankIndex(AbstractSearchStructure rerankIndex, int numRerank) {
+		this.rerankIndex = rerankIndex;
+		this.numRerank = numRerank;
+		searchSettingsChanged();
+	}
+
+	/**
+	 * Whether list scans sum the lookup table entries of the sub-quantizers in decreasing order of the
+	 * variance of their table, instead of their natural order (see
+	 * {@link PQ#computeScanOrder(double[][], boolean)}). This makes early abandoning of distance
+	 * computations more likely, at the cost of a sort per scanned list and of (floating point) rounding
+	 * differences in the computed distances.
+	 */
+	private boolean reorderSubQuantizers = false;
+
+	/**
+	 * Enables or disables the reordering of sub-quantizers in list scans (see
+	 * {@link #reorderSubQuantizers}).
+	 * 
+	 * @param reorderSubQuantizers
+	 */
+	public void setReorderSubQuantizers(boolean reorderSubQuantizers) {
+		this.reorderSubQuantizers = reorderSubQuantizers;
+		searchSettingsChanged();
 	}
 
 	/**
@@ -105,6 +252,12 @@ public class IVFPQ extends AbstractSearchStructure {
 	 */
 	private double[][] coarseQuantizer;
 
+	/**
+	 * The method used for assigning vectors to the nearest coarse centroids, both at indexing and at query
+	 * time. By default an {@link ExhaustiveCoarseAssigner} is created when the coarse quantizer is loaded.
+	 */
+	private AbstractCoarseAssigner coarseAssigner;
+
 	/**
 	 * The sub-quantizers of the product quantizer. They are needed for indexing and search using PQ.<br>
 	 * 
@@ -115,6 +268,12 @@ public class IVFPQ extends AbstractSearchStructure {
 	 */
 	private double[][][] productQuantizer;
 
+	/**
+	 * The symmetric distance tables of the sub-quantizers, used in IVFSDC search. Built when the product
+	 * quantizer is loaded (see {@link PQ#computeSymmetricDistanceTables(double[][][])}).
+	 */
+	private float[][] sdcTables;
+
 	/**
 	 * The type of transformation to perform on the vectors prior to product quantization.
 	 */
@@ -126,7 +285,8 @@ public class IVFPQ extends AbstractSearchStructure {
 	private RandomPermutation rp;
 
 	/**
-	 * This object is used for applying random rotation prior to product quantization.
+	 * This object is used for applying random or learned rotation prior to product quantization. It is null if
+	 * no rotation is applied.
 	 */
 	private RandomRotation rr;
 
@@ -141,6 +301,97 @@ public class IVFPQ extends AbstractSearchStructure {
 	 */
 	public final boolean useDiskOrderedCursor = false;
 
+	/**
+	 * Whether IVFADC search will use precomputed query-independent distance terms. When true, the terms
+	 * ||p_mj||^2 - 2&lt;c_m,p_mj&gt; are computed for each coarse centroid c and each centroid p_mj of each
+	 * sub-quantizer as soon as both quantizers are loaded. The lookup table of each visited list is then
+	 * obtained by adding these terms to a single per-query table, instead of computing a residual vector and
+	 * a full lookup table per visited list. This requires numCoarseCentroids*numSubVectors*numProductCentroids
+	 * floats of memory (e.g. 512Mb for 8192 coarse centroids and a 64x8 product quantizer).
+	 */
+	private boolean usePrecomputedTerms = false;
+
+	/**
+	 * Whether the in-memory inverted lists are packed for fast-scan, see {@link #setUseFastScan(boolean)}.
+	 */
+	private volatile boolean useFastScan = false;
+
+	/**
+	 * The precomputed query-independent distance terms. The 1st dimension goes from 1...numCoarseCentroids
+	 * and indexes the coarse centroids. The 2nd dimension goes from 1...numSubVectors*numProductCentroids and
+	 * indexes (sub-quantizer, centroid) pairs. Null unless {@link #usePrecomputedTerms} is true and both
+	 * quantizers are loaded.
+	 */
+	private float[][] precomputedTerms;
+
+	/**
+	 * Enables or disables the use of precomputed query-independent distance terms in IVFADC search (see
+	 * {@link #usePrecomputedTerms}). If both quantizers are already loaded, the terms are computed
+	 * immediately, otherwise they are computed when the second quantizer is loaded.
+	 * 
+	 * @param usePrecomputedTerms
+	 */
+	public void setUsePrecomputedTerms(boolean usePrecomputedTerms) {
+		this.usePrecomputedTerms = usePrecomputedTerms;
+		if (usePrecomputedTerms) {
+			computePrecomputedTerms();
+		} else {
+			precomputedTerms = null;
+		}
+		searchSettingsChanged();
+	}
+
+	/**
+	 * Enables or disables fast-scan. When enabled, the in-memory inverted lists store their codes packed in 4
+	 * bits per sub-vector and are scanned with quantized lookup tables (see {@link FastScanCodes}), which
+	 * halves their memory and makes list scans faster. Only possible when numProductCentroids is 16. The
+	 * lists that are already loaded in memory are converted to the new layout and the lists that are loaded
+	 * later (e.g. from a segment, which copies them to the heap) are converted when loaded. The persistent
+	 * index is not affected.
+	 * 
+	 * @param useFastScan
+	 * @throws Exception
+	 *             If fast-scan is enabled and the sub-quantizers do not have 16 centroids
+	 */
+	public synchronized void setUseFastScan(boolean useFastScan) throws Exception {
+		if (useFastScan && numProductCentroids != 16) {
+			throw new Exception("Fast-scan requires sub-quantizers with 16 centroids!");
+		}
+		this.useFastScan = useFastScan;
+		convertInvertedLists();
+		searchSettingsChanged();
+	}
+
+	/**
+	 * Converts the in-memory inverted lists (if loaded) to the layout given by {@link #useFastScan}. Each
+	 * list is converted holding its monitor, so appends to it wait, while searches keep scanning it in
+	 * either layout.
+	 * 
+	 * @throws Exception
+	 */
+	private void convertInvertedLists() throws Exception {
+		if (invertedLists == null) {
+			return;
+		}
+		for (int i = 0; i < numCoarseCentroids; i++) {
+			boolean converted = false;
+			while (!converted) { // retry if the list is replaced by compaction before it is locked
+				InvertedList list = invertedLists[i];
+				synchronized (list) {
+					if (list != invertedLists[i]) {
+						continue;
+					}
+					if (useFastScan) {
+						list.pack();
+					} else {
+						list.unpack();
+					}
+					converted = true;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Advanced constructor.
 	 * 
@@ -169,14 +420,17 @@ public class IVFPQ extends AbstractSearchStructure {
 	 *            want to perform indexing
 	 * @param cacheSize
 	 *            the size of the cache in Megabytes
+	 * @param numLoadThreads
+	 *            The number of threads used for loading the persistent index in memory
 	 * @throws Exception
 	 */
 	public IVFPQ(int vectorLength, int maxNumVectors, boolean readOnly, String BDBEnvHome, int numSubVectors,
 			int numProductCentroids, TransformationType transformation, int numCoarseCentroids,
-			boolean countSizeOnLoad, int loadCounter, boolean loadIndexInMemory, long cacheSize)
-					throws Exception {
+			boolean countSizeOnLoad, int loadCounter, boolean loadIndexInMemory, long cacheSize,
+			int numLoadThreads) throws Exception {
 		super(vectorLength, maxNumVectors, readOnly, countSizeOnLoad, loadCounter, loadIndexInMemory,
 				cacheSize);
+		setNumLoadThreads(numLoadThreads);
 		this.numSubVectors = numSubVectors;
 		if (vectorLength % numSubVectors > 0) {
 			throw new Exception("The given number of subvectors is not valid!");
@@ -204,38 +458,55 @@ public class IVFPQ extends AbstractSearchStructure {
 
 		if (loadIndexInMemory) {// load the existing persistent index in memory
 			// create the memory objects with the appropriate initial size
-			invertedLists = new TIntArrayList[numCoarseCentroids];
-
-			if (numProductCentroids <= 256) {
-				pqByteCodes = new TByteArrayList[numCoarseCentroids];
-			} else {
-				pqShortCodes = new TShortArrayList[numCoarseCentroids];
-			}
-
-			int initialListCapacity = (int) ((double) maxNumVectors / numCoarseCentroids);
-			System.out.println("Calculated list size " + initialListCapacity);
-
+			invertedLists = new InvertedList[numCoarseCentroids];
 			for (int i = 0; i < numCoarseCentroids; i++) {
-				if (numProductCentroids <= 256) {
-					// fixed initial size allows space efficiency measurements
-					// pqByteCodes[i] = new TByteArrayList(initialListCapacity * numSubVectors);
-					pqByteCodes[i] = new TByteArrayList();
-
-				} else {
-					// fixed initial size allows space efficiency measurements
-					// pqShortCodes[i] = new TShortArrayList(initialListCapacity * numSubVectors);
-					pqShortCodes[i] = new TShortArrayList();
-
-				}
-				// fixed initial size for each list, allows space efficiency measurements
-				// invertedLists[i] = new TIntArrayList(initialListCapacity);
-				invertedLists[i] = new TIntArrayList();
+				invertedLists[i] = new InvertedList(numSubVectors, numProductCentroids > 256);
 			}
 			// load any existing persistent index in memory
 			loadIndexInMemory();
+			countDeletedPerList();
 		}
 	}
 
+	/**
+	 * Advanced constructor that loads the persistent index with one thread per available processor.
+	 * 
+	 * @param vectorLength
+	 *            The dimensionality of the VLAD vectors being indexed
+	 * @param maxNumVectors
+	 *            The maximum allowable size (number of vectors) of the index
+	 * @param readOnly
+	 *            If true the persistent store will opened only for read access (allows multiple opens)
+	 * @param BDBEnvHome
+	 *            The BDB environment home directory
+	 * @param numSubVectors
+	 *            The number of subvectors
+	 * @param numProductCentroids
+	 *            The number of centroids used to quantize each sub-vector
+	 * @param transformation
+	 *            The type of transformation to perform on each vector
+	 * @param numCoarseCentroids
+	 *            The number of centroids of the coarse quantizer
+	 * @param countSizeOnLoad
+	 *            Whether the load counter will be initialized by the size of the persistent store
+	 * @param loadCounter
+	 *            The initial value of the load counter
+	 * @param loadIndexInMemory
+	 *            Whether to load the index in memory, we can avoid loading the index in memory when we only
+	 *            want to perform indexing
+	 * @param cacheSize
+	 *            the size of the cache in Megabytes
+	 * @throws Exception
+	 */
+	public IVFPQ(int vectorLength, int maxNumVectors, boolean readOnly, String BDBEnvHome, int numSubVectors,
+			int numProductCentroids, TransformationType transformation, int numCoarseCentroids,
+			boolean countSizeOnLoad, int loadCounter, boolean loadIndexInMemory, long cacheSize)
+					throws Exception {
+		this(vectorLength, maxNumVectors, readOnly, BDBEnvHome, numSubVectors, numProductCentroids,
+				transformation, numCoarseCentroids, countSizeOnLoad, loadCounter, loadIndexInMemory,
+				cacheSize, Runtime.getRuntime().availableProcessors());
+	}
+
 	/**
 	 * 
 	 * @param vectorLength
@@ -265,6 +536,25 @@ public class IVFPQ extends AbstractSearchStructure {
 				transformation, numCoarseCentroids, true, 0, true, cacheSize);
 	}
 
+	/**
+	 * Load the rotation that was learned along with the product quantizer from the given file (see
+	 * {@link LearnedRotation}). Only used with the {@link PQ.TransformationType#LearnedRotation} transformation
+	 * and should be called before {@link #loadProductQuantizer(String)}.
+	 * 
+	 * @param filename
+	 *            Full path to the file containing the rotation matrix
+	 * @throws Exception
+	 */
+	public void loadRotation(String filename) throws Exception {
+		if (transformation != TransformationType.LearnedRotation) {
+			throw new Exception("The index does not use a learned rotation!");
+		}
+		if (productQuantizer != null) {
+			throw new Exception("The rotation should be loaded before the product quantizer!");
+		}
+		rr = LearnedRotation.loadFromFile(filename, vectorLength);
+	}
+
 	/**
 	 * Load the product quantizer from the given file.
 	 * 
@@ -273,6 +563,9 @@ public class IVFPQ extends AbstractSearchStructure {
 	 * @throws Exception
 	 */
 	public void loadProductQuantizer(String filename) throws Exception {
+		if (transformation == TransformationType.LearnedRotation && rr == null) {
+			throw new Exception("The learned rotation should be loaded before the product quantizer!");
+		}
 		productQuantizer = new double[numSubVectors][numProductCentroids][subVectorLength];
 		BufferedReader in = new BufferedReader(new FileReader(new File(filename)));
 		for (int i = 0; i < numSubVectors; i++) {
@@ -285,6 +578,9 @@ public class IVFPQ extends AbstractSearchStructure {
 			}
 		}
 		in.close();
+		sdcTables = PQ.computeSymmetricDistanceTables(productQuantizer);
+		computePrecomputedTerms();
+		searchSettingsChanged();
 	}
 
 	/**
@@ -297,10 +593,115 @@ public class IVFPQ extends AbstractSearchStructure {
 	public void loadCoarseQuantizer(String filename) throws IOException {
 		coarseQuantizer = new double[numCoarseCentroids][vectorLength];
 		coarseQuantizer = AbstractFeatureAggregator.readQuantizer(filename, numCoarseCentroids, vectorLength);
+		coarseAssigner = new ExhaustiveCoarseAssigner(coarseQuantizer);
+		computePrecomputedTerms();
+		searchSettingsChanged();
+	}
+
+	/**
+	 * Sets the method used for assigning vectors to the nearest coarse centroids. Should be called after
+	 * {@link #loadCoarseQuantizer(String)}, e.g. with an {@link HNSWCoarseAssigner} built over
+	 * {@link #getCoarseQuantizer()} when the number of coarse centroids is large.
+	 * 
+	 * @param coarseAssigner
+	 *            The coarse assigner
+	 */
+	public void setCoarseAssigner(AbstractCoarseAssigner coarseAssigner) {
+		this.coarseAssigner = coarseAssigner;
+		searchSettingsChanged();
+	}
+
+	public double[][] getCoarseQuantizer() {
+		return coarseQuantizer;
+	}
+
+	/**
+	 * Computes the query-independent distance terms used by IVFADC search if {@link #usePrecomputedTerms} is
+	 * true and both quantizers are loaded. Since the residual of a vector x w.r.t. the coarse centroid c is
+	 * r(x) = c - x, the distance between the (transformed) residual of the query q and the product centroids
+	 * p_m of a database vector can be decomposed as:<br>
+	 * ||T(c) - T(q) - p||^2 = ||c - q||^2 + sum_m (||p_m||^2 - 2&lt;T(c)_m,p_m&gt;) + sum_m 2&lt;T(q)_m,p_m&gt;<br>
+	 * where T is the (orthogonal) transformation applied prior to product quantization. The 1st term is the
+	 * coarse distance, the 2nd term depends only on the list and is computed here and the 3rd term depends
+	 * only on the query.
+	 */
+	private void computePrecomputedTerms() {
+		if (!usePrecomputedTerms || coarseQuantizer == null || productQuantizer == null) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		// the squared norms of the centroids of each sub-quantizer
+		double[][] centroidNorms = new double[numSubVectors][numProductCentroids];
+		for (int m = 0; m < numSubVectors; m++) {
+			for (int j = 0; j < numProductCentroids; j++) {
+				for (int k = 0; k < subVectorLength; k++) {
+					centroidNorms[m][j] += productQuantizer[m][j][k] * productQuantizer[m][j][k];
+				}
+			}
+		}
+		float[][] terms = new float[numCoarseCentroids][numSubVectors * numProductCentroids];
+		for (int i = 0; i < numCoarseCentroids; i++) {
+			double[] centroid = coarseQuantizer[i];
+			// apply a random transformation if needed
+			if (rr != null) {
+				centroid = rr.rotate(centroid);
+			} else if (transformation == TransformationType.RandomPermutation) {
+				centroid = rp.permute(centroid);
+			}
+			for (int m = 0; m < numSubVectors; m++) {
+				int subvectorStart = m * subVectorLength;
+				for (int j = 0; j < numProductCentroids; j++) {
+					double innerProduct = 0;
+					for (int k = 0; k < subVectorLength; k++) {
+						innerProduct += centroid[subvectorStart + k] * productQuantizer[m][j][k];
+					}
+					terms[i][m * numProductCentroids + j] = (float) (centroidNorms[m][j] - 2 * innerProduct);
+				}
+			}
+		}
+		precomputedTerms = terms;
+		System.out.println("Distance terms precomputed in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Updates the index with the given vector. Unlike the method of {@link AbstractSearchStructure}, this
+	 * method is not synchronized and can be called by multiple threads concurrently:
+	 * <ol>
+	 * <li>The vector is assigned to its list and its residual is encoded without any locking.</li>
+	 * <li>An internal id is reserved atomically (see {@link #reserveInternalId(String)}).</li>
+	 * <li>The id mappings and the persistent code are written to the (thread-safe) BDB stores and the code is
+	 * appended to its list while holding only the monitor of that list.</li>
+	 * <li>The internal id is published (see {@link #publishInternalId(int, String, long, long, long)}), or
+	 * given up if appending failed (see {@link #abortInternalIds(int, String[])}).</li>
+	 * </ol>
+	 * Thus, indexing throughput scales with the number of indexing threads.
+	 * 
+	 * @param id
+	 *            The id of the vector
+	 * @param vector
+	 *            The vector
+	 * @return True if the vector is successfully indexed, false otherwise.
+	 * @throws Exception
+	 */
+	@Override
+	public boolean indexVector(String id, double[] vector) throws Exception {
+		long startIndexing = System.currentTimeMillis();
+		if (vector.length != vectorLength) {
+			throw new Exception("The dimensionality of the vector is wrong!");
+		}
+		int listId = computeNearestCoarseIndex(vector);
+		int[] pqCode = computeResidualPQCode(vector, listId);
+		long encodingTime = System.currentTimeMillis() - startIndexing;
+		if (numProductCentroids <= 256) {
+			return indexCode(id, listId, PQ.transformToByte(pqCode), null, startIndexing, encodingTime);
+		} else {
+			return indexCode(id, listId, null, PQ.transformToShort(pqCode), startIndexing, encodingTime);
+		}
 	}
 
 	/**
-	 * Append the IVFPQ index with the given vector.
+	 * Append the IVFPQ index with the given vector. Not used by {@link #indexVector(String, double[])}, which
+	 * assigns internal ids itself.
 	 * 
 	 * @param vector
 	 *            The vector to be indexed
@@ -310,21 +711,211 @@ public class IVFPQ extends AbstractSearchStructure {
 		if (vector.length != vectorLength) {
 			throw new Exception("The dimensionality of the vector is wrong!");
 		}
+		int listId = computeNearestCoarseIndex(vector);
+		int[] pqCode = computeResidualPQCode(vector, listId);
+		if (numProductCentroids <= 256) {
+			appendCode(loadCounter, listId, PQ.transformToByte(pqCode), null, null);
+		} else {
+			appendCode(loadCounter, listId, null, PQ.transformToShort(pqCode), null);
+		}
+	}
+
+	/**
+	 * Appends the IVFPQ index with the given batch of vectors. The vectors are assigned to their lists and
+	 * encoded in parallel. The codes are then grouped by list, so that each list is locked once per batch,
+	 * and the persistent records are written in internal id order.
+	 */
+	@Override
+	protected void indexVectorsInternal(int firstIid, final double[][] vectors, Transaction txn)
+			throws Exception {
+		final int[] listIds = new int[vectors.length];
+		final int[][] pqCodes = new int[vectors.length][];
+		processInParallel(vectors.length, new VectorTask() {
+			public void process(int index) {
+				listIds[index] = computeNearestCoarseIndex(vectors[index]);
+				pqCodes[index] = computeResidualPQCode(vectors[index], listIds[index]);
+			}
+		});
+		byte[][] byteCodes = new byte[vectors.length][];
+		short[][] shortCodes = new short[vectors.length][];
+		for (int i = 0; i < vectors.length; i++) {
+			if (numProductCentroids <= 256) {
+				byteCodes[i] = PQ.transformToByte(pqCodes[i]);
+			} else {
+				shortCodes[i] = PQ.transformToShort(pqCodes[i]);
+			}
+		}
+		if (loadIndexInMemory) { // append the ram-based index, one list at a time
+			int[] listStart = new int[numCoarseCentroids + 1];
+			for (int i = 0; i < vectors.length; i++) {
+				listStart[listIds[i] + 1]++;
+			}
+			for (int l = 0; l < numCoarseCentroids; l++) {
+				listStart[l + 1] += listStart[l];
+			}
+			int[] listOrder = new int[vectors.length]; // the positions of the batch grouped by list
+			int[] next = Arrays.copyOf(listStart, numCoarseCentroids);
+			for (int i = 0; i < vectors.length; i++) {
+				listOrder[next[listIds[i]]++] = i;
+			}
+			for (int l = 0; l < numCoarseCentroids; l++) {
+				if (listStart[l] == listStart[l + 1]) {
+					continue;
+				}
+				boolean appended = false;
+				while (!appended) { // retry if the list is replaced by compaction before it is locked
+					InvertedList list = invertedLists[l];
+					synchronized (list) {
+						if (list != invertedLists[l]) {
+							continue;
+						}
+						for (int r = listStart[l]; r < listStart[l + 1]; r++) {
+							int i = listOrder[r];
+							if (byteCodes[i] != null) {
+								list.add(firstIid + i, byteCodes[i]);
+							} else {
+								list.add(firstIid + i, shortCodes[i]);
+							}
+						}
+						appended = true;
+					}
+				}
+			}
+		}
+		// append the disk-based index
+		for (int i = 0; i < vectors.length; i++) {
+			if (byteCodes[i] != null) {
+				appendPersistentIndex(firstIid + i, listIds[i], byteCodes[i], txn);
+			} else {
+				appendPersistentIndex(firstIid + i, listIds[i], shortCodes[i], txn);
+			}
+		}
+	}
 
-		// quantize to the closest centroid of the coarse quantizer and compute residual vector
-		int nearestCoarseCentroidIndex = computeNearestCoarseIndex(vector);
-		double[] residualVector = computeResidualVector(vector, nearestCoarseCentroidIndex);
+	/**
+	 * Computes the PQ code of the residual of the given vector w.r.t. the given coarse centroid.
+	 * 
+	 * @param vector
+	 *            The vector
+	 * @param coarseCentroidIndex
+	 *            The index of the coarse centroid where the vector is quantized
+	 * @return The indices of the nearest centroids of the sub-quantizers
+	 */
+	private int[] computeResidualPQCode(double[] vector, int coarseCentroidIndex) {
+		double[] residualVector = computeResidualVector(vector, coarseCentroidIndex);
 
 		// apply a random transformation if needed
-		if (transformation == TransformationType.RandomRotation) {
+		if (rr != null) {
 			residualVector = rr.rotate(residualVector);
 		} else if (transformation == TransformationType.RandomPermutation) {
 			residualVector = rp.permute(residualVector);
 		}
 
 		// transform the residual vector into a PQ code
-		int[] pqCode = new int[numSubVectors];
+		return computePQCode(residualVector);
+	}
+
+	/**
+	 * Indexes the given (already computed) code under the given id with a reserved internal id. Exactly one
+	 * of byteCode and shortCode should be non-null.
+	 * 
+	 * @param id
+	 *            The id of the vector
+	 * @param listId
+	 *            The list where the vector is quantized
+	 * @param byteCode
+	 *            The byte code or null
+	 * @param shortCode
+	 *            The short code or null
+	 * @param startIndexing
+	 *            The time when indexing of the vector started
+	 * @param encodingTime
+	 *            The time taken to compute the code
+	 * @return True if the vector is successfully indexed, false otherwise.
+	 */
+	private boolean indexCode(String id, int listId, byte[] byteCode, short[] shortCode, long startIndexing,
+			long encodingTime) {
+		segmentLock.readLock().lock();
+		try {
+			int iid = reserveInternalId(id);
+			if (iid < 0) {
+				return false;
+			}
+			long idMappingTime = 0;
+			long appendTime = 0;
+			boolean appended = false;
+			try {
+				// persist id to name and the reverse mapping
+				long startMapping = System.currentTimeMillis();
+				createMapping(id, iid, null);
+				idMappingTime = System.currentTimeMillis() - startMapping;
+				long startAppend = System.currentTimeMillis();
+				appendCode(iid, listId, byteCode, shortCode, null);
+				appendTime = System.currentTimeMillis() - startAppend;
+				appended = true;
+			} finally {
+				if (!appended) { // undo the mapping and stop indexing, the later ids cannot be published
+					abortInternalIds(iid, new String[] { id });
+				}
+			}
+			return publishInternalId(iid, id, startIndexing, idMappingTime, encodingTime + appendTime);
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends the ram-based (if loaded) and the disk-based index with the given code. Exactly one of byteCode
+	 * and shortCode should be non-null.
+	 * 
+	 * @param iid
+	 *            The internal id of the vector
+	 * @param listId
+	 *            The list where the vector is quantized
+	 * @param byteCode
+	 *            The byte code or null
+	 * @param shortCode
+	 *            The short code or null
+	 * @param txn
+	 *            The transaction or null
+	 */
+	private void appendCode(int iid, int listId, byte[] byteCode, short[] shortCode, Transaction txn) {
+		if (loadIndexInMemory) { // append the ram-based index
+			// add a new entry to the corresponding inverted list, only locking this list
+			boolean appended = false;
+			while (!appended) { // retry if the list is replaced by compaction before it is locked
+				InvertedList list = invertedLists[listId];
+				synchronized (list) {
+					if (list != invertedLists[listId]) {
+						continue;
+					}
+					if (byteCode != null) {
+						list.add(iid, byteCode);
+					} else {
+						list.add(iid, shortCode);
+					}
+					appended = true;
+				}
+			}
+		}
+		// append the disk-based index
+		if (byteCode != null) {
+			appendPersistentIndex(iid, listId, byteCode, txn);
+		} else {
+			appendPersistentIndex(iid, listId, shortCode, txn);
+		}
+	}
 
+	/**
+	 * Transforms the given (transformed) residual vector into a PQ code by assigning each sub-vector to the
+	 * nearest centroid of the respective sub-quantizer.
+	 * 
+	 * @param residualVector
+	 *            The (transformed) residual vector
+	 * @return The indices of the nearest centroids of the sub-quantizers
+	 */
+	private int[] computePQCode(double[] residualVector) {
+		int[] pqCode = new int[numSubVectors];
 		for (int i = 0; i < numSubVectors; i++) {
 			// take the appropriate sub-vector
 			int fromIdex = i * subVectorLength;
@@ -333,120 +924,644 @@ public class IVFPQ extends AbstractSearchStructure {
 			// assign the sub-vector to the nearest centroid of the respective sub-quantizer
 			pqCode[i] = computeNearestProductIndex(subvector, i);
 		}
-
-		if (loadIndexInMemory) { // append the ram-based index
-			// add a new entry to the corresponding inverted list
-			invertedLists[nearestCoarseCentroidIndex].add(loadCounter);
-		}
-
-		if (numProductCentroids <= 256) {
-			byte[] pqByteCode = PQ.transformToByte(pqCode);
-			if (loadIndexInMemory) { // append the ram-based index
-				pqByteCodes[nearestCoarseCentroidIndex].add(pqByteCode);
-			}
-			appendPersistentIndex(nearestCoarseCentroidIndex, pqByteCode); // append the disk-based index
-		} else {
-			short[] pqShortCode = PQ.transformToShort(pqCode);
-			if (loadIndexInMemory) { // append the ram-based index
-				pqShortCodes[nearestCoarseCentroidIndex].add(pqShortCode); // append the ram-based index
-			}
-			appendPersistentIndex(nearestCoarseCentroidIndex, pqShortCode); // append the disk-based index
-		}
+		return pqCode;
 	}
 
-	public synchronized boolean indexPQCode(String id, int listId, byte[] code) throws Exception {
+	public boolean indexPQCode(String id, int listId, byte[] code) throws Exception {
 		if (numProductCentroids > 256) {
 			throw new Exception(
 					"Byte is not sufficient to enumerate the centroids of the product quantizer!");
 		}
-		// check if we can index more vectors
-		if (loadCounter >= maxNumVectors) {
-			System.out.println("Maximum index capacity reached, no more vectors can be indexed!");
-			return false;
+		return indexCode(id, listId, code, null, System.currentTimeMillis(), 0);
+	}
+
+	protected TopKCollector computeNearestNeighborsInternal(int k, double[] query, IidFilter filter)
+			throws Exception {
+		return computeNearestNeighborsInternal(k, query, null, filter, System.nanoTime());
+	}
+
+	/**
+	 * This method returns an {@link Answer} object, which contains the k nearest neighbors along with their
+	 * ids and distances from the query vector, ordered by lowest distance. Unlike
+	 * {@link #computeNearestNeighbors(int, double[])}, the lists that are visited are determined by the given
+	 * per-query parameters instead of the w of the index, so that callers with different latency/recall
+	 * requirements can share the same index. Queries with a filter (see
+	 * {@link SearchParameters#setFilter(IidFilter)}) bypass the answer cache.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to return
+	 * @param queryVector
+	 *            The query vector
+	 * @param parameters
+	 *            The search parameters of this query
+	 * @return The answer
+	 * @throws Exception
+	 */
+	public Answer computeNearestNeighbors(int k, double[] queryVector, SearchParameters parameters)
+			throws Exception {
+		if (!loadIndexInMemory) {
+			throw new Exception("Cannot execute query because the index is not loaded in memory!");
 		}
-		// check if name is already indexed
-		if (isIndexed(id)) {
-			System.out.println("Vector '" + id + "' already indexed!");
-			return false;
+		AnswerCache cache = parameters.getFilter() == null ? answerCache : null;
+		AnswerCache.Key key = null;
+		long version = getIndexVersion();
+		if (cache != null) {
+			// the settings of the index are part of the key, since they apply to the parameters left unset
+			key = new AnswerCache.Key(queryVector, k,
+					Arrays.asList(new SearchParameters(parameters), getSearchSettingsVersion()));
+			Answer answer = cache.get(key, version);
+			if (answer != null) {
+				return answer;
+			}
 		}
-		// do the indexing
-		// persist id to name and the reverse mapping
-		createMapping(id);
-		if (loadIndexInMemory) { // append the ram-based index
-			invertedLists[listId].add(loadCounter);
-			pqByteCodes[listId].add(code);
+		long start = System.nanoTime();
+		TopKCollector nn = computeNearestNeighborsInternal(k, queryVector, parameters, parameters.getFilter(),
+				start);
+		long indexSearchTime = System.nanoTime() - start;
+
+		Answer answer = lookUp(nn, indexSearchTime);
+		if (cache != null) {
+			cache.put(key, version, answer);
 		}
-		appendPersistentIndex(listId, code); // append the disk-based index
+		return answer;
+	}
 
-		loadCounter++; // increase the loadCounter
-		if (loadCounter % 100 == 0) { // debug message
-			System.out.println(new Date() + " # indexed vectors: " + loadCounter);
+	private TopKCollector computeNearestNeighborsInternal(int k, double[] query, SearchParameters parameters,
+			IidFilter filter, long start) throws Exception {
+		if (rerankIndex == null) {
+			return computeKnnIVFADC(k, query, parameters, filter, start);
 		}
-		return true;
+		return rerank(k, query, computeKnnIVFADC(Math.max(k, numRerank), query, parameters, filter, start));
 	}
 
-	protected BoundedPriorityQueue<Result> computeNearestNeighborsInternal(int k, double[] query)
-			throws Exception {
-		return computeKnnIVFADC(k, query);
+	/**
+	 * Re-scores the given candidates with {@link #rerankIndex} and returns the k best of them.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to be returned
+	 * @param qVector
+	 *            The query vector
+	 * @param candidates
+	 *            The candidates of IVFADC search
+	 * @return
+	 * @throws Exception
+	 */
+	private TopKCollector rerank(int k, double[] qVector, TopKCollector candidates) throws Exception {
+		int[] iids = new int[candidates.size()];
+		for (int i = 0; i < iids.length; i++) {
+			iids[i] = candidates.getId(i);
+		}
+		double[] distances = rerankIndex.computeDistances(qVector, iids);
+		TopKCollector nn = new TopKCollector(k);
+		for (int i = 0; i < iids.length; i++) {
+			nn.offer(iids[i], distances[i]);
+		}
+		return nn;
 	}
 
-	protected BoundedPriorityQueue<Result> computeNearestNeighborsInternal(int k, int internalId)
+	protected TopKCollector computeNearestNeighborsInternal(int k, int internalId, IidFilter filter)
 			throws Exception {
-		return computeKnnIVFSDC(k, internalId);
+		return computeKnnIVFSDC(k, internalId, filter);
 	}
 
 	/**
-	 * Computes and returns the k nearest neighbors of the query vector using the IVFADC approach.
+	 * Computes and returns the k nearest neighbors of the query vector using the IVFADC approach. The lists
+	 * are visited in increasing distance of their centroid from the query, until the limits of the given
+	 * parameters are reached.
 	 * 
 	 * @param k
 	 *            The number of nearest neighbors to be returned
 	 * @param qVector
 	 *            The query vector
+	 * @param parameters
+	 *            The search parameters of this query or null to visit the w nearest lists
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @param start
+	 *            The start time of the query (as given by System.nanoTime())
 	 * @return
 	 * @throws Exception
 	 */
-	private BoundedPriorityQueue<Result> computeKnnIVFADC(int k, double[] qVector) throws Exception {
-		BoundedPriorityQueue<Result> nn = new BoundedPriorityQueue<Result>(new Result(), k);
+	private TopKCollector computeKnnIVFADC(int k, double[] qVector, SearchParameters parameters,
+			IidFilter filter, long start) throws Exception {
+		int w = this.w;
+		if (parameters != null && parameters.getW() > 0) {
+			w = Math.min(parameters.getW(), numCoarseCentroids);
+		}
 
 		// find the w nearest coarse centroids
-		int[] nearestCoarseCentroidIndices = computeNearestCoarseIndices(qVector, w);
+		double[] coarseDistances = new double[w];
+		int[] nearestCoarseCentroidIndices = computeNearestCoarseIndices(qVector, w, coarseDistances);
+
+		// when precomputed terms are used, the query-dependent term is computed only once
+		float[][] terms = precomputedTerms;
+		double[][] queryTerms = null;
+		if (terms != null) {
+			queryTerms = computeQueryTerms(qVector);
+		}
+
+		if (parameters != null && parameters.isAdaptive()) {
+			return probeAdaptively(k, qVector, nearestCoarseCentroidIndices, coarseDistances, queryTerms,
+					terms, parameters, filter, start);
+		}
 
+		// fan the list scans out over the search pool if the query has enough candidates
+		if (w > 1 && parallelismThreshold < Integer.MAX_VALUE) {
+			long[] candidatesUpTo = new long[w + 1];
+			for (int i = 0; i < w; i++) {
+				InvertedList list = invertedLists[nearestCoarseCentroidIndices[i]];
+				candidatesUpTo[i + 1] = candidatesUpTo[i] + list.size();
+			}
+			if (candidatesUpTo[w] >= parallelismThreshold) {
+				ForkJoinPool pool = getSearchPool();
+				long candidatesPerTask = Math.max(candidatesUpTo[w] / (4 * pool.getParallelism()), 1);
+				return pool.invoke(new ListScanTask(k, qVector, nearestCoarseCentroidIndices, coarseDistances,
+						queryTerms, terms, filter, candidatesUpTo, candidatesPerTask, 0, w));
+			}
+		}
+
+		TopKCollector nn = new TopKCollector(k);
 		for (int i = 0; i < w; i++) { // for each assignment
-			// quantize to the i-th closest centroid of the coarse quantizer and compute residual vector
-			int nearestCoarseIndex = nearestCoarseCentroidIndices[i];
-			double[] residualVectorQuery = computeResidualVector(qVector, nearestCoarseIndex);
+			scanListADC(qVector, nearestCoarseCentroidIndices[i], coarseDistances[i], queryTerms, terms,
+					Integer.MAX_VALUE, filter, nn);
+		}
+		return nn;
+	}
 
-			// apply a random transformation if needed
-			if (transformation == TransformationType.RandomRotation) {
-				residualVectorQuery = rr.rotate(residualVectorQuery);
-			} else if (transformation == TransformationType.RandomPermutation) {
-				residualVectorQuery = rp.permute(residualVectorQuery);
+	/**
+	 * Scans the given lists (sorted by increasing distance of their centroid from the query) sequentially
+	 * and stops as soon as any of the limits of the given parameters is reached (see
+	 * {@link SearchParameters}). The first list is always scanned.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to be returned
+	 * @param qVector
+	 *            The query vector
+	 * @param listIndices
+	 *            The indices of the candidate lists
+	 * @param coarseDistances
+	 *            The squared distances between the query and the centroids of the candidate lists
+	 * @param queryTerms
+	 *            The query-dependent terms or null if precomputed terms are not used
+	 * @param terms
+	 *            The precomputed terms or null if precomputed terms are not used
+	 * @param parameters
+	 *            The search parameters of this query
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @param start
+	 *            The start time of the query (as given by System.nanoTime())
+	 * @return
+	 */
+	private TopKCollector probeAdaptively(int k, double[] qVector, int[] listIndices,
+			double[] coarseDistances, double[][] queryTerms, float[][] terms, SearchParameters parameters,
+			IidFilter filter, long start) {
+		long deadline = Long.MAX_VALUE;
+		if (parameters.getTimeBudget() < Long.MAX_VALUE / 1000000) {
+			deadline = start + parameters.getTimeBudget() * 1000000;
+		}
+		TopKCollector nn = new TopKCollector(k);
+		long remainingCodes = parameters.getMaxCodes();
+		for (int i = 0; i < listIndices.length && remainingCodes > 0; i++) {
+			if (i > 0) {
+				if (deadline < Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+					break; // the time budget is exhausted
+				}
+				if (coarseDistances[i] > parameters.getProbeMargin() * nn.threshold()) {
+					break; // the remaining lists are unlikely to contain any of the k nearest neighbors
+				}
 			}
+			remainingCodes -= scanListADC(qVector, listIndices[i], coarseDistances[i], queryTerms, terms,
+					(int) remainingCodes, filter, nn);
+		}
+		return nn;
+	}
+
+	/**
+	 * Computes the lookup table of the given list and scans the list, offering each of its vectors to the
+	 * given collector.
+	 * 
+	 * @param qVector
+	 *            The query vector
+	 * @param listIndex
+	 *            The index of the list (coarse centroid)
+	 * @param coarseDistance
+	 *            The squared distance between the query and the coarse centroid, only used with precomputed
+	 *            terms
+	 * @param queryTerms
+	 *            The query-dependent terms or null if precomputed terms are not used
+	 * @param terms
+	 *            The precomputed terms or null if precomputed terms are not used
+	 * @param maxCodes
+	 *            The maximum number of vectors of the list to scan
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @param nn
+	 *            The collector of the nearest neighbors found so far
+	 * @return The number of scanned vectors
+	 */
+	private int scanListADC(double[] qVector, int listIndex, double coarseDistance, double[][] queryTerms,
+			float[][] terms, int maxCodes, IidFilter filter, TopKCollector nn) {
+		double[][] lookUpTable = computeListLookupADC(qVector, listIndex, coarseDistance, queryTerms, terms);
+		int[] order = PQ.computeScanOrder(lookUpTable, reorderSubQuantizers);
+		double[] remainingMinima = PQ.computeRemainingMinima(lookUpTable, order);
+		InvertedList list = invertedLists[listIndex];
+		int to = Math.min(list.size(), maxCodes);
+		scanCodesADC(lookUpTable, order, remainingMinima, list, 0, to, filter, nn);
+		return to;
+	}
+
+	/**
+	 * Computes the lookup table of a query for the given list, either from the precomputed terms or from the
+	 * residual of the query w.r.t. the coarse centroid of the list.
+	 * 
+	 * @param qVector
+	 *            The query vector
+	 * @param listIndex
+	 *            The index of the list (coarse centroid)
+	 * @param coarseDistance
+	 *            The squared distance between the query and the coarse centroid, only used with precomputed
+	 *            terms
+	 * @param queryTerms
+	 *            The query-dependent terms or null if precomputed terms are not used
+	 * @param terms
+	 *            The precomputed terms or null if precomputed terms are not used
+	 * @return A lookup table of size numSubVectors * numProductCentroids
+	 */
+	private double[][] computeListLookupADC(double[] qVector, int listIndex, double coarseDistance,
+			double[][] queryTerms, float[][] terms) {
+		if (terms != null) {
+			return computeLookupADC(queryTerms, terms[listIndex], coarseDistance);
+		}
+		// quantize to the given centroid of the coarse quantizer and compute residual vector
+		double[] residualVectorQuery = computeResidualVector(qVector, listIndex);
+
+		// apply a random transformation if needed
+		if (rr != null) {
+			residualVectorQuery = rr.rotate(residualVectorQuery);
+		} else if (transformation == TransformationType.RandomPermutation) {
+			residualVectorQuery = rp.permute(residualVectorQuery);
+		}
 
-			// compute lookup table
-			double[][] lookUpTable = computeLookupADC(residualVectorQuery);
+		return computeLookupADC(residualVectorQuery);
+	}
 
-			for (int j = 0; j < invertedLists[nearestCoarseIndex].size(); j++) {
-				int iid = invertedLists[nearestCoarseIndex].getQuick(j);
+	/**
+	 * Scans the vectors at positions from (inclusive) to to (exclusive) of the given list using the given
+	 * lookup table and offers each of them to the given collector. The codes are read in place from the
+	 * list's arena, no per-vector allocation takes place. The sub-quantizers are summed in the given order
+	 * and the distance computation of a vector is abandoned (every {@link PQ#EARLY_ABANDON_INTERVAL}
+	 * sub-quantizers) as soon as it cannot beat the current k-th nearest neighbor. Vectors rejected by the
+	 * filter are skipped before their distance is computed.
+	 * 
+	 * @param lookUpTable
+	 *            The lookup table of the query for this list
+	 * @param order
+	 *            The summation order of the sub-quantizers, see
+	 *            {@link PQ#computeScanOrder(double[][], boolean)}
+	 * @param remainingMinima
+	 *            The lower bounds of the remaining contribution of the sub-quantizers, see
+	 *            {@link PQ#computeRemainingMinima(double[][], int[])}
+	 * @param list
+	 *            The list
+	 * @param from
+	 *            The first position to scan
+	 * @param to
+	 *            The position after the last position to scan
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @param nn
+	 *            The collector of the nearest neighbors found so far
+	 */
+	private void scanCodesADC(double[][] lookUpTable, int[] order, double[] remainingMinima,
+			InvertedList list, int from, int to, IidFilter filter, TopKCollector nn) {
+		long[] deleted = tombstones; // null if no vector has been deleted
+		boolean mapped = list.isMapped();
+		// the arrays are read after the list is known to be on the heap (see InvertedList)
+		InvertedList.ByteCodes heapCodes = mapped ? null : list.getByteCodes();
+		if (heapCodes != null && heapCodes.getPackedCodes() != null) {
+			scanCodesFastScan(lookUpTable, list, heapCodes.getPackedCodes(), from, to, filter, nn);
+		} else if (mapped) {
+			scanMappedCodesADC(lookUpTable, order, remainingMinima, list, from, to, filter, nn);
+		} else if (numProductCentroids <= 256) {
+			int[] ids = list.getIds();
+			byte[] pqCodes = heapCodes.getCodes();
+			for (int j = from; j < to; j++) {
+				if (filter != null && !filter.accept(ids[j])) {
+					continue;
+				}
+				int codeStart = j * numSubVectors;
+				double threshold = nn.threshold();
 				double l2distance = 0;
+				int i = 0;
+				while (i < numSubVectors && l2distance + remainingMinima[i] <= threshold) {
+					int end = Math.min(i + PQ.EARLY_ABANDON_INTERVAL, numSubVectors);
+					for (; i < end; i++) {
+						// plus 128 because byte range is -128..127
+						l2distance += lookUpTable[order[i]][pqCodes[codeStart + order[i]] + 128];
+					}
+				}
+				if (i == numSubVectors && !isDeleted(deleted, ids[j])) {
+					nn.offer(ids[j], l2distance);
+				}
+			}
+		} else {
+			int[] ids = list.getIds();
+			short[] pqCodes = list.getShortCodes();
+			for (int j = from; j < to; j++) {
+				if (filter != null && !filter.accept(ids[j])) {
+					continue;
+				}
 				int codeStart = j * numSubVectors;
-				if (numProductCentroids <= 256) {
-					byte[] pqCode = pqByteCodes[nearestCoarseIndex].toArray(codeStart, numSubVectors);
-					for (int m = 0; m < pqCode.length; m++) {
+				double threshold = nn.threshold();
+				double l2distance = 0;
+				int i = 0;
+				while (i < numSubVectors && l2distance + remainingMinima[i] <= threshold) {
+					int end = Math.min(i + PQ.EARLY_ABANDON_INTERVAL, numSubVectors);
+					for (; i < end; i++) {
+						l2distance += lookUpTable[order[i]][pqCodes[codeStart + order[i]]];
+					}
+				}
+				if (i == numSubVectors && !isDeleted(deleted, ids[j])) {
+					nn.offer(ids[j], l2distance);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scans the vectors at positions from (inclusive) to to (exclusive) of the given mapped list using the
+	 * given lookup table and offers each of them to the given collector. The ids and codes are read directly
+	 * from the mapped buffers. Distance computations are abandoned as in
+	 * {@link #scanCodesADC(double[][], int[], double[], InvertedList, int, int, IidFilter, TopKCollector)}.
+	 * 
+	 * @param lookUpTable
+	 *            The lookup table of the query for this list
+	 * @param order
+	 *            The summation order of the sub-quantizers
+	 * @param remainingMinima
+	 *            The lower bounds of the remaining contribution of the sub-quantizers
+	 * @param list
+	 *            The (mapped) list
+	 * @param from
+	 *            The first position to scan
+	 * @param to
+	 *            The position after the last position to scan
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @param nn
+	 *            The collector of the nearest neighbors found so far
+	 */
+	private void scanMappedCodesADC(double[][] lookUpTable, int[] order, double[] remainingMinima,
+			InvertedList list, int from, int to, IidFilter filter, TopKCollector nn) {
+		long[] deleted = tombstones; // null if no vector has been deleted
+		IntBuffer ids = list.getMappedIds();
+		if (numProductCentroids <= 256) {
+			ByteBuffer pqCodes = list.getMappedByteCodes();
+			for (int j = from; j < to; j++) {
+				if (filter != null && !filter.accept(ids.get(j))) {
+					continue;
+				}
+				int codeStart = j * numSubVectors;
+				double threshold = nn.threshold();
+				double l2distance = 0;
+				int i = 0;
+				while (i < numSubVectors && l2distance + remainingMinima[i] <= threshold) {
+					int end = Math.min(i + PQ.EARLY_ABANDON_INTERVAL, numSubVectors);
+					for (; i < end; i++) {
 						// plus 128 because byte range is -128..127
-						l2distance += lookUpTable[m][pqCode[m] + 128];
+						l2distance += lookUpTable[order[i]][pqCodes.get(codeStart + order[i]) + 128];
 					}
-				} else {
-					short[] pqCode = pqShortCodes[nearestCoarseIndex].toArray(codeStart, numSubVectors);
-					for (int m = 0; m < pqCode.length; m++) {
-						l2distance += lookUpTable[m][pqCode[m]];
+				}
+				if (i == numSubVectors && !isDeleted(deleted, ids.get(j))) {
+					nn.offer(ids.get(j), l2distance);
+				}
+			}
+		} else {
+			ShortBuffer pqCodes = list.getMappedShortCodes();
+			for (int j = from; j < to; j++) {
+				if (filter != null && !filter.accept(ids.get(j))) {
+					continue;
+				}
+				int codeStart = j * numSubVectors;
+				double threshold = nn.threshold();
+				double l2distance = 0;
+				int i = 0;
+				while (i < numSubVectors && l2distance + remainingMinima[i] <= threshold) {
+					int end = Math.min(i + PQ.EARLY_ABANDON_INTERVAL, numSubVectors);
+					for (; i < end; i++) {
+						l2distance += lookUpTable[order[i]][pqCodes.get(codeStart + order[i])];
 					}
 				}
-				nn.offer(new Result(iid, l2distance));
+				if (i == numSubVectors && !isDeleted(deleted, ids.get(j))) {
+					nn.offer(ids.get(j), l2distance);
+				}
 			}
 		}
+	}
 
-		return nn;
+	/**
+	 * Scans the vectors at positions from (inclusive) to to (exclusive) of the given packed list (see
+	 * {@link #setUseFastScan(boolean)}). The list is processed in blocks of {@link FastScanCodes#BLOCK_SIZE}
+	 * vectors whose quantized distances are computed with an 8-bit version of the lookup table. Only the
+	 * vectors whose quantized distance shows that they may enter the collector are re-scored with the exact
+	 * lookup table, so the results are the same as those of a normal scan.
+	 * 
+	 * @param lookUpTable
+	 *            The lookup table of the query for this list
+	 * @param list
+	 *            The (packed) list
+	 * @param codes
+	 *            The packed codes of the list
+	 * @param from
+	 *            The first position to scan
+	 * @param to
+	 *            The position after the last position to scan
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @param nn
+	 *            The collector of the nearest neighbors found so far
+	 */
+	private void scanCodesFastScan(double[][] lookUpTable, InvertedList list, FastScanCodes codes, int from,
+			int to, IidFilter filter, TopKCollector nn) {
+		FastScanCodes.QuantizedLookupTable quantizedTable = FastScanCodes.quantize(lookUpTable);
+		int[] ids = list.getIds();
+		long[] deleted = tombstones; // null if no vector has been deleted
+		int[] quantizedDistances = new int[FastScanCodes.BLOCK_SIZE];
+		int threshold = quantizedTable.threshold(nn.threshold());
+		for (int block = from / FastScanCodes.BLOCK_SIZE; block * FastScanCodes.BLOCK_SIZE < to; block++) {
+			codes.scanBlock(quantizedTable, block, quantizedDistances);
+			int blockStart = block * FastScanCodes.BLOCK_SIZE;
+			int start = Math.max(from, blockStart);
+			int end = Math.min(to, blockStart + FastScanCodes.BLOCK_SIZE);
+			for (int j = start; j < end; j++) {
+				if (quantizedDistances[j - blockStart] > threshold || isDeleted(deleted, ids[j])
+						|| (filter != null && !filter.accept(ids[j]))) {
+					continue;
+				}
+				if (nn.offer(ids[j], codes.computeDistance(lookUpTable, j))) {
+					threshold = quantizedTable.threshold(nn.threshold());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the k nearest neighbors of each of the given query vectors using the IVFADC approach. Instead
+	 * of processing each query separately, all queries are first assigned to their w nearest lists. Each
+	 * visited list is then scanned once for all the queries that are routed to it: the list is traversed in
+	 * blocks of {@link #BATCH_SCAN_BLOCK_SIZE} vectors and each block is evaluated against all these queries
+	 * while its codes are in cache. To bound the memory used by the lookup tables, at most
+	 * {@link #BATCH_MAX_QUERIES_PER_PASS} queries are evaluated per pass over a list.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to be returned
+	 * @param qVectors
+	 *            The query vectors
+	 * @return One collector of the k nearest neighbors per query
+	 * @throws Exception
+	 */
+	protected TopKCollector[] computeNearestNeighborsInternal(int k, double[][] qVectors) throws Exception {
+		int numQueries = qVectors.length;
+		TopKCollector[] nns = new TopKCollector[numQueries];
+		int numCandidates = rerankIndex == null ? k : Math.max(k, numRerank);
+
+		// assign each query to its w nearest lists
+		float[][] terms = precomputedTerms;
+		int[][] queryLists = new int[numQueries][];
+		double[][] queryCoarseDistances = new double[numQueries][w];
+		double[][][] queryTerms = new double[numQueries][][];
+		int[] numRoutedQueries = new int[numCoarseCentroids];
+		for (int q = 0; q < numQueries; q++) {
+			nns[q] = new TopKCollector(numCandidates);
+			queryLists[q] = computeNearestCoarseIndices(qVectors[q], w, queryCoarseDistances[q]);
+			if (terms != null) {
+				queryTerms[q] = computeQueryTerms(qVectors[q]);
+			}
+			for (int i = 0; i < w; i++) {
+				numRoutedQueries[queryLists[q][i]]++;
+			}
+		}
+
+		// group the (query, assignment) pairs by list
+		int[] routedStart = new int[numCoarseCentroids + 1];
+		for (int l = 0; l < numCoarseCentroids; l++) {
+			routedStart[l + 1] = routedStart[l] + numRoutedQueries[l];
+		}
+		int[] routedQueries = new int[routedStart[numCoarseCentroids]];
+		int[] routedAssignments = new int[routedStart[numCoarseCentroids]];
+		int[] routedPosition = Arrays.copyOf(routedStart, numCoarseCentroids);
+		for (int q = 0; q < numQueries; q++) {
+			for (int i = 0; i < w; i++) {
+				int pos = routedPosition[queryLists[q][i]]++;
+				routedQueries[pos] = q;
+				routedAssignments[pos] = i;
+			}
+		}
+
+		// scan each visited list once for (up to BATCH_MAX_QUERIES_PER_PASS of) the queries routed to it
+		for (int l = 0; l < numCoarseCentroids; l++) {
+			InvertedList list = invertedLists[l];
+			int listSize = list.size();
+			int passStart = routedStart[l];
+			while (passStart < routedStart[l + 1]) {
+				int passEnd = Math.min(passStart + BATCH_MAX_QUERIES_PER_PASS, routedStart[l + 1]);
+				double[][][] lookUpTables = new double[passEnd - passStart][][];
+				int[][] orders = new int[passEnd - passStart][];
+				double[][] remainingMinima = new double[passEnd - passStart][];
+				for (int r = passStart; r < passEnd; r++) {
+					int q = routedQueries[r];
+					lookUpTables[r - passStart] = computeListLookupADC(qVectors[q], l,
+							queryCoarseDistances[q][routedAssignments[r]], queryTerms[q], terms);
+					orders[r - passStart] = PQ.computeScanOrder(lookUpTables[r - passStart],
+							reorderSubQuantizers);
+					remainingMinima[r - passStart] = PQ.computeRemainingMinima(lookUpTables[r - passStart],
+							orders[r - passStart]);
+				}
+				for (int blockStart = 0; blockStart < listSize; blockStart += BATCH_SCAN_BLOCK_SIZE) {
+					int blockEnd = Math.min(blockStart + BATCH_SCAN_BLOCK_SIZE, listSize);
+					for (int r = passStart; r < passEnd; r++) {
+						scanCodesADC(lookUpTables[r - passStart], orders[r - passStart],
+								remainingMinima[r - passStart], list, blockStart, blockEnd, null,
+								nns[routedQueries[r]]);
+					}
+				}
+				passStart = passEnd;
+			}
+		}
+		if (rerankIndex != null) {
+			for (int q = 0; q < numQueries; q++) {
+				nns[q] = rerank(k, qVectors[q], nns[q]);
+			}
+		}
+		return nns;
+	}
+
+	/**
+	 * This task scans a range of the visited lists of a query. Ranges with more candidates than
+	 * candidatesPerTask are split in two halves (in terms of candidates) that are scanned in parallel, each
+	 * into its own collector, and the two collectors are merged when both halves complete.
+	 */
+	private class ListScanTask extends RecursiveTask<TopKCollector> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int k;
+		private final double[] qVector;
+		private final int[] listIndices;
+		private final double[] coarseDistances;
+		private final double[][] queryTerms;
+		private final float[][] terms;
+		private final IidFilter filter;
+		/**
+		 * candidatesUpTo[i] holds the total number of vectors in the first i visited lists.
+		 */
+		private final long[] candidatesUpTo;
+		private final long candidatesPerTask;
+		private final int from;
+		private final int to;
+
+		ListScanTask(int k, double[] qVector, int[] listIndices, double[] coarseDistances,
+				double[][] queryTerms, float[][] terms, IidFilter filter, long[] candidatesUpTo,
+				long candidatesPerTask, int from, int to) {
+			this.k = k;
+			this.qVector = qVector;
+			this.listIndices = listIndices;
+			this.coarseDistances = coarseDistances;
+			this.queryTerms = queryTerms;
+			this.terms = terms;
+			this.filter = filter;
+			this.candidatesUpTo = candidatesUpTo;
+			this.candidatesPerTask = candidatesPerTask;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected TopKCollector compute() {
+			if (to - from > 1 && candidatesUpTo[to] - candidatesUpTo[from] > candidatesPerTask) {
+				// split at the list where half of the candidates of this range is reached
+				long half = (candidatesUpTo[from] + candidatesUpTo[to]) / 2;
+				int mid = from + 1;
+				while (mid < to - 1 && candidatesUpTo[mid] < half) {
+					mid++;
+				}
+				ListScanTask left = new ListScanTask(k, qVector, listIndices, coarseDistances, queryTerms,
+						terms, filter, candidatesUpTo, candidatesPerTask, from, mid);
+				ListScanTask right = new ListScanTask(k, qVector, listIndices, coarseDistances, queryTerms,
+						terms, filter, candidatesUpTo, candidatesPerTask, mid, to);
+				left.fork();
+				TopKCollector nn = right.compute();
+				nn.offerAll(left.join()); // merge the two per-worker collectors
+				return nn;
+			}
+			TopKCollector nn = new TopKCollector(k);
+			for (int i = from; i < to; i++) {
+				scanListADC(qVector, listIndices[i], coarseDistances[i], queryTerms, terms, Integer.MAX_VALUE,
+						filter, nn);
+			}
+			return nn;
+		}
 	}
 
 	/**
@@ -471,7 +1586,7 @@ public class IVFPQ extends AbstractSearchStructure {
 		double[] residualVectorQuery = computeResidualVector(qVector, existingCoarseCentroidIndex);
 
 		// apply a random transformation if needed
-		if (transformation == TransformationType.RandomRotation) {
+		if (rr != null) {
 			residualVectorQuery = rr.rotate(residualVectorQuery);
 		} else if (transformation == TransformationType.RandomPermutation) {
 			residualVectorQuery = rp.permute(residualVectorQuery);
@@ -487,27 +1602,201 @@ public class IVFPQ extends AbstractSearchStructure {
 				distance += lookUpTable[m][pqCode[m] + 128];
 			}
 		} else {
-			short[] pqCode = getPQCodeShort(existingVecId);
-			for (int m = 0; m < pqCode.length; m++) {
-				distance += lookUpTable[m][pqCode[m]];
+			short[] pqCode = getPQCodeShort(existingVecId);
+			for (int m = 0; m < pqCode.length; m++) {
+				distance += lookUpTable[m][pqCode[m]];
+			}
+		}
+
+		return distance;
+	}
+
+	/**
+	 * Computes and returns the k nearest neighbors of an already indexed vector using the IVFSDC approach.
+	 * The original query vector is not needed: it is approximated by its reconstruction from its list and PQ
+	 * code, i.e. c - T^-1(p). The w lists that are nearest to the reconstruction are visited and, for each of
+	 * them, the residual of the reconstruction w.r.t. the coarse centroid of the list is quantized with the
+	 * product quantizer. The distance between this code and the code of each vector of the list is then
+	 * computed with numSubVectors lookups in the precomputed symmetric distance tables.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to be returned
+	 * @param iid
+	 *            The internal id of the query vector (code actually)
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @return A collector of the k nearest neighbors along with their iids and distances from the query
+	 *         vector.
+	 * @throws Exception
+	 */
+	private TopKCollector computeKnnIVFSDC(int k, int iid, IidFilter filter) throws Exception {
+		if (iid < 0) {
+			throw new Exception("Id does not exist!");
+		}
+		TopKCollector nn = new TopKCollector(k);
+
+		// find the list and the pq code of the query vector
+		DatabaseEntry key = new DatabaseEntry();
+		IntegerBinding.intToEntry(iid, key);
+		DatabaseEntry data = new DatabaseEntry();
+		if (iidToIvfpqDB.get(null, key, data, null) != OperationStatus.SUCCESS) {
+			throw new Exception("Id does not exist!");
+		}
+		TupleInput input = TupleBinding.entryToInput(data);
+		int queryListId = input.readInt();
+		int[] queryCode = new int[numSubVectors];
+		for (int m = 0; m < numSubVectors; m++) {
+			if (numProductCentroids <= 256) {
+				// plus 128 because byte range is -128..127
+				queryCode[m] = input.readByte() + 128;
+			} else {
+				queryCode[m] = input.readShort();
+			}
+		}
+
+		// reconstruct the query vector from its coarse centroid and its (transformed) residual
+		double[] residualVectorQuery = new double[vectorLength];
+		for (int m = 0; m < numSubVectors; m++) {
+			System.arraycopy(productQuantizer[m][queryCode[m]], 0, residualVectorQuery, m * subVectorLength,
+					subVectorLength);
+		}
+		// apply the inverse random transformation if needed
+		if (rr != null) {
+			residualVectorQuery = rr.inverseRotate(residualVectorQuery);
+		} else if (transformation == TransformationType.RandomPermutation) {
+			residualVectorQuery = rp.inversePermute(residualVectorQuery);
+		}
+		double[] qVector = new double[vectorLength];
+		for (int i = 0; i < vectorLength; i++) {
+			qVector[i] = coarseQuantizer[queryListId][i] - residualVectorQuery[i];
+		}
+
+		// find the w nearest coarse centroids
+		int[] nearestCoarseCentroidIndices = computeNearestCoarseIndices(qVector, w);
+
+		for (int i = 0; i < w; i++) { // for each assignment
+			int nearestCoarseIndex = nearestCoarseCentroidIndices[i];
+			int[] pqCode;
+			if (nearestCoarseIndex == queryListId) { // the query code is already known
+				pqCode = queryCode;
+			} else {
+				// quantize the residual of the reconstructed query w.r.t. the centroid of this list
+				double[] residualVector = computeResidualVector(qVector, nearestCoarseIndex);
+				// apply a random transformation if needed
+				if (rr != null) {
+					residualVector = rr.rotate(residualVector);
+				} else if (transformation == TransformationType.RandomPermutation) {
+					residualVector = rp.permute(residualVector);
+				}
+				pqCode = computePQCode(residualVector);
+			}
+			InvertedList list = invertedLists[nearestCoarseIndex];
+			scanCodesSDC(pqCode, list, 0, list.size(), filter, nn);
+		}
+		return nn;
+	}
+
+	/**
+	 * Scans the vectors at positions from (inclusive) to to (exclusive) of the given list using the symmetric
+	 * distance tables and offers each of them to the given collector.
+	 * 
+	 * @param pqCode
+	 *            The PQ code of the query w.r.t. the coarse centroid of this list (centroid indices)
+	 * @param list
+	 *            The list
+	 * @param from
+	 *            The first position to scan
+	 * @param to
+	 *            The position after the last position to scan
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @param nn
+	 *            The collector of the nearest neighbors found so far
+	 */
+	private void scanCodesSDC(int[] pqCode, InvertedList list, int from, int to, IidFilter filter,
+			TopKCollector nn) {
+		// the row of each symmetric distance table that corresponds to the centroid of the query
+		int[] rowStart = new int[numSubVectors];
+		for (int m = 0; m < numSubVectors; m++) {
+			rowStart[m] = pqCode[m] * numProductCentroids;
+		}
+		long[] deleted = tombstones; // null if no vector has been deleted
+		boolean mapped = list.isMapped();
+		// the arrays are read after the list is known to be on the heap (see InvertedList)
+		InvertedList.ByteCodes heapCodes = mapped ? null : list.getByteCodes();
+		FastScanCodes packedCodes = heapCodes != null ? heapCodes.getPackedCodes() : null;
+		if (packedCodes != null) {
+			int[] ids = list.getIds();
+			for (int j = from; j < to; j++) {
+				if (filter != null && !filter.accept(ids[j])) {
+					continue;
+				}
+				double l2distance = 0;
+				for (int m = 0; m < numSubVectors; m++) {
+					l2distance += sdcTables[m][rowStart[m] + packedCodes.getCode(j, m)];
+				}
+				if (!isDeleted(deleted, ids[j])) {
+					nn.offer(ids[j], l2distance);
+				}
+			}
+		} else if (mapped) {
+			IntBuffer ids = list.getMappedIds();
+			ByteBuffer byteCodes = list.getMappedByteCodes();
+			ShortBuffer shortCodes = list.getMappedShortCodes();
+			for (int j = from; j < to; j++) {
+				if (filter != null && !filter.accept(ids.get(j))) {
+					continue;
+				}
+				int codeStart = j * numSubVectors;
+				double l2distance = 0;
+				for (int m = 0; m < numSubVectors; m++) {
+					int pqSubCode;
+					if (numProductCentroids <= 256) {
+						// plus 128 because byte range is -128..127
+						pqSubCode = byteCodes.get(codeStart + m) + 128;
+					} else {
+						pqSubCode = shortCodes.get(codeStart + m);
+					}
+					l2distance += sdcTables[m][rowStart[m] + pqSubCode];
+				}
+				if (!isDeleted(deleted, ids.get(j))) {
+					nn.offer(ids.get(j), l2distance);
+				}
+			}
+		} else if (numProductCentroids <= 256) {
+			int[] ids = list.getIds();
+			byte[] pqCodes = heapCodes.getCodes();
+			for (int j = from; j < to; j++) {
+				if (filter != null && !filter.accept(ids[j])) {
+					continue;
+				}
+				int codeStart = j * numSubVectors;
+				double l2distance = 0;
+				for (int m = 0; m < numSubVectors; m++) {
+					// plus 128 because byte range is -128..127
+					l2distance += sdcTables[m][rowStart[m] + pqCodes[codeStart + m] + 128];
+				}
+				if (!isDeleted(deleted, ids[j])) {
+					nn.offer(ids[j], l2distance);
+				}
+			}
+		} else {
+			int[] ids = list.getIds();
+			short[] pqCodes = list.getShortCodes();
+			for (int j = from; j < to; j++) {
+				if (filter != null && !filter.accept(ids[j])) {
+					continue;
+				}
+				int codeStart = j * numSubVectors;
+				double l2distance = 0;
+				for (int m = 0; m < numSubVectors; m++) {
+					l2distance += sdcTables[m][rowStart[m] + pqCodes[codeStart + m]];
+				}
+				if (!isDeleted(deleted, ids[j])) {
+					nn.offer(ids[j], l2distance);
+				}
 			}
 		}
-
-		return distance;
-	}
-
-	/**
-	 * TODO: implement this method
-	 * 
-	 * @param k
-	 *            The number of nearest neighbors to be returned
-	 * @param iid
-	 *            The internal id of the query vector (code actually)
-	 * @return A bounded priority queue of Result objects, which contains the k nearest neighbors along with
-	 *         their iids and distances from the query vector, ordered by lowest distance.
-	 */
-	private BoundedPriorityQueue<Result> computeKnnIVFSDC(int k, int iid) {
-		return null;
 	}
 
 	/**
@@ -537,6 +1826,60 @@ public class IVFPQ extends AbstractSearchStructure {
 		return distances;
 	}
 
+	/**
+	 * Computes the query-dependent term of the IVFADC distance decomposition (see
+	 * {@link #computePrecomputedTerms()}), i.e. 2&lt;T(q)_m,p_mj&gt; for each sub-quantizer m and each centroid j.
+	 * 
+	 * @param qVector
+	 *            The (untransformed) query vector
+	 * @return A table of size numSubVectors * numProductCentroids
+	 */
+	private double[][] computeQueryTerms(double[] qVector) {
+		// apply a random transformation if needed
+		if (rr != null) {
+			qVector = rr.rotate(qVector);
+		} else if (transformation == TransformationType.RandomPermutation) {
+			qVector = rp.permute(qVector);
+		}
+		double[][] queryTerms = new double[numSubVectors][numProductCentroids];
+		for (int i = 0; i < numSubVectors; i++) {
+			int subvectorStart = i * subVectorLength;
+			for (int j = 0; j < numProductCentroids; j++) {
+				double innerProduct = 0;
+				for (int k = 0; k < subVectorLength; k++) {
+					innerProduct += qVector[subvectorStart + k] * productQuantizer[i][j][k];
+				}
+				queryTerms[i][j] = 2 * innerProduct;
+			}
+		}
+		return queryTerms;
+	}
+
+	/**
+	 * Combines the per-query table with the precomputed terms of a list into the lookup table of that list.
+	 * This requires only numSubVectors*numProductCentroids additions. The coarse distance of the list is
+	 * folded into the entries of the first sub-quantizer so that the scan loop remains unchanged.
+	 * 
+	 * @param queryTerms
+	 *            The query-dependent terms computed by {@link #computeQueryTerms(double[])}
+	 * @param listTerms
+	 *            The precomputed terms of the list
+	 * @param coarseDistance
+	 *            The squared distance between the query and the coarse centroid of the list
+	 * @return A lookup table of size numSubVectors * numProductCentroids
+	 */
+	private double[][] computeLookupADC(double[][] queryTerms, float[] listTerms, double coarseDistance) {
+		double[][] distances = new double[numSubVectors][numProductCentroids];
+		for (int i = 0; i < numSubVectors; i++) {
+			int termsStart = i * numProductCentroids;
+			double offset = i == 0 ? coarseDistance : 0;
+			for (int j = 0; j < numProductCentroids; j++) {
+				distances[i][j] = offset + listTerms[termsStart + j] + queryTerms[i][j];
+			}
+		}
+		return distances;
+	}
+
 	/**
 	 * Returns the index of the coarse centroid which is closer to the given vector.
 	 * 
@@ -545,22 +1888,7 @@ public class IVFPQ extends AbstractSearchStructure {
 	 * @return The index of the nearest coarse centroid
 	 */
 	private int computeNearestCoarseIndex(double[] vector) {
-		int centroidIndex = -1;
-		double minDistance = Double.MAX_VALUE;
-		for (int i = 0; i < numCoarseCentroids; i++) {
-			double distance = 0;
-			for (int j = 0; j < vectorLength; j++) {
-				distance += (coarseQuantizer[i][j] - vector[j]) * (coarseQuantizer[i][j] - vector[j]);
-				if (distance >= minDistance) {
-					break;
-				}
-			}
-			if (distance < minDistance) {
-				minDistance = distance;
-				centroidIndex = i;
-			}
-		}
-		return centroidIndex;
+		return coarseAssigner.computeNearestIndex(vector);
 	}
 
 	/**
@@ -573,31 +1901,23 @@ public class IVFPQ extends AbstractSearchStructure {
 	 * @return The indices of the k nearest coarse centroids
 	 */
 	protected int[] computeNearestCoarseIndices(double[] vector, int k) {
-		BoundedPriorityQueue<Result> bpq = new BoundedPriorityQueue<Result>(new Result(), k);
+		return computeNearestCoarseIndices(vector, k, null);
+	}
 
-		double lowest = Double.MAX_VALUE;
-		for (int i = 0; i < numCoarseCentroids; i++) {
-			boolean skip = false;
-			double l2distance = 0;
-			for (int j = 0; j < vectorLength; j++) {
-				l2distance += (coarseQuantizer[i][j] - vector[j]) * (coarseQuantizer[i][j] - vector[j]);
-				if (l2distance > lowest) {
-					skip = true;
-					break;
-				}
-			}
-			if (!skip) {
-				bpq.offer(new Result(i, l2distance));
-				if (i >= k) {
-					lowest = bpq.last().getDistance();
-				}
-			}
-		}
-		int[] nn = new int[k];
-		for (int i = 0; i < k; i++) {
-			nn[i] = bpq.poll().getId();
-		}
-		return nn;
+	/**
+	 * Returns the indices of the k coarse centroids which are closer to the given vector and optionally
+	 * their squared distances from the vector.
+	 * 
+	 * @param vector
+	 *            The vector
+	 * @param k
+	 *            The number of nearest centroids to return
+	 * @param distances
+	 *            If not null, the squared distances of the k nearest coarse centroids are written here
+	 * @return The indices of the k nearest coarse centroids
+	 */
+	protected int[] computeNearestCoarseIndices(double[] vector, int k, double[] distances) {
+		return coarseAssigner.computeNearestIndices(vector, k, distances);
 	}
 
 	/**
@@ -678,6 +1998,22 @@ public class IVFPQ extends AbstractSearchStructure {
 	 * @throws Exception
 	 */
 	private void loadIndexInMemory() throws Exception {
+		loadIndexInMemory(0);
+	}
+
+	/**
+	 * Loads the records of the persistent index with internal ids greater than or equal to the given one in
+	 * memory.
+	 * 
+	 * @param fromIid
+	 *            The first internal id to load
+	 * @throws Exception
+	 */
+	private void loadIndexInMemory(int fromIid) throws Exception {
+		if (numLoadThreads > 1 && !useDiskOrderedCursor) {
+			loadIndexInMemoryInParallel(fromIid);
+			return;
+		}
 		long start = System.currentTimeMillis();
 		System.out.println("Loading persistent index in memory.");
 
@@ -685,48 +2021,309 @@ public class IVFPQ extends AbstractSearchStructure {
 		DatabaseEntry foundData = new DatabaseEntry();
 
 		ForwardCursor cursor = null;
-		if (useDiskOrderedCursor) { // disk ordered cursor
-			DiskOrderedCursorConfig docc = new DiskOrderedCursorConfig();
-			cursor = iidToIvfpqDB.openCursor(docc);
+		OperationStatus status;
+		if (fromIid > 0) { // position the cursor at the first record to load
+			Cursor searchCursor = iidToIvfpqDB.openCursor(null, null);
+			IntegerBinding.intToEntry(fromIid, foundKey);
+			status = searchCursor.getSearchKeyRange(foundKey, foundData, LockMode.DEFAULT);
+			cursor = searchCursor;
 		} else {
-			cursor = iidToIvfpqDB.openCursor(null, null);
+			if (useDiskOrderedCursor) { // disk ordered cursor
+				DiskOrderedCursorConfig docc = new DiskOrderedCursorConfig();
+				cursor = iidToIvfpqDB.openCursor(docc);
+			} else {
+				cursor = iidToIvfpqDB.openCursor(null, null);
+			}
+			status = cursor.getNext(foundKey, foundData, LockMode.DEFAULT);
 		}
 
+		// the code buffers are reused since the inverted lists copy the codes into their arenas
+		byte[] byteCode = new byte[numSubVectors];
+		short[] shortCode = new short[numSubVectors];
+		int toIid = getLoadRangeEnd(iidToIvfpqDB);
 		int counter = 0;
-		while (cursor.getNext(foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS
-				&& counter < maxNumVectors) {
+		while (status == OperationStatus.SUCCESS && fromIid + counter < maxNumVectors) {
 			TupleInput input = TupleBinding.entryToInput(foundData);
 			int listId = input.readInt();
 			// The following code assumes that internal ids are consequtive (as they should be).
 			// It is possible, however, tha an indexed with non-consequtive ids was constructed.
-			// invertedLists[listId].add(counter); // update ram based index
+			// int iid = counter;
 			// The following code works for non-consequitve internal ids as well.
 			int iid = IntegerBinding.entryToInt(foundKey);
-			invertedLists[listId].add(iid); // update ram based index
+			if (iid >= toIid) { // never published (the cursor may not be in internal id order)
+				status = cursor.getNext(foundKey, foundData, LockMode.DEFAULT);
+				continue;
+			}
 
 			if (numProductCentroids <= 256) {
-				byte[] code = new byte[numSubVectors];
 				for (int i = 0; i < numSubVectors; i++) {
-					code[i] = input.readByte();
+					byteCode[i] = input.readByte();
 				}
-				pqByteCodes[listId].add(code); // update ram based index
+				invertedLists[listId].add(iid, byteCode); // update ram based index
 			} else {
-				short[] code = new short[numSubVectors];
 				for (int i = 0; i < numSubVectors; i++) {
-					code[i] = input.readShort();
+					shortCode[i] = input.readShort();
 				}
-				pqShortCodes[listId].add(code); // update ram based index
+				invertedLists[listId].add(iid, shortCode); // update ram based index
 			}
 			counter++;
 			if (counter % 1000 == 0) {
 				System.out.println(counter + " vectors loaded in memory!");
 			}
+			status = cursor.getNext(foundKey, foundData, LockMode.DEFAULT);
 		}
 		cursor.close();
 		long end = System.currentTimeMillis();
 		System.out.println(counter + " images loaded in " + (end - start) + " ms!");
 	}
 
+	/**
+	 * Loads the records of the persistent index with internal ids greater than or equal to the given one in
+	 * memory using {@link #numLoadThreads} threads. Each thread reads a contiguous range of internal ids into
+	 * its own partial inverted lists, which are then appended to the inverted lists in internal id order.
+	 * Unlike the codes of a {@link PQ} index, the position of each code in its inverted list is not known
+	 * before loading, so the partial lists cannot be written in place.
+	 * 
+	 * @param fromIid
+	 *            The first internal id to load
+	 * @throws Exception
+	 */
+	private void loadIndexInMemoryInParallel(int fromIid) throws Exception {
+		long start = System.currentTimeMillis();
+		System.out.println("Loading persistent index in memory with " + numLoadThreads + " threads.");
+
+		final InvertedList[][] partialLists = new InvertedList[numLoadThreads][numCoarseCentroids];
+		RecordConsumer[] consumers = new RecordConsumer[numLoadThreads];
+		for (int p = 0; p < numLoadThreads; p++) {
+			final InvertedList[] lists = partialLists[p];
+			consumers[p] = new RecordConsumer() {
+				private final byte[] byteCode = new byte[numSubVectors];
+				private final short[] shortCode = new short[numSubVectors];
+
+				public void consume(int iid, TupleInput input) {
+					int listId = input.readInt();
+					if (lists[listId] == null) {
+						lists[listId] = new InvertedList(numSubVectors, numProductCentroids > 256);
+					}
+					if (numProductCentroids <= 256) {
+						for (int i = 0; i < numSubVectors; i++) {
+							byteCode[i] = input.readByte();
+						}
+						lists[listId].add(iid, byteCode);
+					} else {
+						for (int i = 0; i < numSubVectors; i++) {
+							shortCode[i] = input.readShort();
+						}
+						lists[listId].add(iid, shortCode);
+					}
+				}
+			};
+		}
+		int toIid = getLoadRangeEnd(iidToIvfpqDB);
+		int counter = readRecordsInParallel(iidToIvfpqDB, fromIid, toIid, consumers);
+
+		// concatenate the partial lists of each inverted list in partition (= internal id) order
+		for (int i = 0; i < numCoarseCentroids; i++) {
+			for (int p = 0; p < numLoadThreads; p++) {
+				if (partialLists[p][i] != null) {
+					invertedLists[i].addAll(partialLists[p][i]);
+					partialLists[p][i] = null;
+				}
+			}
+		}
+		long end = System.currentTimeMillis();
+		System.out.println(counter + " images loaded in " + (end - start) + " ms!");
+	}
+
+	/**
+	 * Writes the in-memory inverted lists to an immutable segment file that can later be opened with
+	 * {@link #loadIndexFromSegment(String)} much faster than loading the persistent index. The file consists
+	 * of:
+	 * <ul>
+	 * <li>a header with 6 ints: magic number, version, numCoarseCentroids, numSubVectors, bytes per sub-code
+	 * (1 or 2) and the number of vectors (= loadCounter at export time),</li>
+	 * <li>a list offset table with one (long offset, int size) entry per list,</li>
+	 * <li>one contiguous region per list (starting at its offset, aligned to 8 bytes) with the internal ids
+	 * of the list (ints) followed by their codes (bytes or shorts).</li>
+	 * </ul>
+	 * Indexing is blocked while the segment is written. Vectors indexed later are not part of the segment
+	 * and are loaded from the persistent index when the segment is opened.
+	 * 
+	 * @param filename
+	 *            Full path to the segment file
+	 * @throws Exception
+	 *             If the index is not loaded in memory
+	 */
+	public synchronized void exportSegment(String filename) throws Exception {
+		segmentLock.writeLock().lock(); // wait for the vectors that are being indexed
+		try {
+			writeSegment(filename);
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the in-memory index to the given segment file, see {@link #exportSegment(String)}.
+	 * 
+	 * @param filename
+	 *            Full path to the segment file
+	 * @throws Exception
+	 */
+	private void writeSegment(String filename) throws Exception {
+		if (!loadIndexInMemory) {
+			throw new Exception("Cannot export segment because the index is not loaded in memory!");
+		}
+		long start = System.currentTimeMillis();
+		int codeBytes = numProductCentroids <= 256 ? 1 : 2;
+		int[] sizes = new int[numCoarseCentroids];
+		long[] offsets = new long[numCoarseCentroids];
+		long offset = align(6 * 4 + numCoarseCentroids * (8 + 4));
+		for (int i = 0; i < numCoarseCentroids; i++) {
+			sizes[i] = invertedLists[i].size();
+			offsets[i] = offset;
+			offset = align(offset + (long) sizes[i] * (4 + numSubVectors * codeBytes));
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename),
+				1024 * 1024));
+		out.writeInt(SEGMENT_MAGIC);
+		out.writeInt(SEGMENT_VERSION);
+		out.writeInt(numCoarseCentroids);
+		out.writeInt(numSubVectors);
+		out.writeInt(codeBytes);
+		out.writeInt(loadCounter);
+		for (int i = 0; i < numCoarseCentroids; i++) {
+			out.writeLong(offsets[i]);
+			out.writeInt(sizes[i]);
+		}
+		// the position is tracked here because out.size() saturates at Integer.MAX_VALUE
+		long position = 6 * 4 + (long) numCoarseCentroids * (8 + 4);
+		for (int i = 0; i < numCoarseCentroids; i++) {
+			for (; position < offsets[i]; position++) { // padding
+				out.writeByte(0);
+			}
+			invertedLists[i].write(out, sizes[i]);
+			position += (long) sizes[i] * (4 + numSubVectors * codeBytes);
+		}
+		for (long end = align(position); position < end; position++) {
+			out.writeByte(0);
+		}
+		out.close();
+		System.out.println("Segment with " + loadCounter + " vectors written in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Opens the given segment file (see {@link #exportSegment(String)}) and serves the inverted lists
+	 * directly from the memory-mapped file, so that the index is ready as soon as the file is mapped and its
+	 * pages are read on demand (or served from the page cache after a restart). Any vectors that were indexed
+	 * after the segment was written are loaded from the persistent index. The mapped lists are copied to the
+	 * heap only if they are appended. This method should be called on an index that was constructed with
+	 * loadIndexInMemory set to false.
+	 * 
+	 * @param filename
+	 *            Full path to the segment file
+	 * @throws Exception
+	 *             If the index is already loaded in memory or the segment does not match this index
+	 */
+	public synchronized void loadIndexFromSegment(String filename) throws Exception {
+		segmentLock.writeLock().lock();
+		try {
+			mapSegment(filename);
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Maps the given segment file and loads the vectors indexed after it, see
+	 * {@link #loadIndexFromSegment(String)}.
+	 * 
+	 * @param filename
+	 *            Full path to the segment file
+	 * @throws Exception
+	 */
+	private void mapSegment(String filename) throws Exception {
+		if (loadIndexInMemory) {
+			throw new Exception("The index is already loaded in memory!");
+		}
+		long start = System.currentTimeMillis();
+		int codeBytes = numProductCentroids <= 256 ? 1 : 2;
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		FileChannel channel = file.getChannel();
+		int tableLength = 6 * 4 + numCoarseCentroids * (8 + 4);
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				Math.min(tableLength, channel.size()));
+		if (header.capacity() < tableLength || header.getInt() != SEGMENT_MAGIC
+				|| header.getInt() != SEGMENT_VERSION || header.getInt() != numCoarseCentroids
+				|| header.getInt() != numSubVectors || header.getInt() != codeBytes) {
+			file.close();
+			throw new Exception("The segment file does not match this index!");
+		}
+		int numVectors = header.getInt();
+
+		InvertedList[] lists = new InvertedList[numCoarseCentroids];
+		ByteBuffer mapping = null;
+		long mappingStart = 0;
+		for (int i = 0; i < numCoarseCentroids; i++) {
+			long offset = header.getLong();
+			int size = header.getInt();
+			if (size == 0) {
+				lists[i] = new InvertedList(numSubVectors, numProductCentroids > 256);
+				continue;
+			}
+			int idsLength = size * 4;
+			long length = idsLength + (long) size * numSubVectors * codeBytes;
+			if (mapping == null || offset + length > mappingStart + mapping.capacity()) {
+				mappingStart = offset;
+				long mappingLength = Math.min(SEGMENT_MAPPING_SIZE, channel.size() - offset);
+				mappingLength = Math.max(mappingLength, length);
+				if (mappingLength > Integer.MAX_VALUE || offset + mappingLength > channel.size()) {
+					file.close();
+					throw new Exception("List " + i + " of the segment file is too large or truncated!");
+				}
+				mapping = channel.map(FileChannel.MapMode.READ_ONLY, mappingStart, mappingLength);
+			}
+			int position = (int) (offset - mappingStart);
+			IntBuffer ids = slice(mapping, position, idsLength).asIntBuffer();
+			ByteBuffer codes = slice(mapping, position + idsLength, (int) (length - idsLength));
+			if (codeBytes == 1) {
+				lists[i] = new InvertedList(numSubVectors, size, ids, codes);
+			} else {
+				lists[i] = new InvertedList(numSubVectors, size, ids, codes.asShortBuffer());
+			}
+		}
+		file.close(); // the mappings remain valid after the channel is closed
+		invertedLists = lists;
+		loadIndexInMemory = true;
+		System.out.println("Segment with " + numVectors + " vectors mapped in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		// load the vectors that were indexed after the segment was written
+		loadIndexInMemory(numVectors);
+		countDeletedPerList();
+		if (useFastScan) {
+			convertInvertedLists();
+		}
+	}
+
+	/**
+	 * Returns a buffer that shares the given region of the given buffer.
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+		ByteBuffer region = buffer.duplicate();
+		region.position(position);
+		region.limit(position + length);
+		return region.slice();
+	}
+
+	/**
+	 * Rounds the given file position up to a multiple of 8.
+	 */
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
 	/**
 	 * This is a utility method that can be used to dump the contents of the iidToIvfpqDB to a txt file.<br>
 	 * Currently, only the list id of each item is dumped.
@@ -754,10 +2351,16 @@ public class IVFPQ extends AbstractSearchStructure {
 	/**
 	 * Appends the persistent index with the given (byte) code.
 	 * 
+	 * @param iid
+	 *            The internal id of the vector
+	 * @param listId
+	 *            The list where the vector is quantized
 	 * @param code
 	 *            The code
+	 * @param txn
+	 *            The transaction or null
 	 */
-	private void appendPersistentIndex(int listId, byte[] code) {
+	private void appendPersistentIndex(int iid, int listId, byte[] code, Transaction txn) {
 		// write id, listId and code
 		TupleOutput output = new TupleOutput();
 		output.writeInt(listId);
@@ -767,17 +2370,23 @@ public class IVFPQ extends AbstractSearchStructure {
 		DatabaseEntry data = new DatabaseEntry();
 		TupleBinding.outputToEntry(output, data);
 		DatabaseEntry key = new DatabaseEntry();
-		IntegerBinding.intToEntry(loadCounter, key);
-		iidToIvfpqDB.put(null, key, data);
+		IntegerBinding.intToEntry(iid, key);
+		iidToIvfpqDB.put(txn, key, data);
 	}
 
 	/**
 	 * Appends the persistent index with the given (short) code.
 	 * 
+	 * @param iid
+	 *            The internal id of the vector
+	 * @param listId
+	 *            The list where the vector is quantized
 	 * @param code
 	 *            The code
+	 * @param txn
+	 *            The transaction or null
 	 */
-	private void appendPersistentIndex(int listId, short[] code) {
+	private void appendPersistentIndex(int iid, int listId, short[] code, Transaction txn) {
 		// write id, listId and code
 		TupleOutput output = new TupleOutput();
 		output.writeInt(listId);
@@ -787,8 +2396,8 @@ public class IVFPQ extends AbstractSearchStructure {
 		DatabaseEntry data = new DatabaseEntry();
 		TupleBinding.outputToEntry(output, data);
 		DatabaseEntry key = new DatabaseEntry();
-		IntegerBinding.intToEntry(loadCounter, key);
-		iidToIvfpqDB.put(null, key, data);
+		IntegerBinding.intToEntry(iid, key);
+		iidToIvfpqDB.put(txn, key, data);
 	}
 
 	/**
@@ -867,25 +2476,239 @@ public class IVFPQ extends AbstractSearchStructure {
 		if (iid == -1) {
 			throw new Exception("Id does not exist!");
 		}
+		int listId = getInvertedListId(iid);
+		if (listId == -1) {
+			throw new Exception("Id does not exist!");
+		}
+		return listId;
+	}
 
+	/**
+	 * Returns the inverted list of the vector with the given internal id, as stored in the persistent index.
+	 * 
+	 * @param iid
+	 *            The internal id
+	 * @return The index of the list or -1 if the persistent index has no record for this internal id
+	 */
+	private int getInvertedListId(int iid) {
 		DatabaseEntry key = new DatabaseEntry();
 		IntegerBinding.intToEntry(iid, key);
 		DatabaseEntry data = new DatabaseEntry();
 		if ((iidToIvfpqDB.get(null, key, data, null) == OperationStatus.SUCCESS)) {
 			TupleInput input = TupleBinding.entryToInput(data);
-			int listId = input.readInt();
-			return listId;
-		} else {
-			throw new Exception("Id does not exist!");
+			return input.readInt();
+		}
+		return -1;
+	}
+
+	/**
+	 * Sets the fraction of deleted vectors in a list above which the list is compacted in the background.
+	 * 
+	 * @param compactionThreshold
+	 *            A fraction in (0,1]
+	 */
+	public void setCompactionThreshold(double compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Counts the deleted vectors that each (just loaded) inverted list still contains.
+	 */
+	private void countDeletedPerList() {
+		numDeletedPerList = new AtomicIntegerArray(numCoarseCentroids);
+		long[] deleted = tombstones;
+		if (deleted == null) {
+			return;
+		}
+		InvertedList[] lists = invertedLists;
+		for (int l = 0; l < numCoarseCentroids; l++) {
+			InvertedList list = lists[l];
+			int size = list.size();
+			for (int j = 0; j < size; j++) {
+				if (isDeleted(deleted, list.getId(j))) {
+					numDeletedPerList.incrementAndGet(l);
+				}
+			}
+		}
+	}
+
+	/**
+	 * If the index is loaded in memory, counts the deleted vector in its inverted list and schedules the
+	 * compaction of the list when the fraction of deleted vectors exceeds {@link #compactionThreshold}.
+	 * Otherwise, the record of the vector is removed from the persistent index right away.
+	 */
+	@Override
+	protected void deleteVectorInternal(int iid) throws Exception {
+		int listId = getInvertedListId(iid);
+		if (listId == -1) {
+			return;
+		}
+		if (!loadIndexInMemory) {
+			DatabaseEntry key = new DatabaseEntry();
+			IntegerBinding.intToEntry(iid, key);
+			iidToIvfpqDB.delete(null, key);
+			return;
+		}
+		int numDeleted = numDeletedPerList.incrementAndGet(listId);
+		if (numDeleted > compactionThreshold * invertedLists[listId].size()) {
+			scheduleCompaction(listId);
+		}
+	}
+
+	/**
+	 * Submits the compaction of the given list to the background thread, unless it is already scheduled.
+	 * 
+	 * @param listId
+	 *            The index of the list
+	 */
+	private void scheduleCompaction(final int listId) {
+		if (!scheduledCompactions.add(listId)) {
+			return;
+		}
+		getCompactionExecutor().submit(new Runnable() {
+			public void run() {
+				scheduledCompactions.remove(listId);
+				if (closing) {
+					return;
+				}
+				try {
+					compactList(listId);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Compacts all the inverted lists that contain deleted vectors and waits until they are compacted.
+	 * 
+	 * @throws Exception
+	 */
+	public void compact() throws Exception {
+		if (!loadIndexInMemory) {
+			return; // the persistent index is compacted on deletion
+		}
+		Future<Object> future = getCompactionExecutor().submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				for (int l = 0; l < numCoarseCentroids; l++) {
+					if (closing) {
+						throw new Exception("Compaction cancelled because the index is closed!");
+					}
+					if (numDeletedPerList.get(l) > 0) {
+						compactList(l);
+					}
+				}
+				return null;
+			}
+		});
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			throw new Exception("Compaction failed!", e.getCause());
 		}
 	}
 
+	/**
+	 * Replaces the given inverted list with a copy that does not contain the deleted vectors and removes
+	 * their records from the persistent index. The list is locked while the copy is made, so concurrent
+	 * appends to it wait, while searches keep scanning the original list until the copy is published. The
+	 * read lock of {@link #segmentLock} is held so that the lists are not exported or replaced meanwhile.
+	 * 
+	 * @param listId
+	 *            The index of the list
+	 * @throws Exception
+	 */
+	private void compactList(int listId) throws Exception {
+		long start = System.currentTimeMillis();
+		TIntArrayList removed = new TIntArrayList();
+		segmentLock.readLock().lock();
+		try {
+			long[] deleted = tombstones;
+			InvertedList list = invertedLists[listId];
+			synchronized (list) {
+				int size = list.size();
+				for (int j = 0; j < size; j++) {
+					int iid = list.getId(j);
+					if (isDeleted(deleted, iid)) {
+						removed.add(iid);
+					}
+				}
+				if (removed.isEmpty()) {
+					return;
+				}
+				InvertedList[] lists = invertedLists.clone();
+				lists[listId] = list.compact(deleted);
+				invertedLists = lists; // publish the compacted list
+				numDeletedPerList.addAndGet(listId, -removed.size());
+			}
+			DatabaseEntry key = new DatabaseEntry();
+			for (int i = 0; i < removed.size(); i++) {
+				IntegerBinding.intToEntry(removed.get(i), key);
+				iidToIvfpqDB.delete(null, key);
+			}
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+		System.out.println("List " + listId + " compacted, " + removed.size() + " deleted vectors removed in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Returns the background compaction thread, creating it if needed.
+	 * 
+	 * @return
+	 */
+	private synchronized ExecutorService getCompactionExecutor() {
+		if (compactionExecutor == null) {
+			compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ivfpq-compaction");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return compactionExecutor;
+	}
+
 	@Override
 	public void outputIndexingTimesInternal() {
 	}
 
+	@Override
+	protected void deleteRecordsInternal(int firstIid, int count) {
+		deleteRecords(iidToIvfpqDB, firstIid, firstIid + count);
+	}
+
+	/**
+	 * Cancels the compactions that have not started yet and waits (without a time limit) until a running
+	 * compaction finishes, since it writes to the persistent index, before closing the persistent index.
+	 */
 	@Override
 	public void closeInternal() {
+		closing = true;
+		ExecutorService executor;
+		synchronized (this) {
+			executor = compactionExecutor;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			boolean interrupted = false;
+			while (true) {
+				try {
+					if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+						break;
+					}
+					System.out.println("Waiting for the compaction of a list to finish before closing.");
+				} catch (InterruptedException e) {
+					interrupted = true; // the db should not be closed during a compaction anyway
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		iidToIvfpqDB.close();
 	}
 
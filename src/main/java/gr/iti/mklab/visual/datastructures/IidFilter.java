@@ -0,0 +1,44 @@
+package gr.iti.mklab.visual.datastructures;
+
+/**
+ * A filter over the internal ids of an index that restricts a nearest neighbor search to the vectors it
+ * accepts, e.g. the images of a collection or of a time window (see
+ * {@link AbstractSearchStructure#computeNearestNeighbors(int, double[], IidFilter)}). The filter is applied
+ * inside the scan of each index, before the distance of a vector is computed, so selective filters make
+ * queries cheaper. Subclasses should be safe for concurrent reads, as a filter may be shared by parallel
+ * scans. {@link IidSet} is an allow-list implementation backed by a bitset.
+ * 
+ * @author Eleftherios Spyromitros-Xioufis
+ *
+ */
+public abstract class IidFilter {
+
+	/**
+	 * Returns whether the vector with the given internal id should be considered by the search.
+	 * 
+	 * @param iid
+	 *            The internal id
+	 * @return
+	 */
+	public abstract boolean accept(int iid);
+
+	/**
+	 * Returns the smallest accepted internal id in [from, to) or to if there is none. Used by the indices
+	 * that scan the vectors in internal id order ({@link Linear} and {@link PQ}) to jump over the rejected
+	 * vectors. By default each internal id is tested with {@link #accept(int)}, subclasses that can skip
+	 * ranges of ids faster should override this method.
+	 * 
+	 * @param from
+	 *            The first internal id to test
+	 * @param to
+	 *            The end of the range (exclusive)
+	 * @return
+	 */
+	public int nextAccepted(int from, int to) {
+		while (from < to && !accept(from)) {
+			from++;
+		}
+		return from;
+	}
+
+}
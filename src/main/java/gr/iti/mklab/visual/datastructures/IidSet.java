@@ -0,0 +1,89 @@
+package gr.iti.mklab.visual.datastructures;
+
+import java.util.BitSet;
+
+/**
+ * An allow-list {@link IidFilter} backed by a bitset over internal ids. Sets of external ids can be converted
+ * with {@link AbstractSearchStructure#createIidSet(Iterable)}. The set should not be modified while it is used
+ * by a search.
+ * 
+ * @author Eleftherios Spyromitros-Xioufis
+ *
+ */
+public class IidSet extends IidFilter {
+
+	private final BitSet iids;
+
+	/**
+	 * Creates an empty set.
+	 */
+	public IidSet() {
+		iids = new BitSet();
+	}
+
+	/**
+	 * Creates a set that contains the given internal ids.
+	 * 
+	 * @param iids
+	 *            The internal ids
+	 */
+	public IidSet(int[] iids) {
+		this();
+		for (int iid : iids) {
+			add(iid);
+		}
+	}
+
+	/**
+	 * Adds the given internal id to the set.
+	 * 
+	 * @param iid
+	 *            The internal id
+	 */
+	public void add(int iid) {
+		iids.set(iid);
+	}
+
+	/**
+	 * Adds the internal ids in [from, to) to the set.
+	 * 
+	 * @param from
+	 *            The first internal id
+	 * @param to
+	 *            The end of the range (exclusive)
+	 */
+	public void add(int from, int to) {
+		iids.set(from, to);
+	}
+
+	/**
+	 * Removes the given internal id from the set.
+	 * 
+	 * @param iid
+	 *            The internal id
+	 */
+	public void remove(int iid) {
+		iids.clear(iid);
+	}
+
+	/**
+	 * Returns the number of internal ids in the set.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return iids.cardinality();
+	}
+
+	@Override
+	public boolean accept(int iid) {
+		return iids.get(iid);
+	}
+
+	@Override
+	public int nextAccepted(int from, int to) {
+		int next = iids.nextSetBit(from);
+		return next < 0 || next > to ? to : next;
+	}
+
+}
@@ -0,0 +1,534 @@
+package gr.iti.mklab.visual.datastructures;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * This class implements an inverted list of the {@link IVFPQ} index as a contiguous, growable arena of
+ * product quantization codes with the internal ids of the corresponding vectors stored alongside. The codes
+ * of all vectors of the list are kept in a single primitive array (the code of the j-th vector starts at
+ * position j*codeLength) so that list scans can read them in place without any allocation.<br>
+ * A list can also be backed by read-only buffers, typically regions of a memory-mapped segment file (see
+ * {@link IVFPQ#exportSegment(String)}). Such a list is copied to the heap arrays the first time it is
+ * appended.<br>
+ * A list can be scanned by any number of threads while a single thread (holding the monitor of the list)
+ * appends it. Appending is append-only: the new entry is written (to the current or to a larger copy of the
+ * backing arrays) before the volatile {@link #size} is incremented, and the backing arrays are published
+ * before the size. A reader that reads {@link #size()} first and the backing arrays (or buffers) afterwards
+ * therefore always sees at least size valid entries, without any locking. Changing the layout of a list
+ * ({@link #pack()} and {@link #unpack()}) also requires the monitor of the list. It is safe while the list
+ * is scanned, since the byte codes of either layout are published as a single {@link ByteCodes} holder
+ * that scans read once.
+ *
+ * @author Eleftherios Spyromitros-Xioufis
+ *
+ */
+public class InvertedList {
+
+	/**
+	 * The internal ids of the vectors in this list.
+	 */
+	private volatile int[] ids;
+
+	/**
+	 * The codes of the vectors in this list (in the plain or in the packed layout), used when the codes fit
+	 * in the byte range and the list is not mapped.
+	 */
+	private volatile ByteCodes byteCodes;
+
+	/**
+	 * The codes of the vectors in this list, used when the codes do not fit in the byte range.
+	 */
+	private volatile short[] shortCodes;
+
+	/**
+	 * Whether the list is backed by the mapped buffers. The buffers are kept after the list is copied to the
+	 * heap (see {@link #materialize()}), so that scans that started on them can complete.
+	 */
+	private volatile boolean mapped;
+
+	/**
+	 * The internal ids of the vectors in this list, used instead of {@link #ids} when the list is mapped.
+	 */
+	private IntBuffer mappedIds;
+
+	/**
+	 * The (byte) codes of the vectors in this list, used instead of {@link #byteCodes} when the list is
+	 * mapped.
+	 */
+	private ByteBuffer mappedByteCodes;
+
+	/**
+	 * The (short) codes of the vectors in this list, used instead of {@link #shortCodes} when the list is
+	 * mapped.
+	 */
+	private ShortBuffer mappedShortCodes;
+
+	/**
+	 * The length of each code (= number of sub-vectors).
+	 */
+	private final int codeLength;
+
+	/**
+	 * The number of vectors in this list. Incremented only after the new entries have been written.
+	 */
+	private volatile int size;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param codeLength
+	 *            The length of each code (= number of sub-vectors)
+	 * @param useShortCodes
+	 *            Whether the codes will be stored as shorts instead of bytes
+	 * @param initialCapacity
+	 *            The initial capacity of the list (in number of vectors)
+	 */
+	public InvertedList(int codeLength, boolean useShortCodes, int initialCapacity) {
+		this.codeLength = codeLength;
+		initialCapacity = Math.max(initialCapacity, 1);
+		ids = new int[initialCapacity];
+		if (useShortCodes) {
+			shortCodes = new short[initialCapacity * codeLength];
+		} else {
+			byteCodes = new ByteCodes(new byte[initialCapacity * codeLength], null);
+		}
+	}
+
+	/**
+	 * Constructor with a small default initial capacity.
+	 *
+	 * @param codeLength
+	 *            The length of each code (= number of sub-vectors)
+	 * @param useShortCodes
+	 *            Whether the codes will be stored as shorts instead of bytes
+	 */
+	public InvertedList(int codeLength, boolean useShortCodes) {
+		this(codeLength, useShortCodes, 10);
+	}
+
+	/**
+	 * Constructor of a list that is backed by the given (read-only) buffers of byte codes.
+	 * 
+	 * @param codeLength
+	 *            The length of each code (= number of sub-vectors)
+	 * @param size
+	 *            The number of vectors in the list
+	 * @param ids
+	 *            A buffer holding the internal ids of the vectors
+	 * @param codes
+	 *            A buffer holding the codes of the vectors
+	 */
+	public InvertedList(int codeLength, int size, IntBuffer ids, ByteBuffer codes) {
+		this.codeLength = codeLength;
+		this.size = size;
+		this.mappedIds = ids;
+		this.mappedByteCodes = codes;
+		this.mapped = true;
+	}
+
+	/**
+	 * Constructor of a list that is backed by the given (read-only) buffers of short codes.
+	 * 
+	 * @param codeLength
+	 *            The length of each code (= number of sub-vectors)
+	 * @param size
+	 *            The number of vectors in the list
+	 * @param ids
+	 *            A buffer holding the internal ids of the vectors
+	 * @param codes
+	 *            A buffer holding the codes of the vectors
+	 */
+	public InvertedList(int codeLength, int size, IntBuffer ids, ShortBuffer codes) {
+		this.codeLength = codeLength;
+		this.size = size;
+		this.mappedIds = ids;
+		this.mappedShortCodes = codes;
+		this.mapped = true;
+	}
+
+	/**
+	 * Appends the list with the given internal id and (byte) code.
+	 *
+	 * @param iid
+	 *            The internal id of the vector
+	 * @param code
+	 *            The code of the vector
+	 */
+	public void add(int iid, byte[] code) {
+		materialize();
+		int size = this.size;
+		ensureCapacity(size + 1);
+		ids[size] = iid;
+		ByteCodes byteCodes = this.byteCodes;
+		if (byteCodes.packedCodes != null) {
+			byteCodes.packedCodes.add(code);
+		} else {
+			System.arraycopy(code, 0, byteCodes.codes, size * codeLength, codeLength);
+		}
+		this.size = size + 1; // publish the new entry
+	}
+
+	/**
+	 * Appends the list with the given internal id and (short) code.
+	 *
+	 * @param iid
+	 *            The internal id of the vector
+	 * @param code
+	 *            The code of the vector
+	 */
+	public void add(int iid, short[] code) {
+		materialize();
+		int size = this.size;
+		ensureCapacity(size + 1);
+		ids[size] = iid;
+		System.arraycopy(code, 0, shortCodes, size * codeLength, codeLength);
+		this.size = size + 1; // publish the new entry
+	}
+
+	/**
+	 * Appends this list with all the vectors of the given list, in the same order. The given list should be
+	 * neither mapped nor packed.
+	 * 
+	 * @param list
+	 *            The list
+	 */
+	public void addAll(InvertedList list) {
+		materialize();
+		int size = this.size;
+		int count = list.size;
+		if (byteCodes != null && byteCodes.packedCodes != null) {
+			byte[] codes = list.byteCodes.codes;
+			for (int j = 0; j < count; j++) {
+				add(list.ids[j], Arrays.copyOfRange(codes, j * codeLength, (j + 1) * codeLength));
+			}
+			return;
+		}
+		ensureCapacity(size + count);
+		System.arraycopy(list.ids, 0, ids, size, count);
+		if (byteCodes != null) {
+			System.arraycopy(list.byteCodes.codes, 0, byteCodes.codes, size * codeLength, count * codeLength);
+		} else {
+			System.arraycopy(list.shortCodes, 0, shortCodes, size * codeLength, count * codeLength);
+		}
+		this.size = size + count; // publish the new entries
+	}
+
+	/**
+	 * Grows the backing arrays (at least doubling them) so that they can hold the given number of vectors.
+	 * The old arrays are left untouched, so concurrent scans that still use them remain valid.
+	 *
+	 * @param minCapacity
+	 *            The required capacity (in number of vectors)
+	 */
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity <= ids.length) {
+			return;
+		}
+		int newCapacity = Math.max(minCapacity, ids.length * 2);
+		ids = Arrays.copyOf(ids, newCapacity);
+		ByteCodes byteCodes = this.byteCodes;
+		if (byteCodes != null && byteCodes.codes != null) {
+			this.byteCodes = new ByteCodes(Arrays.copyOf(byteCodes.codes, newCapacity * codeLength), null);
+		} else if (shortCodes != null) {
+			shortCodes = Arrays.copyOf(shortCodes, newCapacity * codeLength);
+		}
+	}
+
+	/**
+	 * Copies the contents of a mapped list to heap arrays so that it can be appended. Does nothing if the
+	 * list is not mapped. The heap arrays are published before the list stops being mapped.
+	 */
+	private void materialize() {
+		if (!mapped) {
+			return;
+		}
+		int capacity = Math.max(size * 2, 10);
+		int[] heapIds = new int[capacity];
+		mappedIds.duplicate().get(heapIds, 0, size);
+		if (mappedByteCodes != null) {
+			byte[] heapCodes = new byte[capacity * codeLength];
+			mappedByteCodes.duplicate().get(heapCodes, 0, size * codeLength);
+			byteCodes = new ByteCodes(heapCodes, null);
+		} else {
+			short[] heapCodes = new short[capacity * codeLength];
+			mappedShortCodes.duplicate().get(heapCodes, 0, size * codeLength);
+			shortCodes = heapCodes;
+		}
+		ids = heapIds;
+		mapped = false;
+	}
+
+	/**
+	 * Writes the internal ids of the first size vectors of this list, followed by their codes (each byte
+	 * code in one byte, each short or packed code in the same representation as when not packed).
+	 * 
+	 * @param out
+	 *            The output
+	 * @param size
+	 *            The number of vectors to write
+	 * @throws IOException
+	 */
+	public void write(DataOutput out, int size) throws IOException {
+		for (int j = 0; j < size; j++) {
+			out.writeInt(getId(j));
+		}
+		boolean mapped = this.mapped;
+		ByteCodes byteCodes = mapped ? null : this.byteCodes;
+		for (int j = 0; j < size; j++) {
+			if (byteCodes != null && byteCodes.packedCodes != null) {
+				out.write(byteCodes.packedCodes.getByteCode(j));
+				continue;
+			}
+			for (int m = 0; m < codeLength; m++) {
+				int position = j * codeLength + m;
+				if (mapped && mappedByteCodes != null) {
+					out.writeByte(mappedByteCodes.get(position));
+				} else if (mapped) {
+					out.writeShort(mappedShortCodes.get(position));
+				} else if (byteCodes != null) {
+					out.writeByte(byteCodes.codes[position]);
+				} else {
+					out.writeShort(shortCodes[position]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy of this list (on the heap and in the same layout) without the vectors whose internal
+	 * ids are marked in the given tombstone bitset. This list is not modified.
+	 * 
+	 * @param tombstones
+	 *            The tombstone bitset (see {@link AbstractSearchStructure#tombstones})
+	 * @return The compacted copy
+	 */
+	public InvertedList compact(long[] tombstones) {
+		int size = this.size;
+		boolean mapped = this.mapped;
+		ByteCodes byteCodes = mapped ? null : this.byteCodes;
+		FastScanCodes packedCodes = byteCodes != null ? byteCodes.packedCodes : null;
+		boolean useShortCodes = mapped ? mappedShortCodes != null : shortCodes != null;
+		InvertedList compacted = new InvertedList(codeLength, useShortCodes, Math.max(size, 10));
+		if (packedCodes != null) {
+			compacted.byteCodes = new ByteCodes(null, new FastScanCodes(codeLength, compacted.ids.length));
+		}
+		for (int j = 0; j < size; j++) {
+			int iid = getId(j);
+			if (AbstractSearchStructure.isDeleted(tombstones, iid)) {
+				continue;
+			}
+			if (packedCodes != null) {
+				compacted.add(iid, packedCodes.getByteCode(j));
+			} else if (useShortCodes) {
+				short[] code = new short[codeLength];
+				if (mapped) {
+					ShortBuffer codes = mappedShortCodes.duplicate();
+					codes.position(j * codeLength);
+					codes.get(code);
+				} else {
+					System.arraycopy(shortCodes, j * codeLength, code, 0, codeLength);
+				}
+				compacted.add(iid, code);
+			} else {
+				byte[] code = new byte[codeLength];
+				if (mapped) {
+					ByteBuffer codes = mappedByteCodes.duplicate();
+					codes.position(j * codeLength);
+					codes.get(code);
+				} else {
+					System.arraycopy(byteCodes.codes, j * codeLength, code, 0, codeLength);
+				}
+				compacted.add(iid, code);
+			}
+		}
+		return compacted;
+	}
+
+	/**
+	 * Converts the (byte) codes of this list to the packed 4-bit layout of {@link FastScanCodes}. All codes
+	 * should be smaller than 16. Should be called holding the monitor of the list.
+	 * 
+	 * @throws Exception
+	 *             If the list uses short codes
+	 */
+	public void pack() throws Exception {
+		if (byteCodes != null && byteCodes.packedCodes != null) {
+			return;
+		}
+		materialize();
+		ByteCodes byteCodes = this.byteCodes;
+		if (byteCodes == null) {
+			throw new Exception("Only byte codes can be packed!");
+		}
+		FastScanCodes packed = new FastScanCodes(codeLength, ids.length);
+		for (int j = 0; j < size; j++) {
+			packed.add(Arrays.copyOfRange(byteCodes.codes, j * codeLength, (j + 1) * codeLength));
+		}
+		this.byteCodes = new ByteCodes(null, packed);
+	}
+
+	/**
+	 * Converts the packed codes of this list back to byte codes. Should be called holding the monitor of the
+	 * list.
+	 */
+	public void unpack() {
+		ByteCodes byteCodes = this.byteCodes;
+		if (byteCodes == null || byteCodes.packedCodes == null) {
+			return;
+		}
+		byte[] codes = new byte[ids.length * codeLength];
+		for (int j = 0; j < size; j++) {
+			System.arraycopy(byteCodes.packedCodes.getByteCode(j), 0, codes, j * codeLength, codeLength);
+		}
+		this.byteCodes = new ByteCodes(codes, null);
+	}
+
+	/**
+	 * Returns the number of vectors in this list.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the internal id of the vector at the given position of the list.
+	 *
+	 * @param index
+	 *            The position in the list
+	 * @return
+	 */
+	public int getId(int index) {
+		if (mapped) {
+			return mappedIds.get(index);
+		}
+		return ids[index];
+	}
+
+	/**
+	 * Returns the backing array of internal ids or null if the list is mapped. Only the first
+	 * {@link #size()} positions are valid, where size should be read before calling this method.
+	 *
+	 * @return
+	 */
+	public int[] getIds() {
+		return ids;
+	}
+
+	/**
+	 * Returns the (byte) codes of this list in their current layout or null if short codes are used or the
+	 * list is mapped. The holder should be read once per scan and after {@link #isMapped()}.
+	 *
+	 * @return
+	 */
+	public ByteCodes getByteCodes() {
+		return byteCodes;
+	}
+
+	/**
+	 * Returns the backing array of (short) codes or null if byte codes are used or the list is mapped. Only
+	 * the first {@link #size()}*codeLength positions are valid.
+	 *
+	 * @return
+	 */
+	public short[] getShortCodes() {
+		return shortCodes;
+	}
+
+	/**
+	 * Returns whether this list is backed by (read-only) buffers instead of heap arrays.
+	 * 
+	 * @return
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * Returns the buffer of internal ids of a mapped list. Only valid if {@link #isMapped()} returns true.
+	 * 
+	 * @return
+	 */
+	public IntBuffer getMappedIds() {
+		return mappedIds;
+	}
+
+	/**
+	 * Returns the buffer of (byte) codes of a mapped list, null if the list uses short codes. Only valid if
+	 * {@link #isMapped()} returns true.
+	 * 
+	 * @return
+	 */
+	public ByteBuffer getMappedByteCodes() {
+		return mappedByteCodes;
+	}
+
+	/**
+	 * Returns the buffer of (short) codes of a mapped list, null if the list uses byte codes. Only valid if
+	 * {@link #isMapped()} returns true.
+	 * 
+	 * @return
+	 */
+	public ShortBuffer getMappedShortCodes() {
+		return mappedShortCodes;
+	}
+
+	/**
+	 * Returns the length of each code of this list (= number of sub-vectors).
+	 * 
+	 * @return
+	 */
+	public int getCodeLength() {
+		return codeLength;
+	}
+
+	/**
+	 * The (byte) codes of a list in one of two layouts: plain, where the code of the j-th vector starts at
+	 * position j*codeLength of an array, or packed for fast-scan. A new holder is published whenever the
+	 * layout changes or the array is grown, so a reader that reads the holder once always sees a consistent
+	 * layout.
+	 */
+	public static class ByteCodes {
+
+		/**
+		 * The backing array of the codes, null if the codes are packed.
+		 */
+		private final byte[] codes;
+
+		/**
+		 * The packed codes, null if the codes are not packed.
+		 */
+		private final FastScanCodes packedCodes;
+
+		private ByteCodes(byte[] codes, FastScanCodes packedCodes) {
+			this.codes = codes;
+			this.packedCodes = packedCodes;
+		}
+
+		/**
+		 * Returns the backing array of the codes or null if the codes are packed. Only the first
+		 * {@link InvertedList#size()}*codeLength positions are valid.
+		 * 
+		 * @return
+		 */
+		public byte[] getCodes() {
+			return codes;
+		}
+
+		/**
+		 * Returns the packed codes or null if the codes are not packed.
+		 * 
+		 * @return
+		 */
+		public FastScanCodes getPackedCodes() {
+			return packedCodes;
+		}
+	}
+
+}
@@ -1,13 +1,14 @@
 package gr.iti.mklab.visual.datastructures;
 
 import gnu.trove.list.array.TDoubleArrayList;
-import gr.iti.mklab.visual.utilities.Result;
+import gnu.trove.list.array.TFloatArrayList;
+import gr.iti.mklab.visual.utilities.TopKCollector;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.util.concurrent.RecursiveAction;
 
-import com.aliasi.util.BoundedPriorityQueue;
 import com.sleepycat.bind.tuple.IntegerBinding;
 import com.sleepycat.bind.tuple.TupleBinding;
 import com.sleepycat.bind.tuple.TupleInput;
@@ -18,10 +19,11 @@ import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DiskOrderedCursorConfig;
 import com.sleepycat.je.ForwardCursor;
 import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
 
 /**
  * This class is used for indexing vectors and performing k-nearest neighbor queries with exhaustive linear
- * search.
+ * search. The vectors can be stored either as doubles or as floats (see {@link #useFloats}).
  * 
  * @author Eleftherios Spyromitros-Xioufis
  * 
@@ -29,10 +31,49 @@ import com.sleepycat.je.OperationStatus;
 public class Linear extends AbstractSearchStructure {
 
 	/**
-	 * The vectors are stored in this field. Note that we use a single TDoubleArrayList for all vectors.
+	 * The vectors are stored in this field. Note that we use a single TDoubleArrayList for all vectors. It is
+	 * allocated with a capacity of maxNumVectors vectors and is thus never reallocated, so searches can read
+	 * the first {@link #loadCounter} vectors while new vectors are appended.
 	 */
 	private TDoubleArrayList vectorsList;
 
+	/**
+	 * The vectors are stored in this field instead of {@link #vectorsList} when {@link #useFloats} is true.
+	 */
+	private TFloatArrayList floatVectorsList;
+
+	/**
+	 * Whether the vectors are stored as floats, both in memory and in the persistent index. This halves the
+	 * memory and the bandwidth needed by exhaustive search, at the cost of a precision loss that is
+	 * negligible for unit length vectors. Since persistent records of doubles and floats differ in size, an
+	 * existing persistent index can be loaded in either mode.
+	 */
+	private final boolean useFloats;
+
+	/**
+	 * The squared L2 norms of the vectors of the ram-based index, in internal id order. They are used by
+	 * batch search, which computes the squared distance between a vector x and a query q as ||x||^2 - 2x.q +
+	 * ||q||^2 (see {@link #computeNearestNeighborsInternal(int, double[][])}).
+	 */
+	private TDoubleArrayList squaredNorms;
+
+	/**
+	 * The number of queries of a batch that are compared with each block of vectors by a single task.
+	 */
+	public static final int QUERY_BLOCK_SIZE = 32;
+
+	/**
+	 * The approximate size in bytes of the blocks of vectors that are compared with a block of queries,
+	 * chosen so that a block fits in the L2 cache of a core and is read from memory once per block of queries.
+	 */
+	public static final int VECTOR_BLOCK_BYTES = 256 * 1024;
+
+	/**
+	 * The maximum number of elements of the array that holds the ram-based index (some JVMs reserve a few
+	 * header words in arrays).
+	 */
+	public static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
 	/**
 	 * Whether to use a disk ordered cursor or not. This setting changes how fast the index will be loaded in
 	 * main memory.
@@ -62,11 +103,18 @@ public class Linear extends AbstractSearchStructure {
 	 *            Whether the load counter will be initialized by the size of the persistent store
 	 * @param loadCounter
 	 *            The initial value of the load counter
+	 * @param useFloats
+	 *            Whether to store the vectors as floats instead of doubles
+	 * @param numLoadThreads
+	 *            The number of threads used for loading the persistent index in memory
 	 * @throws Exception
 	 */
 	public Linear(int vectorLength, int maxNumVectors, boolean readOnly, String BDBEnvHome,
-			boolean loadIndexInMemory, boolean countSizeOnLoad, int loadCounter) throws Exception {
+			boolean loadIndexInMemory, boolean countSizeOnLoad, int loadCounter, boolean useFloats,
+			int numLoadThreads) throws Exception {
 		super(vectorLength, maxNumVectors, readOnly, countSizeOnLoad, loadCounter, loadIndexInMemory);
+		this.useFloats = useFloats;
+		setNumLoadThreads(numLoadThreads);
 		createOrOpenBDBEnvAndDbs(BDBEnvHome);
 		// configuration of the persistent index
 		DatabaseConfig dbConf = new DatabaseConfig();
@@ -77,11 +125,78 @@ public class Linear extends AbstractSearchStructure {
 
 		if (loadIndexInMemory) {// load the existing persistent index in memory
 			// create the memory objects with the appropriate initial size
-			vectorsList = new TDoubleArrayList(maxNumVectors * vectorLength);
+			long capacity = (long) maxNumVectors * vectorLength;
+			if (capacity > MAX_ARRAY_LENGTH) {
+				throw new Exception("The ram-based index of " + maxNumVectors + " vectors of length "
+						+ vectorLength + " needs " + capacity
+						+ " elements, more than the maximum array length (" + MAX_ARRAY_LENGTH
+						+ "), a smaller maxNumVectors should be used!");
+			}
+			if (useFloats) {
+				floatVectorsList = new TFloatArrayList((int) capacity);
+			} else {
+				vectorsList = new TDoubleArrayList((int) capacity);
+			}
+			squaredNorms = new TDoubleArrayList(maxNumVectors);
 			loadIndexInMemory();
 		}
 	}
 
+	/**
+	 * Advanced constructor that loads the persistent index with one thread per available processor.
+	 * 
+	 * @param vectorLength
+	 *            The dimensionality of the VLAD vectors being indexed
+	 * @param maxNumVectors
+	 *            The maximum allowable size (number of vectors) of the index
+	 * @param readOnly
+	 *            If true the persistent store will opened only for read access (allows multiple opens)
+	 * @param BDBEnvHome
+	 *            The BDB environment home directory
+	 * @param loadIndexInMemory
+	 *            Whether to load the index in memory, we can avoid loading the index in memory when we only
+	 *            want to perform indexing
+	 * @param countSizeOnLoad
+	 *            Whether the load counter will be initialized by the size of the persistent store
+	 * @param loadCounter
+	 *            The initial value of the load counter
+	 * @param useFloats
+	 *            Whether to store the vectors as floats instead of doubles
+	 * @throws Exception
+	 */
+	public Linear(int vectorLength, int maxNumVectors, boolean readOnly, String BDBEnvHome,
+			boolean loadIndexInMemory, boolean countSizeOnLoad, int loadCounter, boolean useFloats)
+			throws Exception {
+		this(vectorLength, maxNumVectors, readOnly, BDBEnvHome, loadIndexInMemory, countSizeOnLoad,
+				loadCounter, useFloats, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Advanced constructor that stores the vectors as doubles.
+	 * 
+	 * @param vectorLength
+	 *            The dimensionality of the VLAD vectors being indexed
+	 * @param maxNumVectors
+	 *            The maximum allowable size (number of vectors) of the index
+	 * @param readOnly
+	 *            If true the persistent store will opened only for read access (allows multiple opens)
+	 * @param BDBEnvHome
+	 *            The BDB environment home directory
+	 * @param loadIndexInMemory
+	 *            Whether to load the index in memory, we can avoid loading the index in memory when we only
+	 *            want to perform indexing
+	 * @param countSizeOnLoad
+	 *            Whether the load counter will be initialized by the size of the persistent store
+	 * @param loadCounter
+	 *            The initial value of the load counter
+	 * @throws Exception
+	 */
+	public Linear(int vectorLength, int maxNumVectors, boolean readOnly, String BDBEnvHome,
+			boolean loadIndexInMemory, boolean countSizeOnLoad, int loadCounter) throws Exception {
+		this(vectorLength, maxNumVectors, readOnly, BDBEnvHome, loadIndexInMemory, countSizeOnLoad,
+				loadCounter, false);
+	}
+
 	/**
 	 * Simple constructor.
 	 * 
@@ -113,34 +228,92 @@ public class Linear extends AbstractSearchStructure {
 			throw new Exception("The dimensionality of the vector is wrong!");
 		}
 		// append the persistent index
-		appendPersistentIndex(vector);
+		appendPersistentIndex(loadCounter, vector, null);
 		// append the ram-based index
 		if (loadIndexInMemory) {
+			appendMemoryIndex(vector);
+		}
+	}
+
+	@Override
+	protected void indexVectorsInternal(int firstIid, double[][] vectors, Transaction txn) {
+		// there is nothing to encode, the vectors are appended in internal id order
+		for (int i = 0; i < vectors.length; i++) {
+			appendPersistentIndex(firstIid + i, vectors[i], txn);
+			if (loadIndexInMemory) {
+				appendMemoryIndex(vectors[i]);
+			}
+		}
+	}
+
+	/**
+	 * Appends the ram-based index with the given vector, converting it to floats if {@link #useFloats} is
+	 * true.
+	 * 
+	 * @param vector
+	 *            The vector
+	 */
+	private void appendMemoryIndex(double[] vector) {
+		if (useFloats) {
+			float[] floatVector = new float[vectorLength];
+			for (int i = 0; i < vectorLength; i++) {
+				floatVector[i] = (float) vector[i];
+			}
+			floatVectorsList.add(floatVector);
+		} else {
 			vectorsList.add(vector);
 		}
+		appendSquaredNorm(squaredNorms.size());
+	}
+
+	/**
+	 * Appends {@link #squaredNorms} with the squared norm of the vector with the given internal id, as it is
+	 * stored in the ram-based index.
+	 * 
+	 * @param iid
+	 *            The internal id of the vector
+	 */
+	private void appendSquaredNorm(int iid) {
+		int startIndex = iid * vectorLength;
+		double squaredNorm = 0;
+		for (int j = 0; j < vectorLength; j++) {
+			double value = useFloats ? floatVectorsList.getQuick(startIndex + j) : vectorsList
+					.getQuick(startIndex + j);
+			squaredNorm += value * value;
+		}
+		squaredNorms.add(squaredNorm);
 	}
 
 	/**
 	 * Computes the k-nearest neighbors of the given query vector. The search is exhaustive but includes some
-	 * optimizations that make it faster, especially for high dimensional vectors.
+	 * optimizations that make it faster, especially for high dimensional vectors. Only the vectors accepted
+	 * by the filter are visited.
 	 * 
 	 * @param k
 	 *            The number of nearest neighbors to be returned
 	 * @param queryVector
 	 *            The query vector
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
 	 * 
-	 * @return A bounded priority queue of Result objects, which contains the k nearest neighbors along with
-	 *         their iids and distances from the query vector, ordered by lowest distance.
+	 * @return A collector of the k nearest neighbors along with their iids and distances from the query
+	 *         vector.
 	 * @throws Exception
 	 *             If the index is not loaded in memory
 	 * 
 	 */
-	protected BoundedPriorityQueue<Result> computeNearestNeighborsInternal(int k, double[] queryVector)
+	protected TopKCollector computeNearestNeighborsInternal(int k, double[] queryVector, IidFilter filter)
 			throws Exception {
-		BoundedPriorityQueue<Result> nn = new BoundedPriorityQueue<Result>(new Result(), k);
+		if (useFloats) {
+			return computeNearestNeighborsFloat(k, queryVector, filter);
+		}
+		TopKCollector nn = new TopKCollector(k);
 
 		double lowest = Double.MAX_VALUE;
-		for (int i = 0; i < (vectorsList.size() / vectorLength); i++) {
+		int numVectors = loadCounter; // vectors indexed after this point are not searched
+		long[] deleted = tombstones; // null if no vector has been deleted
+		for (int i = nextCandidate(filter, 0, numVectors); i < numVectors; i = nextCandidate(filter, i + 1,
+				numVectors)) {
 			boolean skip = false;
 			int startIndex = i * vectorLength;
 			double l2distance = 0;
@@ -152,16 +325,224 @@ public class Linear extends AbstractSearchStructure {
 					break;
 				}
 			}
-			if (!skip) {
-				nn.offer(new Result(i, l2distance));
-				if (i >= k) {
-					lowest = nn.last().getDistance();
+			if (!skip && !isDeleted(deleted, i)) {
+				if (nn.offer(i, l2distance)) {
+					lowest = nn.threshold();
+				}
+			}
+		}
+		return nn;
+	}
+
+	/**
+	 * Computes the k-nearest neighbors of the given query vector when the vectors are stored as floats. The
+	 * query is converted to floats once and the distances are accumulated in single precision.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to be returned
+	 * @param queryVector
+	 *            The query vector
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @return A collector of the k nearest neighbors along with their iids and distances from the query
+	 *         vector.
+	 */
+	private TopKCollector computeNearestNeighborsFloat(int k, double[] queryVector, IidFilter filter) {
+		TopKCollector nn = new TopKCollector(k);
+		float[] query = new float[vectorLength];
+		for (int j = 0; j < vectorLength; j++) {
+			query[j] = (float) queryVector[j];
+		}
+
+		double lowest = Double.MAX_VALUE;
+		int numVectors = loadCounter; // vectors indexed after this point are not searched
+		long[] deleted = tombstones; // null if no vector has been deleted
+		for (int i = nextCandidate(filter, 0, numVectors); i < numVectors; i = nextCandidate(filter, i + 1,
+				numVectors)) {
+			boolean skip = false;
+			int startIndex = i * vectorLength;
+			float l2distance = 0;
+			for (int j = 0; j < vectorLength; j++) {
+				float diff = query[j] - floatVectorsList.getQuick(startIndex + j);
+				l2distance += diff * diff;
+				if (l2distance > lowest) {
+					skip = true;
+					break;
+				}
+			}
+			if (!skip && !isDeleted(deleted, i)) {
+				if (nn.offer(i, l2distance)) {
+					lowest = nn.threshold();
 				}
 			}
 		}
 		return nn;
 	}
 
+	/**
+	 * Computes the k-nearest neighbors of each of the given query vectors with exact search. Instead of
+	 * scanning the index once per query, the queries are split in blocks of {@link #QUERY_BLOCK_SIZE} that
+	 * are processed in parallel by the workers of the search pool (see {@link #getSearchPool()}). Each block
+	 * of queries is compared with blocks of about {@link #VECTOR_BLOCK_BYTES} bytes of vectors, so that each
+	 * block of vectors is read from memory once and reused from the cache by all queries of the block. The
+	 * squared distances are computed as ||x||^2 - 2x.q + ||q||^2 with the precomputed {@link #squaredNorms},
+	 * so they can differ from the distances of single query search in the last digits.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to be returned for each query
+	 * @param queryVectors
+	 *            The query vectors
+	 * @return One collector of the k nearest neighbors per query
+	 * @throws Exception
+	 */
+	protected TopKCollector[] computeNearestNeighborsInternal(int k, double[][] queryVectors)
+			throws Exception {
+		if (queryVectors.length < 2) {
+			return super.computeNearestNeighborsInternal(k, queryVectors);
+		}
+		for (double[] queryVector : queryVectors) {
+			if (queryVector.length != vectorLength) {
+				throw new Exception("The dimensionality of the query vector is wrong!");
+			}
+		}
+		TopKCollector[] nns = new TopKCollector[queryVectors.length];
+		int numQueryBlocks = (queryVectors.length + QUERY_BLOCK_SIZE - 1) / QUERY_BLOCK_SIZE;
+		int numVectors = loadCounter; // vectors indexed after this point are not searched
+		getSearchPool().invoke(new QueryBlockTask(k, queryVectors, numVectors, nns, 0, numQueryBlocks));
+		return nns;
+	}
+
+	/**
+	 * This task compares a range of the blocks of queries of a batch with all vectors, splitting it in halves
+	 * until each task processes a single block of queries. Each task writes the collectors of its own
+	 * queries.
+	 */
+	private class QueryBlockTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int k;
+		private final double[][] queryVectors;
+		private final int numVectors;
+		private final TopKCollector[] nns;
+		private final int fromBlock;
+		private final int toBlock;
+
+		QueryBlockTask(int k, double[][] queryVectors, int numVectors, TopKCollector[] nns, int fromBlock,
+				int toBlock) {
+			this.k = k;
+			this.queryVectors = queryVectors;
+			this.numVectors = numVectors;
+			this.nns = nns;
+			this.fromBlock = fromBlock;
+			this.toBlock = toBlock;
+		}
+
+		@Override
+		protected void compute() {
+			if (toBlock - fromBlock > 1) {
+				int mid = (fromBlock + toBlock) >>> 1;
+				invokeAll(new QueryBlockTask(k, queryVectors, numVectors, nns, fromBlock, mid),
+						new QueryBlockTask(k, queryVectors, numVectors, nns, mid, toBlock));
+				return;
+			}
+			int from = fromBlock * QUERY_BLOCK_SIZE;
+			int to = Math.min(from + QUERY_BLOCK_SIZE, queryVectors.length);
+			scanQueryBlock(k, queryVectors, from, to, numVectors, nns);
+		}
+	}
+
+	/**
+	 * Compares the queries from (inclusive) to to (exclusive) of a batch with the first numVectors vectors of
+	 * the index, one block of vectors at a time, and stores the k nearest neighbors of each query in the
+	 * given array.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to be returned for each query
+	 * @param queryVectors
+	 *            The query vectors of the batch
+	 * @param from
+	 *            The first query of the block
+	 * @param to
+	 *            The query after the last query of the block
+	 * @param numVectors
+	 *            The number of vectors to search
+	 * @param nns
+	 *            The collectors of the batch
+	 */
+	private void scanQueryBlock(int k, double[][] queryVectors, int from, int to, int numVectors,
+			TopKCollector[] nns) {
+		double[] queryNorms = new double[to - from];
+		for (int q = from; q < to; q++) {
+			nns[q] = new TopKCollector(k);
+			queryNorms[q - from] = innerProduct(queryVectors[q], 0, queryVectors[q], 0, vectorLength);
+		}
+		int blockSize = Math.max(VECTOR_BLOCK_BYTES / (vectorLength * 8), 1);
+		double[] block = new double[blockSize * vectorLength];
+		long[] deleted = tombstones; // null if no vector has been deleted
+		for (int blockStart = 0; blockStart < numVectors; blockStart += blockSize) {
+			int blockEnd = Math.min(blockStart + blockSize, numVectors);
+			// copy the block into a contiguous array of doubles that stays in the cache for all queries
+			int blockLength = (blockEnd - blockStart) * vectorLength;
+			int startIndex = blockStart * vectorLength;
+			if (useFloats) {
+				for (int j = 0; j < blockLength; j++) {
+					block[j] = floatVectorsList.getQuick(startIndex + j);
+				}
+			} else {
+				for (int j = 0; j < blockLength; j++) {
+					block[j] = vectorsList.getQuick(startIndex + j);
+				}
+			}
+			for (int q = from; q < to; q++) {
+				double[] queryVector = queryVectors[q];
+				double queryNorm = queryNorms[q - from];
+				TopKCollector nn = nns[q];
+				for (int i = blockStart; i < blockEnd; i++) {
+					if (isDeleted(deleted, i)) {
+						continue;
+					}
+					double product = innerProduct(block, (i - blockStart) * vectorLength, queryVector, 0,
+							vectorLength);
+					// rounding can make the distance of (near) duplicates slightly negative
+					double l2distance = Math.max(squaredNorms.getQuick(i) - 2 * product + queryNorm, 0);
+					nn.offer(i, l2distance);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the inner product of the given ranges of two arrays. The sum is split in four independent
+	 * partial sums, so that consecutive multiply-adds do not wait for each other.
+	 * 
+	 * @param a
+	 *            The first array
+	 * @param aStart
+	 *            The start of the range of the first array
+	 * @param b
+	 *            The second array
+	 * @param bStart
+	 *            The start of the range of the second array
+	 * @param length
+	 *            The length of the ranges
+	 * @return The inner product
+	 */
+	private static double innerProduct(double[] a, int aStart, double[] b, int bStart, int length) {
+		double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+		int j = 0;
+		for (; j + 3 < length; j += 4) {
+			sum0 += a[aStart + j] * b[bStart + j];
+			sum1 += a[aStart + j + 1] * b[bStart + j + 1];
+			sum2 += a[aStart + j + 2] * b[bStart + j + 2];
+			sum3 += a[aStart + j + 3] * b[bStart + j + 3];
+		}
+		for (; j < length; j++) {
+			sum0 += a[aStart + j] * b[bStart + j];
+		}
+		return (sum0 + sum1) + (sum2 + sum3);
+	}
+
 	/**
 	 * Computes the k-nearest neighbors of the vector with the given internal id. The search is exhaustive but
 	 * includes some optimizations that make it faster, especially for high dimensional vectors.
@@ -170,17 +551,59 @@ public class Linear extends AbstractSearchStructure {
 	 *            The number of nearest neighbors to be returned
 	 * @param queryVector
 	 *            The internal id of the query vector
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
 	 * 
-	 * @return A bounded priority queue of Result objects, which contains the k nearest neighbors along with
-	 *         their iids and distances from the vector with the given internal id, ordered by lowest
-	 *         distance.
+	 * @return A collector of the k nearest neighbors along with their iids and distances from the vector
+	 *         with the given internal id.
 	 * @throws Exception
 	 *             If the index is not loaded in memory
 	 * 
 	 */
-	protected BoundedPriorityQueue<Result> computeNearestNeighborsInternal(int k, int iid) throws Exception {
+	protected TopKCollector computeNearestNeighborsInternal(int k, int iid, IidFilter filter)
+			throws Exception {
 		double[] queryVector = getVector(iid); // get the vector with this internal id
-		return computeNearestNeighborsInternal(k, queryVector);
+		return computeNearestNeighborsInternal(k, queryVector, filter);
+	}
+
+	/**
+	 * Computes the exact squared Euclidean distances between the given query vector and the vectors with the
+	 * given internal ids. The vectors are taken either from the ram-based or from the disk-based index.
+	 *
+	 * @param queryVector
+	 *            The query vector
+	 * @param iids
+	 *            The internal ids of the vectors
+	 * @return The distances, in the order of the internal ids
+	 * @throws Exception
+	 *             If an internal id does not exist
+	 */
+	public double[] computeDistances(double[] queryVector, int[] iids) throws Exception {
+		double[] distances = new double[iids.length];
+		for (int i = 0; i < iids.length; i++) {
+			if (loadIndexInMemory && useFloats) {
+				int startIndex = iids[i] * vectorLength;
+				for (int j = 0; j < vectorLength; j++) {
+					double diff = queryVector[j] - floatVectorsList.getQuick(startIndex + j);
+					distances[i] += diff * diff;
+				}
+			} else if (loadIndexInMemory) {
+				int startIndex = iids[i] * vectorLength;
+				for (int j = 0; j < vectorLength; j++) {
+					distances[i] += (queryVector[j] - vectorsList.getQuick(startIndex + j))
+							* (queryVector[j] - vectorsList.getQuick(startIndex + j));
+				}
+			} else {
+				double[] vector = getVector(iids[i]);
+				if (vector == null) {
+					throw new Exception("Vector with internal id " + iids[i] + " was not found!");
+				}
+				for (int j = 0; j < vectorLength; j++) {
+					distances[i] += (queryVector[j] - vector[j]) * (queryVector[j] - vector[j]);
+				}
+			}
+		}
+		return distances;
 	}
 
 	/**
@@ -189,6 +612,19 @@ public class Linear extends AbstractSearchStructure {
 	 * @throws Exception
 	 */
 	private void loadIndexInMemory() throws Exception {
+		if (numLoadThreads > 1 && !useDiskOrderedCursor) {
+			loadIndexInMemoryInParallel();
+		} else {
+			loadIndexInMemorySequentially();
+		}
+	}
+
+	/**
+	 * Loads the persistent index in memory by iterating over its records with a single cursor.
+	 * 
+	 * @throws Exception
+	 */
+	private void loadIndexInMemorySequentially() throws Exception {
 		long start = System.currentTimeMillis();
 		System.out.println("Loading persistent index in memory.");
 
@@ -203,16 +639,21 @@ public class Linear extends AbstractSearchStructure {
 			cursor = iidToVectorDB.openCursor(null, null);
 		}
 
+		// the records are decoded straight to the element type of the ram-based index
+		float[] floatVector = new float[vectorLength];
+		double[] vector = new double[vectorLength];
+		int toIid = getLoadRangeEnd(iidToVectorDB);
 		int counter = 0;
-		while (cursor.getNext(foundKey, foundData, null) == OperationStatus.SUCCESS
-				&& counter < maxNumVectors) {
-			TupleInput input = TupleBinding.entryToInput(foundData);
-			double[] vector = new double[vectorLength];
-			for (int i = 0; i < vectorLength; i++) {
-				vector[i] = input.readDouble();
-			}
+		while (cursor.getNext(foundKey, foundData, null) == OperationStatus.SUCCESS && counter < toIid) {
 			// update ram based index
-			vectorsList.add(vector);
+			if (useFloats) {
+				readVector(TupleBinding.entryToInput(foundData), floatVector);
+				floatVectorsList.add(floatVector);
+			} else {
+				readVector(TupleBinding.entryToInput(foundData), vector);
+				vectorsList.add(vector);
+			}
+			appendSquaredNorm(counter);
 			counter++;
 			if (counter % 1000 == 0) {
 				System.out.println(counter + " vectors loaded in memory!");
@@ -223,22 +664,132 @@ public class Linear extends AbstractSearchStructure {
 		System.out.println(counter + " vectors loaded in " + (end - start) + " ms!");
 	}
 
+	/**
+	 * Loads the persistent index in memory using {@link #numLoadThreads} threads. The ram-based index is
+	 * first extended to its final size and each thread then reads a contiguous range of internal ids directly
+	 * into its place, so no intermediate copies of the vectors are made. If the internal ids of the
+	 * persistent index turn out not to be consecutive, the vectors are discarded and the index is loaded
+	 * sequentially instead.
+	 * 
+	 * @throws Exception
+	 */
+	private void loadIndexInMemoryInParallel() throws Exception {
+		long start = System.currentTimeMillis();
+		System.out.println("Loading persistent index in memory with " + numLoadThreads + " threads.");
+
+		int toIid = getLoadRangeEnd(iidToVectorDB);
+		if (useFloats) {
+			floatVectorsList.fill(0, toIid * vectorLength, 0);
+		} else {
+			vectorsList.fill(0, toIid * vectorLength, 0);
+		}
+		RecordConsumer[] consumers = new RecordConsumer[numLoadThreads];
+		for (int p = 0; p < numLoadThreads; p++) {
+			consumers[p] = new RecordConsumer() {
+				private final float[] floatVector = new float[vectorLength];
+				private final double[] vector = new double[vectorLength];
+
+				public void consume(int iid, TupleInput input) {
+					if (useFloats) {
+						readVector(input, floatVector);
+						floatVectorsList.set(iid * vectorLength, floatVector);
+					} else {
+						readVector(input, vector);
+						vectorsList.set(iid * vectorLength, vector);
+					}
+				}
+			};
+		}
+		int counter = readRecordsInParallel(iidToVectorDB, 0, toIid, consumers);
+		if (counter != toIid) {
+			System.out.println("The internal ids of the persistent index are not consecutive, "
+					+ "loading it with a single thread.");
+			// discard the vectors read so far
+			if (useFloats) {
+				floatVectorsList = new TFloatArrayList(maxNumVectors * vectorLength);
+			} else {
+				vectorsList = new TDoubleArrayList(maxNumVectors * vectorLength);
+			}
+			loadIndexInMemorySequentially();
+			return;
+		}
+		for (int iid = 0; iid < toIid; iid++) {
+			appendSquaredNorm(iid);
+		}
+		long end = System.currentTimeMillis();
+		System.out.println(counter + " vectors loaded in " + (end - start) + " ms!");
+	}
+
 	/**
 	 * Appends the persistent index with the given vector.
 	 * 
+	 * @param iid
+	 *            The internal id of the vector
 	 * @param vector
 	 *            The vector
+	 * @param txn
+	 *            The transaction or null
 	 */
-	private void appendPersistentIndex(double[] vector) {
+	private void appendPersistentIndex(int iid, double[] vector, Transaction txn) {
 		TupleOutput output = new TupleOutput();
 		for (int i = 0; i < vectorLength; i++) {
-			output.writeDouble(vector[i]);
+			if (useFloats) {
+				output.writeFloat((float) vector[i]);
+			} else {
+				output.writeDouble(vector[i]);
+			}
 		}
 		DatabaseEntry data = new DatabaseEntry();
 		TupleBinding.outputToEntry(output, data);
 		DatabaseEntry key = new DatabaseEntry();
-		IntegerBinding.intToEntry(loadCounter, key);
-		iidToVectorDB.put(null, key, data);
+		IntegerBinding.intToEntry(iid, key);
+		iidToVectorDB.put(txn, key, data);
+	}
+
+	/**
+	 * Reads a vector from the given persistent record. Records of floats are recognized by their size, so
+	 * that records written in either mode can be read.
+	 * 
+	 * @param input
+	 *            The record
+	 * @return The vector
+	 */
+	private double[] readVector(TupleInput input) {
+		double[] vector = new double[vectorLength];
+		readVector(input, vector);
+		return vector;
+	}
+
+	/**
+	 * Reads a vector from the given persistent record into the given array, see
+	 * {@link #readVector(TupleInput)}.
+	 * 
+	 * @param input
+	 *            The record
+	 * @param vector
+	 *            The array of length vectorLength to fill
+	 */
+	private void readVector(TupleInput input, double[] vector) {
+		boolean floatRecord = input.available() == vectorLength * 4;
+		for (int i = 0; i < vectorLength; i++) {
+			vector[i] = floatRecord ? input.readFloat() : input.readDouble();
+		}
+	}
+
+	/**
+	 * Reads a vector from the given persistent record into the given array of floats, without an
+	 * intermediate array of doubles. Records of doubles are narrowed to floats.
+	 * 
+	 * @param input
+	 *            The record
+	 * @param vector
+	 *            The array of length vectorLength to fill
+	 */
+	private void readVector(TupleInput input, float[] vector) {
+		boolean floatRecord = input.available() == vectorLength * 4;
+		for (int i = 0; i < vectorLength; i++) {
+			vector[i] = floatRecord ? input.readFloat() : (float) input.readDouble();
+		}
 	}
 
 	/**
@@ -256,7 +807,11 @@ public class Linear extends AbstractSearchStructure {
 			return null;
 		}
 		double[] vector = new double[vectorLength];
-		if (loadIndexInMemory) {
+		if (loadIndexInMemory && useFloats) {
+			for (int i = 0; i < vectorLength; i++) {
+				vector[i] = floatVectorsList.getQuick(iid * vectorLength + i);
+			}
+		} else if (loadIndexInMemory) {
 			for (int i = 0; i < vectorLength; i++) {
 				vector[i] = vectorsList.getQuick(iid * vectorLength + i);
 			}
@@ -266,10 +821,7 @@ public class Linear extends AbstractSearchStructure {
 			IntegerBinding.intToEntry(iid, key);
 			DatabaseEntry foundData = new DatabaseEntry();
 			if (iidToVectorDB.get(null, key, foundData, null) == OperationStatus.SUCCESS) {
-				TupleInput input = TupleBinding.entryToInput(foundData);
-				for (int i = 0; i < vectorLength; i++) {
-					vector[i] = input.readDouble();
-				}
+				vector = readVector(TupleBinding.entryToInput(foundData));
 			} else {
 				System.out.println("Internal id " + iid + " is in range but vector was not found..");
 				System.out.println("Index is probably corrupted");
@@ -280,6 +832,11 @@ public class Linear extends AbstractSearchStructure {
 		return vector;
 	}
 
+	@Override
+	protected void deleteRecordsInternal(int firstIid, int count) {
+		deleteRecords(iidToVectorDB, firstIid, firstIid + count);
+	}
+
 	@Override
 	protected void closeInternal() {
 		iidToVectorDB.close();
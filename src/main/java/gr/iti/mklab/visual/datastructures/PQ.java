@@ -2,16 +2,20 @@ package gr.iti.mklab.visual.datastructures;
 
 import gnu.trove.list.array.TByteArrayList;
 import gnu.trove.list.array.TShortArrayList;
+import gr.iti.mklab.visual.utilities.LearnedRotation;
 import gr.iti.mklab.visual.utilities.RandomPermutation;
 import gr.iti.mklab.visual.utilities.RandomRotation;
-import gr.iti.mklab.visual.utilities.Result;
+import gr.iti.mklab.visual.utilities.TopKCollector;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
-import com.aliasi.util.BoundedPriorityQueue;
 import com.sleepycat.bind.tuple.IntegerBinding;
 import com.sleepycat.bind.tuple.TupleBinding;
 import com.sleepycat.bind.tuple.TupleInput;
@@ -23,6 +27,7 @@ import com.sleepycat.je.DiskOrderedCursorConfig;
 import com.sleepycat.je.ForwardCursor;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
 
 /**
  * This class implements indexing and exhaustive approximate nearest neighbor search using Product
@@ -59,10 +64,14 @@ public class PQ extends AbstractSearchStructure {
 	protected int numProductCentroids;
 
 	/**
-	 * The product-quantization codes for all vectors are stored in this list if the code can fit in the byte
-	 * range.
+	 * The product-quantization codes for all vectors are stored here if the code can fit in the byte range,
+	 * either in a list or packed for fast-scan (see {@link #setUseFastScan(boolean)}). The codes (as well as
+	 * {@link #pqShortCodes}) are allocated with a capacity of maxNumVectors codes and are thus never
+	 * reallocated, so searches can read the first {@link #loadCounter} codes while new codes are appended.
+	 * Searches read the {@link #loadCounter} first and this holder once afterwards, so that they see a single
+	 * layout that contains all the codes they scan, even if the layout is changed meanwhile.
 	 */
-	private TByteArrayList pqByteCodes;
+	private volatile ByteCodes byteCodes;
 
 	/**
 	 * The product-quantization codes for all vector are stored in this list if the code cannot fit in the
@@ -81,10 +90,28 @@ public class PQ extends AbstractSearchStructure {
 	protected double[][][] productQuantizer;
 
 	/**
-	 * The supported transformation types.
+	 * The symmetric distance tables of the sub-quantizers, used in SDC search. Built when the product
+	 * quantizer is loaded (see {@link #computeSymmetricDistanceTables(double[][][])}), unless they would take
+	 * more than {@link #MAX_SDC_TABLES_BYTES}, in which case the symmetric distances are computed from the
+	 * centroids.
+	 */
+	private float[][] sdcTables;
+
+	/**
+	 * The maximum total size in bytes of the symmetric distance tables. The tables take
+	 * numSubVectors*numProductCentroids*numProductCentroids floats, e.g. 16MB for 64 sub-quantizers with 256
+	 * centroids each (the largest typical configuration), but already 32MB for 8 sub-quantizers with 1024
+	 * centroids each, so they are not built for such configurations.
+	 */
+	public static final long MAX_SDC_TABLES_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 * The supported transformation types. A LearnedRotation is an orthogonal transformation that is learned
+	 * jointly with the product quantizer to minimize the quantization distortion (Optimized Product
+	 * Quantization), see {@link LearnedRotation}.
 	 */
 	public enum TransformationType {
-		None, RandomRotation, RandomPermutation
+		None, RandomRotation, RandomPermutation, LearnedRotation
 	}
 
 	/**
@@ -98,7 +125,8 @@ public class PQ extends AbstractSearchStructure {
 	private RandomPermutation rp;
 
 	/**
-	 * This object is used for applying random rotation prior to product quantization.
+	 * This object is used for applying random or learned rotation prior to product quantization. It is null if
+	 * no rotation is applied.
 	 */
 	private RandomRotation rr;
 
@@ -113,6 +141,119 @@ public class PQ extends AbstractSearchStructure {
 	 */
 	public final boolean useDiskOrderedCursor = false;
 
+	/**
+	 * The number of sub-quantizers after which an ADC distance computation checks whether it can still beat
+	 * the distance of the current k-th nearest neighbor (see {@link #computeScanOrder(double[][], boolean)}).
+	 */
+	public static final int EARLY_ABANDON_INTERVAL = 4;
+
+	/**
+	 * Whether ADC search sums the lookup table entries of the sub-quantizers in decreasing order of the
+	 * variance of their per-query table, instead of their natural order. Summing the most discriminative
+	 * sub-quantizers first makes early abandoning more likely, at the cost of a per-query sort and of
+	 * (floating point) rounding differences in the computed distances.
+	 */
+	private boolean reorderSubQuantizers = false;
+
+	/**
+	 * Enables or disables the reordering of sub-quantizers in ADC search (see {@link #reorderSubQuantizers}).
+	 * 
+	 * @param reorderSubQuantizers
+	 */
+	public void setReorderSubQuantizers(boolean reorderSubQuantizers) {
+		this.reorderSubQuantizers = reorderSubQuantizers;
+		searchSettingsChanged();
+	}
+
+	/**
+	 * The ways in which ADC search can use the cores of the shared search pool (see {@link #getSearchPool()}).
+	 */
+	public enum ScanParallelism {
+		/**
+		 * Each query is scanned sequentially on the caller thread.
+		 */
+		NONE,
+		/**
+		 * The codes are split in blocks of {@link PQ#SCAN_BLOCK_BYTES} that are scanned by all the workers of
+		 * the pool, each into its own collector, so that a single query uses all cores (lowest latency).
+		 */
+		WITHIN_QUERY,
+		/**
+		 * Each query is scanned sequentially and the queries of a batch (see
+		 * {@link PQ#computeNearestNeighbors(int, double[][])}) are scanned in parallel, one per worker of the
+		 * pool (highest throughput).
+		 */
+		ACROSS_QUERIES
+	}
+
+	/**
+	 * The approximate size in bytes of the blocks of codes that are scanned by a single task in
+	 * {@link ScanParallelism#WITHIN_QUERY} mode, chosen so that a block fits in the L2 cache of a core.
+	 */
+	public static final int SCAN_BLOCK_BYTES = 64 * 1024;
+
+	/**
+	 * How ADC search is parallelized, sequential by default.
+	 */
+	private ScanParallelism scanParallelism = ScanParallelism.NONE;
+
+	/**
+	 * The minimum number of indexed vectors for which a query is scanned in parallel in
+	 * {@link ScanParallelism#WITHIN_QUERY} mode. Smaller indices are scanned sequentially, since the cost of
+	 * forking would dominate.
+	 */
+	private int parallelismThreshold = 100000;
+
+	/**
+	 * Sets how ADC search is parallelized.
+	 * 
+	 * @param scanParallelism
+	 */
+	public void setScanParallelism(ScanParallelism scanParallelism) {
+		this.scanParallelism = scanParallelism;
+	}
+
+	/**
+	 * Sets the minimum number of indexed vectors for which a query is scanned in parallel.
+	 * 
+	 * @param parallelismThreshold
+	 */
+	public void setParallelismThreshold(int parallelismThreshold) {
+		this.parallelismThreshold = parallelismThreshold;
+	}
+
+	/**
+	 * Enables or disables fast-scan. When enabled, the in-memory codes are packed in 4 bits per sub-vector
+	 * and scanned with quantized lookup tables (see {@link FastScanCodes}), which halves their memory and
+	 * makes ADC search faster. Only possible when numProductCentroids is 16. The codes that are already loaded
+	 * in memory are converted to the new layout, the persistent index is not affected. Indexing waits while
+	 * the codes are converted, searches keep scanning the old layout.
+	 * 
+	 * @param useFastScan
+	 * @throws Exception
+	 *             If fast-scan is enabled and the sub-quantizers do not have 16 centroids
+	 */
+	public synchronized void setUseFastScan(boolean useFastScan) throws Exception {
+		if (useFastScan && numProductCentroids != 16) {
+			throw new Exception("Fast-scan requires sub-quantizers with 16 centroids!");
+		}
+		ByteCodes byteCodes = this.byteCodes;
+		if (useFastScan && byteCodes != null && byteCodes.packedCodes == null) {
+			FastScanCodes packedCodes = new FastScanCodes(numSubVectors, maxNumVectors);
+			for (int i = 0; i < byteCodes.pqByteCodes.size() / numSubVectors; i++) {
+				packedCodes.add(byteCodes.pqByteCodes.toArray(i * numSubVectors, numSubVectors));
+			}
+			this.byteCodes = new ByteCodes(null, packedCodes);
+		} else if (!useFastScan && byteCodes != null && byteCodes.packedCodes != null) {
+			TByteArrayList pqByteCodes = new TByteArrayList(maxNumVectors * numSubVectors);
+			for (int i = 0; i < byteCodes.packedCodes.size(); i++) {
+				pqByteCodes.add(byteCodes.packedCodes.getByteCode(i));
+			}
+			this.byteCodes = new ByteCodes(pqByteCodes, null);
+		}
+		searchSettingsChanged();
+	}
+
 	/**
 	 * Advanced constructor.
 	 * 
@@ -137,13 +278,18 @@ public class PQ extends AbstractSearchStructure {
 	 * @param loadIndexInMemory
 	 *            Whether to load the index in memory, we can avoid loading the index in memory when we only
 	 *            want to perform indexing
+	 * @param cacheSize
+	 *            the size of the cache in Megabytes
+	 * @param numLoadThreads
+	 *            The number of threads used for loading the persistent index in memory
 	 * @throws Exception
 	 */
 	public PQ(int vectorLength, int maxNumVectors, boolean readOnly, String BDBEnvHome, int numSubVectors,
 			int numProductCentroids, TransformationType transformation, boolean countSizeOnLoad,
-			int loadCounter, boolean loadIndexInMemory, long cacheSize) throws Exception {
+			int loadCounter, boolean loadIndexInMemory, long cacheSize, int numLoadThreads) throws Exception {
 		super(vectorLength, maxNumVectors, readOnly, countSizeOnLoad, loadCounter, loadIndexInMemory,
 				cacheSize);
+		setNumLoadThreads(numLoadThreads);
 		this.numSubVectors = numSubVectors;
 		if (vectorLength % numSubVectors > 0) {
 			throw new Exception("The given number of subvectors is not valid!");
@@ -173,6 +319,42 @@ public class PQ extends AbstractSearchStructure {
 		}
 	}
 
+	/**
+	 * Advanced constructor that loads the persistent index with one thread per available processor.
+	 * 
+	 * @param vectorLength
+	 *            The dimensionality of the VLAD vectors being indexed
+	 * @param maxNumVectors
+	 *            The maximum allowable size (number of vectors) of the index
+	 * @param readOnly
+	 *            If true the persistent store will opened only for read access (allows multiple opens)
+	 * @param BDBEnvHome
+	 *            The BDB environment home directory
+	 * @param numSubVectors
+	 *            The number of subvectors
+	 * @param numProductCentroids
+	 *            The number of centroids used to quantize each sub-vector
+	 * @param transformation
+	 *            The type of transformation to perform on each vector
+	 * @param countSizeOnLoad
+	 *            Whether the load counter will be initialized by the size of the persistent store
+	 * @param loadCounter
+	 *            The initial value of the load counter
+	 * @param loadIndexInMemory
+	 *            Whether to load the index in memory, we can avoid loading the index in memory when we only
+	 *            want to perform indexing
+	 * @param cacheSize
+	 *            the size of the cache in Megabytes
+	 * @throws Exception
+	 */
+	public PQ(int vectorLength, int maxNumVectors, boolean readOnly, String BDBEnvHome, int numSubVectors,
+			int numProductCentroids, TransformationType transformation, boolean countSizeOnLoad,
+			int loadCounter, boolean loadIndexInMemory, long cacheSize) throws Exception {
+		this(vectorLength, maxNumVectors, readOnly, BDBEnvHome, numSubVectors, numProductCentroids,
+				transformation, countSizeOnLoad, loadCounter, loadIndexInMemory, cacheSize,
+				Runtime.getRuntime().availableProcessors());
+	}
+
 	/**
 	 * Simple constructor.
 	 * 
@@ -200,6 +382,25 @@ public class PQ extends AbstractSearchStructure {
 				transformation, true, 0, true, cacheSize);
 	}
 
+	/**
+	 * Load the rotation that was learned along with the product quantizer from the given file (see
+	 * {@link LearnedRotation}). Only used with the {@link TransformationType#LearnedRotation} transformation
+	 * and should be called before {@link #loadProductQuantizer(String)}.
+	 * 
+	 * @param filename
+	 *            Full path to the file containing the rotation matrix
+	 * @throws Exception
+	 */
+	public void loadRotation(String filename) throws Exception {
+		if (transformation != TransformationType.LearnedRotation) {
+			throw new Exception("The index does not use a learned rotation!");
+		}
+		if (productQuantizer != null) {
+			throw new Exception("The rotation should be loaded before the product quantizer!");
+		}
+		rr = LearnedRotation.loadFromFile(filename, vectorLength);
+	}
+
 	/**
 	 * Load a product quantizer from the given file.
 	 * 
@@ -208,6 +409,9 @@ public class PQ extends AbstractSearchStructure {
 	 * @throws Exception
 	 */
 	public void loadProductQuantizer(String filename) throws Exception {
+		if (transformation == TransformationType.LearnedRotation && rr == null) {
+			throw new Exception("The learned rotation should be loaded before the product quantizer!");
+		}
 		productQuantizer = new double[numSubVectors][numProductCentroids][subVectorLength];
 		BufferedReader in = new BufferedReader(new FileReader(new File(filename)));
 		for (int i = 0; i < numSubVectors; i++) {
@@ -220,6 +424,12 @@ public class PQ extends AbstractSearchStructure {
 			}
 		}
 		in.close();
+		long sdcTablesBytes = 4L * numSubVectors * numProductCentroids * numProductCentroids;
+		if (sdcTablesBytes <= MAX_SDC_TABLES_BYTES) {
+			sdcTables = computeSymmetricDistanceTables(productQuantizer);
+			System.out.println("Symmetric distance tables take " + sdcTablesBytes / 1024 + " KB");
+		}
+		searchSettingsChanged();
 	}
 
 	/**
@@ -233,8 +443,35 @@ public class PQ extends AbstractSearchStructure {
 		if (vector.length != vectorLength) {
 			throw new Exception("The dimensionality of the vector is wrong!");
 		}
+		appendCode(loadCounter, computePQCode(vector), null);
+	}
+
+	@Override
+	protected void indexVectorsInternal(int firstIid, final double[][] vectors, Transaction txn)
+			throws Exception {
+		// encode the vectors in parallel and append the codes in internal id order
+		final int[][] pqCodes = new int[vectors.length][];
+		processInParallel(vectors.length, new VectorTask() {
+			public void process(int index) {
+				pqCodes[index] = computePQCode(vectors[index]);
+			}
+		});
+		for (int i = 0; i < vectors.length; i++) {
+			appendCode(firstIid + i, pqCodes[i], txn);
+		}
+	}
+
+	/**
+	 * Transforms the given vector into a PQ code by assigning each sub-vector to the nearest centroid of the
+	 * respective sub-quantizer (after applying the random transformation if needed).
+	 * 
+	 * @param vector
+	 *            The vector
+	 * @return The indices of the nearest centroids of the sub-quantizers
+	 */
+	private int[] computePQCode(double[] vector) {
 		// apply a random transformation if needed
-		if (transformation == TransformationType.RandomRotation) {
+		if (rr != null) {
 			vector = rr.rotate(vector);
 		} else if (transformation == TransformationType.RandomPermutation) {
 			vector = rp.permute(vector);
@@ -250,31 +487,49 @@ public class PQ extends AbstractSearchStructure {
 			// assign the sub-vector to the nearest centroid of the respective sub-quantizer
 			pqCode[i] = computeNearestProductIndex(subvector, i);
 		}
+		return pqCode;
+	}
 
+	/**
+	 * Appends the ram-based (if loaded) and the disk-based index with the given code. The code is appended at
+	 * the end of the ram-based index, so this method should be called in internal id order.
+	 * 
+	 * @param iid
+	 *            The internal id of the vector
+	 * @param pqCode
+	 *            The indices of the nearest centroids of the sub-quantizers
+	 * @param txn
+	 *            The transaction or null
+	 */
+	private void appendCode(int iid, int[] pqCode, Transaction txn) {
 		if (numProductCentroids <= 256) {
 			byte[] pqByteCode = transformToByte(pqCode);
 			if (loadIndexInMemory) { // append the ram-based index
-				pqByteCodes.add(pqByteCode);
+				ByteCodes byteCodes = this.byteCodes;
+				if (byteCodes.packedCodes != null) {
+					byteCodes.packedCodes.add(pqByteCode);
+				} else {
+					byteCodes.pqByteCodes.add(pqByteCode);
+				}
 			}
-			appendPersistentIndex(pqByteCode); // append the disk-based index
+			appendPersistentIndex(iid, pqByteCode, txn); // append the disk-based index
 		} else {
 			short[] pqShortCode = transformToShort(pqCode);
 			if (loadIndexInMemory) { // append the ram-based index
 				pqShortCodes.add(pqShortCode);
 			}
-			appendPersistentIndex(pqShortCode); // append the disk-based index
+			appendPersistentIndex(iid, pqShortCode, txn); // append the disk-based index
 		}
-
 	}
 
-	protected BoundedPriorityQueue<Result> computeNearestNeighborsInternal(int k, double[] query)
+	protected TopKCollector computeNearestNeighborsInternal(int k, double[] query, IidFilter filter)
 			throws Exception {
-		return computeKnnADC(k, query);
+		return computeKnnADC(k, query, filter);
 	}
 
-	protected BoundedPriorityQueue<Result> computeNearestNeighborsInternal(int k, int internalId)
+	protected TopKCollector computeNearestNeighborsInternal(int k, int internalId, IidFilter filter)
 			throws Exception {
-		return computeKnnSDC(k, internalId);
+		return computeKnnSDC(k, internalId, filter);
 	}
 
 	/**
@@ -284,14 +539,14 @@ public class PQ extends AbstractSearchStructure {
 	 *            The number of nearest neighbors to be returned
 	 * @param qVector
 	 *            The query vector
-	 * @return A bounded priority queue of Result objects, which contains the k nearest neighbors along with
-	 *         their iids and distances from the query vector, ordered by lowest distance.
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @return A collector of the k nearest neighbors along with their iids and distances from the query
+	 *         vector.
 	 */
-	private BoundedPriorityQueue<Result> computeKnnADC(int k, double[] qVector) {
-		BoundedPriorityQueue<Result> nn = new BoundedPriorityQueue<Result>(new Result(), k);
-
+	private TopKCollector computeKnnADC(int k, double[] qVector, IidFilter filter) {
 		// apply a random transformation if needed
-		if (transformation == TransformationType.RandomRotation) {
+		if (rr != null) {
 			qVector = rr.rotate(qVector);
 		} else if (transformation == TransformationType.RandomPermutation) {
 			qVector = rp.permute(qVector);
@@ -299,26 +554,263 @@ public class PQ extends AbstractSearchStructure {
 
 		// compute the lookup table
 		double[][] lookUpTable = computeLookupADC(qVector);
+		// the distance computation of a vector is abandoned as soon as its partial sum plus the smallest
+		// possible contribution of the remaining sub-quantizers exceeds the distance of the k-th neighbor
+		int[] order = computeScanOrder(lookUpTable, reorderSubQuantizers);
+		double[] remainingMinima = computeRemainingMinima(lookUpTable, order);
+
+		int numVectors = loadCounter; // vectors indexed after this point are not searched
+		ByteCodes byteCodes = this.byteCodes; // read after the load counter, see byteCodes
+		FastScanCodes.QuantizedLookupTable quantizedTable = null;
+		if (byteCodes != null && byteCodes.packedCodes != null) {
+			quantizedTable = FastScanCodes.quantize(lookUpTable);
+		}
+		if (scanParallelism == ScanParallelism.WITHIN_QUERY && numVectors >= parallelismThreshold) {
+			// blocks are a multiple of the fast-scan block size, so that tasks never share a packed block
+			int codeBytes = numProductCentroids <= 256 ? 1 : 2;
+			int blockSize = Math.max(SCAN_BLOCK_BYTES / (numSubVectors * codeBytes), 1);
+			blockSize = (blockSize + FastScanCodes.BLOCK_SIZE - 1) / FastScanCodes.BLOCK_SIZE
+					* FastScanCodes.BLOCK_SIZE;
+			int numBlocks = (numVectors + blockSize - 1) / blockSize;
+			ForkJoinPool pool = getSearchPool();
+			int blocksPerTask = Math.max(numBlocks / (4 * pool.getParallelism()), 1);
+			return pool.invoke(new BlockScanTask(k, lookUpTable, order, remainingMinima, byteCodes,
+					quantizedTable, filter, numVectors, blockSize, blocksPerTask, 0, numBlocks));
+		}
+		TopKCollector nn = new TopKCollector(k);
+		scanCodesADC(lookUpTable, order, remainingMinima, byteCodes, quantizedTable, filter, 0, numVectors,
+				nn);
+		return nn;
+	}
 
-		for (int i = 0; i < loadCounter; i++) {
+	/**
+	 * Scans the vectors with internal ids from (inclusive) to to (exclusive) using the given lookup table and
+	 * offers each of them to the given collector.
+	 * 
+	 * @param lookUpTable
+	 *            The lookup table of the query
+	 * @param order
+	 *            The summation order of the sub-quantizers, see {@link #computeScanOrder(double[][], boolean)}
+	 * @param remainingMinima
+	 *            The lower bounds of the remaining contribution of the sub-quantizers, see
+	 *            {@link #computeRemainingMinima(double[][], int[])}
+	 * @param byteCodes
+	 *            The byte codes as read by the query, null if short codes are used
+	 * @param quantizedTable
+	 *            The quantized lookup table, only used with fast-scan
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @param from
+	 *            The first internal id to scan
+	 * @param to
+	 *            The internal id after the last one to scan
+	 * @param nn
+	 *            The collector of the nearest neighbors found so far
+	 */
+	private void scanCodesADC(double[][] lookUpTable, int[] order, double[] remainingMinima,
+			ByteCodes byteCodes, FastScanCodes.QuantizedLookupTable quantizedTable, IidFilter filter,
+			int from, int to, TopKCollector nn) {
+		long[] deleted = tombstones; // null if no vector has been deleted
+		FastScanCodes packedCodes = byteCodes != null ? byteCodes.packedCodes : null;
+		TByteArrayList pqByteCodes = byteCodes != null ? byteCodes.pqByteCodes : null;
+		if (packedCodes != null) {
+			// only the vectors that may enter the queue according to their quantized distance are re-scored,
+			// only the accepted vectors of each block are considered and the blocks without any accepted
+			// vector are not scanned at all
+			int[] quantizedDistances = new int[FastScanCodes.BLOCK_SIZE];
+			int threshold = quantizedTable.threshold(nn.threshold());
+			int i = nextCandidate(filter, from, to);
+			while (i < to) {
+				int block = i / FastScanCodes.BLOCK_SIZE;
+				packedCodes.scanBlock(quantizedTable, block, quantizedDistances);
+				int blockStart = block * FastScanCodes.BLOCK_SIZE;
+				int blockEnd = Math.min(to, blockStart + FastScanCodes.BLOCK_SIZE);
+				for (; i < blockEnd; i = nextCandidate(filter, i + 1, to)) {
+					if (quantizedDistances[i - blockStart] > threshold || isDeleted(deleted, i)) {
+						continue;
+					}
+					if (nn.offer(i, packedCodes.computeDistance(lookUpTable, i))) {
+						threshold = quantizedTable.threshold(nn.threshold());
+					}
+				}
+			}
+			return;
+		}
+
+		for (int i = nextCandidate(filter, from, to); i < to; i = nextCandidate(filter, i + 1, to)) {
+			double threshold = nn.threshold();
 			double l2distance = 0;
 			int codeStart = i * numSubVectors;
-			if (numProductCentroids <= 256) {
-				byte[] pqCode = pqByteCodes.toArray(codeStart, numSubVectors);
-				for (int j = 0; j < pqCode.length; j++) {
-					// plus 128 because byte range is -128..127
-					l2distance += lookUpTable[j][pqCode[j] + 128];
-				}
-			} else {
-				short[] pqCode = pqShortCodes.toArray(codeStart, numSubVectors);
-				for (int j = 0; j < pqCode.length; j++) {
-					l2distance += lookUpTable[j][pqCode[j]];
+			int j = 0;
+			while (j < numSubVectors && l2distance + remainingMinima[j] <= threshold) {
+				int end = Math.min(j + EARLY_ABANDON_INTERVAL, numSubVectors);
+				if (numProductCentroids <= 256) {
+					for (; j < end; j++) {
+						// plus 128 because byte range is -128..127
+						l2distance += lookUpTable[order[j]][pqByteCodes.getQuick(codeStart + order[j]) + 128];
+					}
+				} else {
+					for (; j < end; j++) {
+						l2distance += lookUpTable[order[j]][pqShortCodes.getQuick(codeStart + order[j])];
+					}
 				}
 			}
-			nn.offer(new Result(i, l2distance));
+			if (j == numSubVectors && !isDeleted(deleted, i)) {
+				nn.offer(i, l2distance);
+			}
 		}
+	}
 
-		return nn;
+	/**
+	 * This task scans a range of the blocks of codes of a query. Ranges of more than blocksPerTask blocks
+	 * are split in two halves that are scanned in parallel, each into its own collector, and the two
+	 * collectors are merged when both halves complete. Since collectors break distance ties by internal id,
+	 * the merged results do not depend on the order in which the tasks complete.
+	 */
+	private class BlockScanTask extends RecursiveTask<TopKCollector> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int k;
+		private final double[][] lookUpTable;
+		private final int[] order;
+		private final double[] remainingMinima;
+		private final ByteCodes byteCodes;
+		private final FastScanCodes.QuantizedLookupTable quantizedTable;
+		private final IidFilter filter;
+		private final int numVectors;
+		private final int blockSize;
+		private final int blocksPerTask;
+		private final int fromBlock;
+		private final int toBlock;
+
+		BlockScanTask(int k, double[][] lookUpTable, int[] order, double[] remainingMinima,
+				ByteCodes byteCodes, FastScanCodes.QuantizedLookupTable quantizedTable, IidFilter filter,
+				int numVectors, int blockSize, int blocksPerTask, int fromBlock, int toBlock) {
+			this.k = k;
+			this.lookUpTable = lookUpTable;
+			this.order = order;
+			this.remainingMinima = remainingMinima;
+			this.byteCodes = byteCodes;
+			this.quantizedTable = quantizedTable;
+			this.filter = filter;
+			this.numVectors = numVectors;
+			this.blockSize = blockSize;
+			this.blocksPerTask = blocksPerTask;
+			this.fromBlock = fromBlock;
+			this.toBlock = toBlock;
+		}
+
+		@Override
+		protected TopKCollector compute() {
+			if (toBlock - fromBlock > blocksPerTask) {
+				int mid = (fromBlock + toBlock) >>> 1;
+				BlockScanTask left = new BlockScanTask(k, lookUpTable, order, remainingMinima, byteCodes,
+						quantizedTable, filter, numVectors, blockSize, blocksPerTask, fromBlock, mid);
+				BlockScanTask right = new BlockScanTask(k, lookUpTable, order, remainingMinima, byteCodes,
+						quantizedTable, filter, numVectors, blockSize, blocksPerTask, mid, toBlock);
+				left.fork();
+				TopKCollector nn = right.compute();
+				nn.offerAll(left.join()); // merge the two per-worker collectors
+				return nn;
+			}
+			TopKCollector nn = new TopKCollector(k);
+			int to = (int) Math.min((long) toBlock * blockSize, numVectors);
+			scanCodesADC(lookUpTable, order, remainingMinima, byteCodes, quantizedTable, filter,
+					fromBlock * blockSize, to, nn);
+			return nn;
+		}
+	}
+
+	/**
+	 * Computes the k nearest neighbors of each of the given query vectors. In
+	 * {@link ScanParallelism#ACROSS_QUERIES} mode the queries are scanned in parallel by the workers of the
+	 * search pool, otherwise they are processed one after the other.
+	 * 
+	 * @param k
+	 *            The number of nearest neighbors to be returned for each query
+	 * @param queryVectors
+	 *            The query vectors
+	 * @return One collector of the k nearest neighbors per query
+	 * @throws Exception
+	 */
+	protected TopKCollector[] computeNearestNeighborsInternal(int k, double[][] queryVectors)
+			throws Exception {
+		if (scanParallelism != ScanParallelism.ACROSS_QUERIES || queryVectors.length < 2) {
+			return super.computeNearestNeighborsInternal(k, queryVectors);
+		}
+		TopKCollector[] nns = new TopKCollector[queryVectors.length];
+		getSearchPool().invoke(new QueryScanTask(k, queryVectors, nns, 0, queryVectors.length));
+		return nns;
+	}
+
+	/**
+	 * This task scans a range of the queries of a batch, splitting it in halves until each task scans a
+	 * single query sequentially.
+	 */
+	private class QueryScanTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int k;
+		private final double[][] queryVectors;
+		private final TopKCollector[] nns;
+		private final int from;
+		private final int to;
+
+		QueryScanTask(int k, double[][] queryVectors, TopKCollector[] nns, int from, int to) {
+			this.k = k;
+			this.queryVectors = queryVectors;
+			this.nns = nns;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new QueryScanTask(k, queryVectors, nns, from, mid),
+						new QueryScanTask(k, queryVectors, nns, mid, to));
+				return;
+			}
+			nns[from] = computeKnnADC(k, queryVectors[from], null);
+		}
+	}
+
+	/**
+	 * Computes the ADC distances between the given query vector and the vectors with the given internal ids.
+	 * This allows using a PQ index with finer codes (e.g. more sub-vectors) than those of an {@link IVFPQ}
+	 * index for re-ranking its candidates.
+	 *
+	 * @param queryVector
+	 *            The query vector
+	 * @param iids
+	 *            The internal ids of the vectors
+	 * @return The distances, in the order of the internal ids
+	 * @throws Exception
+	 *             If the index is not loaded in memory
+	 */
+	public double[] computeDistances(double[] queryVector, int[] iids) throws Exception {
+		if (!loadIndexInMemory) {
+			throw new Exception("Cannot compute distances because the index is not loaded in memory!");
+		}
+		double[] qVector = queryVector;
+		// apply a random transformation if needed
+		if (rr != null) {
+			qVector = rr.rotate(qVector);
+		} else if (transformation == TransformationType.RandomPermutation) {
+			qVector = rp.permute(qVector);
+		}
+		double[][] lookUpTable = computeLookupADC(qVector);
+
+		double[] distances = new double[iids.length];
+		for (int i = 0; i < iids.length; i++) {
+			for (int j = 0; j < numSubVectors; j++) {
+				distances[i] += lookUpTable[j][getSubCode(iids[i], j)];
+			}
+		}
+		return distances;
 	}
 
 	/**
@@ -328,32 +820,68 @@ public class PQ extends AbstractSearchStructure {
 	 *            The number of nearest neighbors to be returned
 	 * @param iid
 	 *            The internal id of the query vector (code actually)
-	 * @return A bounded priority queue of Result objects, which contains the k nearest neighbors along with
-	 *         their iids and distances from the query vector, ordered by lowest distance.
+	 * @param filter
+	 *            The filter of the internal ids to search or null to search all vectors
+	 * @return A collector of the k nearest neighbors along with their iids and distances from the query
+	 *         vector.
 	 */
-	private BoundedPriorityQueue<Result> computeKnnSDC(int k, int iid) {
-		BoundedPriorityQueue<Result> nn = new BoundedPriorityQueue<Result>(new Result(), k);
+	private TopKCollector computeKnnSDC(int k, int iid, IidFilter filter) {
+		TopKCollector nn = new TopKCollector(k);
 		// find the product quantization code of the vector with the given id, i.e the centroid indices
 		int[] pqCodeQuery = new int[numSubVectors];
 		for (int m = 0; m < numSubVectors; m++) {
-			if (pqByteCodes != null) {
-				pqCodeQuery[m] = pqByteCodes.getQuick(iid * numSubVectors + m);
-			} else {
-				pqCodeQuery[m] = pqShortCodes.getQuick(iid * numSubVectors + m);
+			pqCodeQuery[m] = getSubCode(iid, m);
+		}
+
+		int numVectors = loadCounter; // vectors indexed after this point are not searched
+		long[] deleted = tombstones; // null if no vector has been deleted
+		ByteCodes byteCodes = this.byteCodes; // read after the load counter, see byteCodes
+		FastScanCodes packedCodes = byteCodes != null ? byteCodes.packedCodes : null;
+		TByteArrayList pqByteCodes = byteCodes != null ? byteCodes.pqByteCodes : null;
+		if (sdcTables != null) {
+			// the row of each symmetric distance table that corresponds to the centroid of the query
+			int[] rowStart = new int[numSubVectors];
+			for (int m = 0; m < numSubVectors; m++) {
+				rowStart[m] = pqCodeQuery[m] * numProductCentroids;
+			}
+			for (int i = nextCandidate(filter, 0, numVectors); i < numVectors; i = nextCandidate(filter, i + 1,
+					numVectors)) {
+				double threshold = nn.threshold();
+				double l2distance = 0;
+				int codeStart = i * numSubVectors;
+				int m = 0;
+				while (m < numSubVectors && l2distance <= threshold) {
+					int end = Math.min(m + EARLY_ABANDON_INTERVAL, numSubVectors);
+					if (packedCodes != null) {
+						for (; m < end; m++) {
+							l2distance += sdcTables[m][rowStart[m] + packedCodes.getCode(i, m)];
+						}
+					} else if (numProductCentroids <= 256) {
+						for (; m < end; m++) {
+							// plus 128 because byte range is -128..127
+							int pqSubCode = pqByteCodes.getQuick(codeStart + m) + 128;
+							l2distance += sdcTables[m][rowStart[m] + pqSubCode];
+						}
+					} else {
+						for (; m < end; m++) {
+							l2distance += sdcTables[m][rowStart[m] + pqShortCodes.getQuick(codeStart + m)];
+						}
+					}
+				}
+				if (m == numSubVectors && !isDeleted(deleted, i)) {
+					nn.offer(i, l2distance);
+				}
 			}
+			return nn;
 		}
 
 		double lowest = Double.MAX_VALUE;
-		for (int i = 0; i < loadCounter; i++) {
+		for (int i = nextCandidate(filter, 0, numVectors); i < numVectors; i = nextCandidate(filter, i + 1,
+				numVectors)) {
 			double l2distance = 0;
 			for (int j = 0; j < numSubVectors; j++) {
-				int pqSubCode = pqByteCodes.getQuick(i * numSubVectors + j);
+				int pqSubCode = getSubCode(i, j);
 				int pqSubCodeQuery = pqCodeQuery[j];
-				if (pqByteCodes != null) {
-					// plus 128 because byte range is -128..127
-					pqSubCode += 128;
-					pqSubCodeQuery += 128;
-				}
 				for (int m = 0; m < subVectorLength; m++) {
 					l2distance += (productQuantizer[j][pqSubCode][m] - productQuantizer[j][pqSubCodeQuery][m])
 							* (productQuantizer[j][pqSubCode][m] - productQuantizer[j][pqSubCodeQuery][m]);
@@ -365,14 +893,35 @@ public class PQ extends AbstractSearchStructure {
 					break; // break the outer loop
 				}
 			}
-			nn.offer(new Result(i, l2distance));
-			if (i >= k) {
-				lowest = nn.last().getDistance();
+			if (!isDeleted(deleted, i) && nn.offer(i, l2distance)) {
+				lowest = nn.threshold();
 			}
 		}
 		return nn;
 	}
 
+	/**
+	 * Returns the index of the centroid of the given sub-quantizer that is assigned to the vector with the
+	 * given internal id, from the in-memory codes.
+	 * 
+	 * @param iid
+	 *            The internal id of the vector
+	 * @param subQuantizerIndex
+	 *            The index of the sub-quantizer
+	 * @return
+	 */
+	private int getSubCode(int iid, int subQuantizerIndex) {
+		ByteCodes byteCodes = this.byteCodes;
+		if (byteCodes != null && byteCodes.packedCodes != null) {
+			return byteCodes.packedCodes.getCode(iid, subQuantizerIndex);
+		} else if (byteCodes != null) {
+			// plus 128 because byte range is -128..127
+			return byteCodes.pqByteCodes.getQuick(iid * numSubVectors + subQuantizerIndex) + 128;
+		} else {
+			return pqShortCodes.getQuick(iid * numSubVectors + subQuantizerIndex);
+		}
+	}
+
 	/**
 	 * Takes a query vector as input and returns a lookup table containing the distance between each
 	 * sub-vector from each centroid of the corresponding sub-quantizer. The calculation of this look-up table
@@ -436,10 +985,23 @@ public class PQ extends AbstractSearchStructure {
 	private void loadIndexInMemory() throws Exception {
 		// create the memory objects with the appropriate initial size
 		if (numProductCentroids <= 256) {
-			pqByteCodes = new TByteArrayList(maxNumVectors * numSubVectors);
+			byteCodes = new ByteCodes(new TByteArrayList(maxNumVectors * numSubVectors), null);
 		} else {
 			pqShortCodes = new TShortArrayList(maxNumVectors * numSubVectors);
 		}
+		if (numLoadThreads > 1 && !useDiskOrderedCursor) {
+			loadIndexInMemoryInParallel();
+		} else {
+			loadIndexInMemorySequentially();
+		}
+	}
+
+	/**
+	 * Loads the persistent index in memory by iterating over its records with a single cursor.
+	 * 
+	 * @throws Exception
+	 */
+	private void loadIndexInMemorySequentially() throws Exception {
 		long start = System.currentTimeMillis();
 		System.out.println("Loading persistent index in memory.");
 
@@ -454,9 +1016,10 @@ public class PQ extends AbstractSearchStructure {
 			cursor = iidToPqDB.openCursor(null, null);
 		}
 
+		int toIid = getLoadRangeEnd(iidToPqDB);
 		int counter = 0;
 		while (cursor.getNext(foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS
-				&& counter < maxNumVectors) {
+				&& counter < toIid) {
 			TupleInput input = TupleBinding.entryToInput(foundData);
 
 			if (numProductCentroids <= 256) {
@@ -464,7 +1027,7 @@ public class PQ extends AbstractSearchStructure {
 				for (int i = 0; i < numSubVectors; i++) {
 					code[i] = input.readByte();
 				}
-				pqByteCodes.add(code); // update ram based index
+				byteCodes.pqByteCodes.add(code); // update ram based index
 			} else {
 				short[] code = new short[numSubVectors];
 				for (int i = 0; i < numSubVectors; i++) {
@@ -482,13 +1045,73 @@ public class PQ extends AbstractSearchStructure {
 		System.out.println(counter + " vectors loaded in " + (end - start) + " ms!");
 	}
 
+	/**
+	 * Loads the persistent index in memory using {@link #numLoadThreads} threads. The list of codes is first
+	 * extended to its final size and each thread then reads a contiguous range of internal ids directly into
+	 * its place, so no intermediate copies of the codes are made. If the internal ids of the persistent index
+	 * turn out not to be consecutive, the codes are discarded and the index is loaded sequentially instead.
+	 * 
+	 * @throws Exception
+	 */
+	private void loadIndexInMemoryInParallel() throws Exception {
+		long start = System.currentTimeMillis();
+		System.out.println("Loading persistent index in memory with " + numLoadThreads + " threads.");
+
+		int toIid = getLoadRangeEnd(iidToPqDB);
+		if (numProductCentroids <= 256) {
+			byteCodes.pqByteCodes.fill(0, toIid * numSubVectors, (byte) 0);
+		} else {
+			pqShortCodes.fill(0, toIid * numSubVectors, (short) 0);
+		}
+		RecordConsumer[] consumers = new RecordConsumer[numLoadThreads];
+		for (int p = 0; p < numLoadThreads; p++) {
+			consumers[p] = new RecordConsumer() {
+				private final byte[] byteCode = new byte[numSubVectors];
+				private final short[] shortCode = new short[numSubVectors];
+
+				public void consume(int iid, TupleInput input) {
+					if (numProductCentroids <= 256) {
+						for (int i = 0; i < numSubVectors; i++) {
+							byteCode[i] = input.readByte();
+						}
+						byteCodes.pqByteCodes.set(iid * numSubVectors, byteCode);
+					} else {
+						for (int i = 0; i < numSubVectors; i++) {
+							shortCode[i] = input.readShort();
+						}
+						pqShortCodes.set(iid * numSubVectors, shortCode);
+					}
+				}
+			};
+		}
+		int counter = readRecordsInParallel(iidToPqDB, 0, toIid, consumers);
+		if (counter != toIid) {
+			System.out.println("The internal ids of the persistent index are not consecutive, "
+					+ "loading it with a single thread.");
+			// discard the codes read so far
+			if (numProductCentroids <= 256) {
+				byteCodes = new ByteCodes(new TByteArrayList(maxNumVectors * numSubVectors), null);
+			} else {
+				pqShortCodes = new TShortArrayList(maxNumVectors * numSubVectors);
+			}
+			loadIndexInMemorySequentially();
+			return;
+		}
+		long end = System.currentTimeMillis();
+		System.out.println(counter + " vectors loaded in " + (end - start) + " ms!");
+	}
+
 	/**
 	 * Appends the persistent index with the given (byte) code.
 	 * 
+	 * @param iid
+	 *            The internal id of the vector
 	 * @param code
 	 *            The code
+	 * @param txn
+	 *            The transaction or null
 	 */
-	private void appendPersistentIndex(byte[] code) {
+	private void appendPersistentIndex(int iid, byte[] code, Transaction txn) {
 		// write id and code
 		TupleOutput output = new TupleOutput();
 		for (int i = 0; i < numSubVectors; i++) {
@@ -497,17 +1120,21 @@ public class PQ extends AbstractSearchStructure {
 		DatabaseEntry data = new DatabaseEntry();
 		TupleBinding.outputToEntry(output, data);
 		DatabaseEntry key = new DatabaseEntry();
-		IntegerBinding.intToEntry(loadCounter, key);
-		iidToPqDB.put(null, key, data);
+		IntegerBinding.intToEntry(iid, key);
+		iidToPqDB.put(txn, key, data);
 	}
 
 	/**
 	 * Appends the persistent index with the given (short) code.
 	 * 
+	 * @param iid
+	 *            The internal id of the vector
 	 * @param code
 	 *            The code
+	 * @param txn
+	 *            The transaction or null
 	 */
-	private void appendPersistentIndex(short[] code) {
+	private void appendPersistentIndex(int iid, short[] code, Transaction txn) {
 		// write id and code
 		TupleOutput output = new TupleOutput();
 		for (int i = 0; i < numSubVectors; i++) {
@@ -516,14 +1143,19 @@ public class PQ extends AbstractSearchStructure {
 		DatabaseEntry data = new DatabaseEntry();
 		TupleBinding.outputToEntry(output, data);
 		DatabaseEntry key = new DatabaseEntry();
-		IntegerBinding.intToEntry(loadCounter, key);
-		iidToPqDB.put(null, key, data);
+		IntegerBinding.intToEntry(iid, key);
+		iidToPqDB.put(txn, key, data);
 	}
 
 	@Override
 	public void outputIndexingTimesInternal() {
 	}
 
+	@Override
+	protected void deleteRecordsInternal(int firstIid, int count) {
+		deleteRecords(iidToPqDB, firstIid, firstIid + count);
+	}
+
 	@Override
 	public void closeInternal() {
 		iidToPqDB.close();
@@ -534,13 +1166,119 @@ public class PQ extends AbstractSearchStructure {
 		for (int i = 0; i < 10; i++) {
 			output += i + " : ";
 			for (int j = 0; j < numSubVectors; j++) {
-				output += pqByteCodes.getQuick(i * numSubVectors + j) + " ";
+				output += byteCodes.pqByteCodes.getQuick(i * numSubVectors + j) + " ";
 			}
 			output += "\n";
 		}
 		return output;
 	}
 
+	/**
+	 * Computes the symmetric distance tables of the given product quantizer, i.e. the squared distance
+	 * between each pair of centroids of each sub-quantizer. The 1st dimension of the returned array goes from
+	 * 1..numSubquantizers and indexes the sub-quantizers. The 2nd dimension goes from
+	 * 1..numProductCentroids*numProductCentroids and the distance between the centroids a and b is stored at
+	 * position a*numProductCentroids+b. After this calculation, the symmetric distance between two codes can
+	 * be computed with one lookup per sub-quantizer.
+	 * 
+	 * @param productQuantizer
+	 *            The product quantizer
+	 * @return The symmetric distance tables
+	 */
+	public static float[][] computeSymmetricDistanceTables(double[][][] productQuantizer) {
+		int numSubquantizers = productQuantizer.length;
+		int numCentroids = productQuantizer[0].length;
+		int subVectorLength = productQuantizer[0][0].length;
+		float[][] tables = new float[numSubquantizers][numCentroids * numCentroids];
+		for (int m = 0; m < numSubquantizers; m++) {
+			for (int a = 0; a < numCentroids; a++) {
+				for (int b = a + 1; b < numCentroids; b++) {
+					double distance = 0;
+					for (int k = 0; k < subVectorLength; k++) {
+						distance += (productQuantizer[m][a][k] - productQuantizer[m][b][k])
+								* (productQuantizer[m][a][k] - productQuantizer[m][b][k]);
+					}
+					tables[m][a * numCentroids + b] = (float) distance;
+					tables[m][b * numCentroids + a] = (float) distance;
+				}
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * Returns the order in which the sub-quantizers are summed during an ADC distance computation with the
+	 * given lookup table. This is either the natural order or the decreasing order of the variance of the
+	 * table of each sub-quantizer, so that the sub-quantizers that contribute the most to the differences
+	 * between distances come first.
+	 * 
+	 * @param lookUpTable
+	 *            The lookup table of a query
+	 * @param byVariance
+	 *            Whether to order the sub-quantizers by decreasing variance
+	 * @return The indices of the sub-quantizers in summation order
+	 */
+	static int[] computeScanOrder(double[][] lookUpTable, boolean byVariance) {
+		int numSubquantizers = lookUpTable.length;
+		int[] order = new int[numSubquantizers];
+		for (int m = 0; m < numSubquantizers; m++) {
+			order[m] = m;
+		}
+		if (!byVariance) {
+			return order;
+		}
+		final double[] variances = new double[numSubquantizers];
+		for (int m = 0; m < numSubquantizers; m++) {
+			double sum = 0;
+			double sumOfSquares = 0;
+			for (int j = 0; j < lookUpTable[m].length; j++) {
+				sum += lookUpTable[m][j];
+				sumOfSquares += lookUpTable[m][j] * lookUpTable[m][j];
+			}
+			double mean = sum / lookUpTable[m].length;
+			variances[m] = sumOfSquares / lookUpTable[m].length - mean * mean;
+		}
+		Integer[] sorted = new Integer[numSubquantizers];
+		for (int m = 0; m < numSubquantizers; m++) {
+			sorted[m] = m;
+		}
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(variances[b], variances[a]);
+			}
+		});
+		for (int m = 0; m < numSubquantizers; m++) {
+			order[m] = sorted[m];
+		}
+		return order;
+	}
+
+	/**
+	 * Computes a lower bound of the contribution of the sub-quantizers that have not been summed yet at
+	 * each step of an ADC distance computation. Position j of the returned array holds the sum of the
+	 * smallest entries of the tables of the sub-quantizers order[j], order[j+1], ..., so a distance
+	 * computation whose partial sum after j sub-quantizers plus this bound exceeds the distance of the
+	 * current k-th neighbor can be abandoned. The bound also holds for tables with negative entries (e.g.
+	 * those obtained from precomputed terms in {@link IVFPQ}).
+	 * 
+	 * @param lookUpTable
+	 *            The lookup table of a query
+	 * @param order
+	 *            The summation order of the sub-quantizers
+	 * @return An array of length numSubquantizers+1 whose last element is 0
+	 */
+	static double[] computeRemainingMinima(double[][] lookUpTable, int[] order) {
+		double[] remainingMinima = new double[order.length + 1];
+		for (int j = order.length - 1; j >= 0; j--) {
+			double min = Double.MAX_VALUE;
+			for (double entry : lookUpTable[order[j]]) {
+				min = Math.min(min, entry);
+			}
+			remainingMinima[j] = remainingMinima[j + 1] + min;
+		}
+		return remainingMinima;
+	}
+
 	public static short[] transformToShort(int[] code) {
 		short[] shortCode = new short[code.length];
 		for (int i = 0; i < code.length; i++) {
@@ -557,4 +1295,25 @@ public class PQ extends AbstractSearchStructure {
 		return byteCode;
 	}
 
+	/**
+	 * The byte codes of all vectors in one of two layouts, published together (see {@link PQ#byteCodes}).
+	 */
+	private static class ByteCodes {
+
+		/**
+		 * The codes as a list, null if the codes are packed.
+		 */
+		private final TByteArrayList pqByteCodes;
+
+		/**
+		 * The packed codes, null if the codes are not packed.
+		 */
+		private final FastScanCodes packedCodes;
+
+		private ByteCodes(TByteArrayList pqByteCodes, FastScanCodes packedCodes) {
+			this.pqByteCodes = pqByteCodes;
+			this.packedCodes = packedCodes;
+		}
+	}
+
 }
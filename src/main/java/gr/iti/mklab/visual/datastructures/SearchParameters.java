@@ -0,0 +1,156 @@
+package gr.iti.mklab.visual.datastructures;
+
+/**
+ * This class holds the parameters of a single {@link IVFPQ} query, allowing different callers of the same
+ * index to make different trade-offs between latency and recall (see
+ * {@link IVFPQ#computeNearestNeighbors(int, double[], SearchParameters)}). Probing of the lists that are
+ * nearest to the query stops as soon as any of the following limits is reached:
+ * <ul>
+ * <li>{@link #w} lists have been scanned</li>
+ * <li>{@link #maxCodes} codes have been scanned</li>
+ * <li>{@link #timeBudget} milliseconds have elapsed since the start of the query</li>
+ * <li>the squared distance between the query and the centroid of the next list exceeds
+ * {@link #probeMargin} times the distance of the current k-th nearest neighbor</li>
+ * </ul>
+ * At least one list is always scanned. By default, only the w limit is active and it is taken from the index
+ * (see {@link IVFPQ#setW(int)}). Optionally, the search can be restricted to the vectors accepted by an
+ * {@link IidFilter}.
+ *
+ * @author Eleftherios Spyromitros-Xioufis
+ *
+ */
+public class SearchParameters {
+
+	/**
+	 * The maximum number of lists to be visited, or 0 to use the w of the index.
+	 */
+	private int w = 0;
+
+	/**
+	 * The maximum number of codes to be scanned. The scan of the last visited list is truncated when this
+	 * number is reached.
+	 */
+	private int maxCodes = Integer.MAX_VALUE;
+
+	/**
+	 * The maximum wall-clock time of the query in milliseconds. It is checked before visiting each list, so
+	 * the scan of the list that is being visited when the budget runs out is completed.
+	 */
+	private long timeBudget = Long.MAX_VALUE;
+
+	/**
+	 * The ratio between the (squared) distance of the next list's centroid from the query and the distance of
+	 * the current k-th nearest neighbor above which probing stops. Larger values visit more lists.
+	 */
+	private double probeMargin = Double.POSITIVE_INFINITY;
+
+	/**
+	 * The filter of the internal ids to search or null to search all vectors. Note that with a selective
+	 * filter the w nearest lists may contain fewer than k accepted vectors.
+	 */
+	private IidFilter filter;
+
+	/**
+	 * Creates parameters with only the w limit active, taken from the index.
+	 */
+	public SearchParameters() {
+	}
+
+	/**
+	 * Creates a copy of the given parameters.
+	 *
+	 * @param other
+	 *            The parameters to copy
+	 */
+	public SearchParameters(SearchParameters other) {
+		this.w = other.w;
+		this.maxCodes = other.maxCodes;
+		this.timeBudget = other.timeBudget;
+		this.probeMargin = other.probeMargin;
+		this.filter = other.filter;
+	}
+
+	public int getW() {
+		return w;
+	}
+
+	public void setW(int w) {
+		this.w = w;
+	}
+
+	public int getMaxCodes() {
+		return maxCodes;
+	}
+
+	public void setMaxCodes(int maxCodes) {
+		this.maxCodes = maxCodes;
+	}
+
+	public long getTimeBudget() {
+		return timeBudget;
+	}
+
+	/**
+	 * Sets the maximum wall-clock time of the query.
+	 *
+	 * @param timeBudget
+	 *            The time budget in milliseconds
+	 */
+	public void setTimeBudget(long timeBudget) {
+		this.timeBudget = timeBudget;
+	}
+
+	public double getProbeMargin() {
+		return probeMargin;
+	}
+
+	public void setProbeMargin(double probeMargin) {
+		this.probeMargin = probeMargin;
+	}
+
+	public IidFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Restricts the search to the vectors accepted by the given filter.
+	 *
+	 * @param filter
+	 *            The filter or null to search all vectors
+	 */
+	public void setFilter(IidFilter filter) {
+		this.filter = filter;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = w;
+		h = 31 * h + maxCodes;
+		h = 31 * h + (int) (timeBudget ^ (timeBudget >>> 32));
+		long bits = Double.doubleToLongBits(probeMargin);
+		h = 31 * h + (int) (bits ^ (bits >>> 32));
+		return 31 * h + System.identityHashCode(filter);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SearchParameters)) {
+			return false;
+		}
+		SearchParameters other = (SearchParameters) obj;
+		return w == other.w && maxCodes == other.maxCodes && timeBudget == other.timeBudget
+				&& Double.compare(probeMargin, other.probeMargin) == 0 && filter == other.filter;
+	}
+
+	/**
+	 * Returns whether probing can stop before w lists have been scanned, i.e. whether any limit other than w
+	 * is set.
+	 *
+	 * @return
+	 */
+	public boolean isAdaptive() {
+		return maxCodes < Integer.MAX_VALUE || timeBudget < Long.MAX_VALUE
+				|| probeMargin < Double.POSITIVE_INFINITY;
+	}
+
+}
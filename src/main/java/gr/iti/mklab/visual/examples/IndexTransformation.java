@@ -48,7 +48,8 @@ public class IndexTransformation {
 	 *            [8] k_s parameter (centroids of each subquantizer) of the product quantizer.
 	 * @param args
 	 *            [9] the type of transformation to perform on the vectors prior to product quantization, one
-	 *            of no/rr/rp.
+	 *            of no/rr/rp/opq. In case of opq, the learned rotation is loaded from the file that
+	 *            ProductQuantizationLearning writes next to the product quantizer file (_rotation suffix).
 	 *            <p>
 	 *            The following parameters are used only if ivfpq transformation is selected.
 	 *            </p>
@@ -89,13 +90,19 @@ public class IndexTransformation {
 				transformation = PQ.TransformationType.RandomRotation;
 			} else if (transformationTypeString.equals("rp")) {
 				transformation = PQ.TransformationType.RandomPermutation;
+			} else if (transformationTypeString.equals("opq")) {
+				transformation = PQ.TransformationType.LearnedRotation;
 			} else {
 				throw new Exception("Wrong transformation type given!");
 			}
+			String rotationFile = productQuantizerFile.replace(".csv", "_rotation.csv");
 			if (transfomationType.equals("pq")) {// pq
 				// === re-index to an PQ index ===
 				toIndex = new PQ(targetVectorLength, maxNumIndexedVectors, false, targetIndexFolder, m, k_s,
 						transformation, 512);
+				if (transformation == PQ.TransformationType.LearnedRotation) {
+					((PQ) toIndex).loadRotation(rotationFile);
+				}
 				((PQ) toIndex).loadProductQuantizer(productQuantizerFile);
 			} else { // ivfpq
 				String coarseQuantizerFile = args[10];
@@ -104,21 +111,32 @@ public class IndexTransformation {
 				toIndex = new IVFPQ(targetVectorLength, maxNumIndexedVectors, false, targetIndexFolder, m,
 						k_s, transformation, k_c, 512);
 				((IVFPQ) toIndex).loadCoarseQuantizer(coarseQuantizerFile);
+				if (transformation == PQ.TransformationType.LearnedRotation) {
+					((IVFPQ) toIndex).loadRotation(rotationFile);
+				}
 				((IVFPQ) toIndex).loadProductQuantizer(productQuantizerFile);
 			}
 		} else {
 			throw new Exception("Unsupported index transformation type!");
 		}
 
-		for (int i = 0; i < maxNumIndexedVectors; i++) {
-			String id = fromIndex.getId(i);
-			double[] vector = fromIndex.getVector(i);
-			// truncate vector to the target length and re-normalize
-			double[] newVector = Arrays.copyOf(vector, targetVectorLength);
-			if (newVector.length < vector.length) {
-				Normalization.normalizeL2(newVector);
+		// re-index in batches to avoid the per-vector indexing overhead
+		int batchSize = 10000;
+		for (int batchStart = 0; batchStart < maxNumIndexedVectors; batchStart += batchSize) {
+			int batchEnd = Math.min(batchStart + batchSize, maxNumIndexedVectors);
+			String[] ids = new String[batchEnd - batchStart];
+			double[][] newVectors = new double[batchEnd - batchStart][];
+			for (int i = batchStart; i < batchEnd; i++) {
+				double[] vector = fromIndex.getVector(i);
+				// truncate vector to the target length and re-normalize
+				double[] newVector = Arrays.copyOf(vector, targetVectorLength);
+				if (newVector.length < vector.length) {
+					Normalization.normalizeL2(newVector);
+				}
+				ids[i - batchStart] = fromIndex.getId(i);
+				newVectors[i - batchStart] = newVector;
 			}
-			toIndex.indexVector(id, newVector);
+			toIndex.indexVectors(ids, newVectors);
 		}
 
 		toIndex.close();
@@ -2,6 +2,7 @@ package gr.iti.mklab.visual.quantization;
 
 import gr.iti.mklab.visual.aggregation.AbstractFeatureAggregator;
 import gr.iti.mklab.visual.datastructures.Linear;
+import gr.iti.mklab.visual.utilities.LearnedRotation;
 import gr.iti.mklab.visual.utilities.RandomPermutation;
 import gr.iti.mklab.visual.utilities.RandomRotation;
 
@@ -16,6 +17,8 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
 
 import weka.clusterers.AbstractClusterer;
 import weka.clusterers.SimpleKMeans;
@@ -27,7 +30,9 @@ import weka.core.SelectedTag;
 
 /**
  * This class is used to learn a Product Quantizer from a set of vectors that are stored in a {@link Linear}
- * index (BDB store).
+ * index (BDB store). When Optimized Product Quantization (opq) is selected, an orthogonal rotation of the
+ * vectors is learned jointly with the sub-quantizers and written next to the product quantizer file, with the
+ * _rotation suffix (see {@link LearnedRotation}).
  * 
  * @author Eleftherios Spyromitros-Xioufis
  * 
@@ -37,6 +42,9 @@ public class ProductQuantizationLearning {
 	/** the number of k-means executions for each sub-quantizer */
 	public static int numKmeansRepeats = 1;
 
+	/** the maximum number of k-means iterations for each sub-quantizer in each opq iteration */
+	public static int numOpqKmeansIterations = 10;
+
 	/**
 	 * The various options can be given from the command line.
 	 * 
@@ -55,7 +63,9 @@ public class ProductQuantizationLearning {
 				"the number of subvectors to be created (d should be divided exactly by m)");
 		options.addOption("c", true, "the number of centroids of each subquantizer: e.g. 256 or 1024");
 		options.addOption("transform", true,
-				"the type of transformation to apply before learning the product quantizer");
+				"the transformation to apply before learning the product quantizer: no, rr, rp or opq");
+		options.addOption("opqiter", true,
+				"the number of rotation updates when the opq transformation is selected (default 10)");
 		options.addOption("samples", true, "how many learning vectors to use: e.g. 20000");
 		options.addOption("i", true, "the maximum number of clustering iterations (default 100).");
 		options.addOption("s", true, "the number of parallel execution slots to use in k-means clustering");
@@ -97,6 +107,9 @@ public class ProductQuantizationLearning {
 		} else if (cmd.getOptionValue("transform").equals("rp")) {
 			System.out.println("Random Permutation will be applied");
 			transformationType = "rp";
+		} else if (cmd.getOptionValue("transform").equals("opq")) {
+			System.out.println("A rotation will be learned (Optimized Product Quantization)");
+			transformationType = "opq";
 		} else {
 			throw new Exception("Unsupported transformation type!");
 		}
@@ -126,6 +139,14 @@ public class ProductQuantizationLearning {
 			System.out.println("Using " + numVectors + " samples for learning.");
 		}
 
+		int opqIterations = 10;
+		if (cmd.getOptionValue("opqiter") != null) {
+			opqIterations = Integer.parseInt(cmd.getOptionValue("opqiter"));
+		}
+		if (transformationType.equals("opq")) {
+			System.out.println("Using " + opqIterations + " rotation updates.");
+		}
+
 		int maxIterations;
 		if (cmd.getOptionValue("i") == null) {
 			System.out.println("Using the default 100 max iterations.");
@@ -192,6 +213,8 @@ public class ProductQuantizationLearning {
 			subquantizersFilename += "_rr";
 		} else if (transformationType.equals("rp")) {
 			subquantizersFilename += "_rp";
+		} else if (transformationType.equals("opq")) {
+			subquantizersFilename += "_opq";
 		}
 		if (ivf) {
 			subquantizersFilename += "_ivf_c" + numCoarseCentroids;
@@ -209,6 +232,22 @@ public class ProductQuantizationLearning {
 			res = new ResidualVectorComputation(coarseQuantizer, vectorLength, numCoarseCentroids);
 		}
 
+		// in case of opq, learn the rotation and then learn the final sub-quantizers on the rotated vectors
+		LearnedRotation lr = null;
+		if (transformationType.equals("opq")) {
+			double[][] trainingVectors = new double[numVectors][];
+			for (int i = 0; i < numVectors; i++) {
+				trainingVectors[i] = vectors.getVector(i);
+				if (ivf) {
+					trainingVectors[i] = res.ComputeResidualVector(trainingVectors[i]);
+				}
+			}
+			lr = learnRotation(trainingVectors, m, numProductCentroids, opqIterations, numSlots);
+			String rotationFilename = subquantizersFilename.replace(".csv", "_rotation.csv");
+			lr.saveToFile(rotationFilename);
+			System.out.println("Rotation saved in: " + rotationFilename);
+		}
+
 		// create one Instances object for learning each sub-quantizer
 		Instances[] datasets = new Instances[m];
 		// creating weka attributes
@@ -233,6 +272,8 @@ public class ProductQuantizationLearning {
 				vector = rr.rotate(vector);
 			} else if (transformationType.equals("rp")) {
 				vector = rp.permute(vector);
+			} else if (transformationType.equals("opq")) {
+				vector = lr.rotate(vector);
 			}
 			// load each sub-vector into the corresponding Instances object
 			for (int j = 0; j < m; j++) {
@@ -306,4 +347,80 @@ public class ProductQuantizationLearning {
 		out.close();
 
 	}
+
+	/**
+	 * Learns an orthogonal rotation R that minimizes the distortion of a product quantizer on the rotated
+	 * vectors xR (non-parametric Optimized Product Quantization). Starting from the identity, each iteration
+	 * learns the sub-quantizers on the currently rotated vectors with k-means (at most
+	 * {@link #numOpqKmeansIterations} iterations), reconstructs each rotated vector from its nearest
+	 * centroids and updates R by solving the orthogonal Procrustes problem between the original vectors and
+	 * the reconstructions (see {@link LearnedRotation#solveProcrustes(DenseMatrix64F, DenseMatrix64F)}).
+	 * 
+	 * @param vectors
+	 *            The training vectors (residuals in case of ivf)
+	 * @param m
+	 *            The number of sub-quantizers
+	 * @param numProductCentroids
+	 *            The number of centroids of each sub-quantizer
+	 * @param numIterations
+	 *            The number of rotation updates
+	 * @param numSlots
+	 *            The number of parallel execution slots to use in k-means clustering
+	 * @return The learned rotation
+	 * @throws Exception
+	 */
+	public static LearnedRotation learnRotation(double[][] vectors, int m, int numProductCentroids,
+			int numIterations, int numSlots) throws Exception {
+		int numVectors = vectors.length;
+		int vectorLength = vectors[0].length;
+		int subVectorLength = vectorLength / m;
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (int i = 0; i < subVectorLength; i++) {
+			attributes.add(new Attribute("feature" + (i + 1)));
+		}
+
+		DenseMatrix64F original = new DenseMatrix64F(vectors);
+		DenseMatrix64F rotation = CommonOps.identity(vectorLength);
+		DenseMatrix64F rotated = new DenseMatrix64F(numVectors, vectorLength);
+		DenseMatrix64F reconstructed = new DenseMatrix64F(numVectors, vectorLength);
+		for (int iter = 0; iter < numIterations; iter++) {
+			CommonOps.mult(original, rotation, rotated);
+			double distortion = 0;
+			for (int j = 0; j < m; j++) {
+				int subVectorStart = j * subVectorLength;
+				Instances dataset = new Instances("subvectors", attributes, numVectors);
+				for (int i = 0; i < numVectors; i++) {
+					double[] subVector = new double[subVectorLength];
+					for (int k = 0; k < subVectorLength; k++) {
+						subVector[k] = rotated.get(i, subVectorStart + k);
+					}
+					dataset.add(new DenseInstance(1.0, subVector));
+				}
+				SimpleKMeans clusterer = new SimpleKMeans();
+				clusterer.setInitializationMethod(new SelectedTag(SimpleKMeans.KMEANS_PLUS_PLUS,
+						SimpleKMeans.TAGS_SELECTION));
+				clusterer.setNumExecutionSlots(numSlots);
+				clusterer.setNumClusters(numProductCentroids);
+				clusterer.setMaxIterations(numOpqKmeansIterations);
+				clusterer.setPreserveInstancesOrder(true);
+				clusterer.setSeed(1);
+				clusterer.buildClusterer(dataset);
+				// replace each rotated sub-vector by its nearest centroid
+				int[] assignments = clusterer.getAssignments();
+				Instances clusterCentroids = clusterer.getClusterCentroids();
+				for (int i = 0; i < numVectors; i++) {
+					Instance centroid = clusterCentroids.instance(assignments[i]);
+					for (int k = 0; k < subVectorLength; k++) {
+						double value = centroid.value(k);
+						double diff = rotated.get(i, subVectorStart + k) - value;
+						distortion += diff * diff;
+						reconstructed.set(i, subVectorStart + k, value);
+					}
+				}
+			}
+			System.out.println("OPQ iteration " + (iter + 1) + " distortion: " + distortion / numVectors);
+			rotation = LearnedRotation.solveProcrustes(original, reconstructed);
+		}
+		return new LearnedRotation(rotation);
+	}
 }
@@ -0,0 +1,253 @@
+package gr.iti.mklab.visual.utilities;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of {@link Answer} objects with least-recently-used eviction, used by the index structures
+ * to serve repeated queries (by id or by vector) without searching the index again. Each cached answer is
+ * stamped with the version of the index at the time it was computed (e.g. the number of indexed vectors) and
+ * is discarded when it is requested for a different version, so appending to the index invalidates all the
+ * answers computed before. The cache also keeps hit/miss statistics. All methods are thread-safe.<br>
+ * Note that cached answers are shared between callers and should not be modified.
+ *
+ * @author Eleftherios Spyromitros-Xioufis
+ */
+public class AnswerCache {
+
+	/**
+	 * The maximum number of cached answers.
+	 */
+	private final int capacity;
+
+	/**
+	 * The cached answers in access order (least recently used first).
+	 */
+	private final LinkedHashMap<Key, Entry> entries;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	/**
+	 * The number of cached answers that were found but discarded because they were computed for an older
+	 * version of the index.
+	 */
+	private long invalidations;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *            The maximum number of cached answers
+	 */
+	public AnswerCache(int capacity) {
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				if (size() > AnswerCache.this.capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the answer cached for the given key if it was computed for the given version of the index,
+	 * otherwise null.
+	 *
+	 * @param key
+	 *            The key of the query
+	 * @param version
+	 *            The current version of the index
+	 * @return
+	 */
+	public synchronized Answer get(Key key, long version) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.version != version) {
+			entries.remove(key);
+			invalidations++;
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.answer;
+	}
+
+	/**
+	 * Caches the given answer, computed for the given version of the index, evicting the least recently used
+	 * answer if the cache is full.
+	 *
+	 * @param key
+	 *            The key of the query
+	 * @param version
+	 *            The version of the index that the answer was computed for
+	 * @param answer
+	 *            The answer
+	 */
+	public synchronized void put(Key key, long version, Answer answer) {
+		entries.put(key, new Entry(version, answer));
+	}
+
+	/**
+	 * Removes all cached answers. Should be called when a setting that affects the answers of the index
+	 * (e.g. the number of visited lists) is changed.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * Returns the fraction of requests that were served from the cache.
+	 *
+	 * @return
+	 */
+	public synchronized double getHitRate() {
+		long requests = hits + misses;
+		return requests == 0 ? 0 : (double) hits / requests;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "size: " + entries.size() + "/" + capacity + " hits: " + hits + " misses: " + misses
+				+ " hit rate: " + getHitRate() + " evictions: " + evictions + " invalidations: "
+				+ invalidations;
+	}
+
+	/**
+	 * A cached answer along with the version of the index it was computed for.
+	 */
+	private static class Entry {
+
+		private final long version;
+
+		private final Answer answer;
+
+		private Entry(long version, Answer answer) {
+			this.version = version;
+			this.answer = answer;
+		}
+	}
+
+	/**
+	 * The key of a cached answer. It consists of the id or the vector of the query, the number of requested
+	 * neighbors and optionally an object holding the search parameters of the query (which should implement
+	 * equals and hashCode). Query vectors are compared after quantization to single precision, so that
+	 * repeated queries match even if they are recomputed with small numerical differences.
+	 */
+	public static class Key {
+
+		private final String queryId;
+
+		private final float[] queryVector;
+
+		private final int k;
+
+		private final Object parameters;
+
+		private final int hash;
+
+		/**
+		 * Constructor for queries by id.
+		 *
+		 * @param queryId
+		 *            The id of the query vector
+		 * @param k
+		 *            The number of nearest neighbors
+		 * @param parameters
+		 *            The search parameters or null
+		 */
+		public Key(String queryId, int k, Object parameters) {
+			this(queryId, null, k, parameters);
+		}
+
+		/**
+		 * Constructor for queries by vector.
+		 *
+		 * @param queryVector
+		 *            The query vector
+		 * @param k
+		 *            The number of nearest neighbors
+		 * @param parameters
+		 *            The search parameters or null
+		 */
+		public Key(double[] queryVector, int k, Object parameters) {
+			this(null, quantize(queryVector), k, parameters);
+		}
+
+		private Key(String queryId, float[] queryVector, int k, Object parameters) {
+			this.queryId = queryId;
+			this.queryVector = queryVector;
+			this.k = k;
+			this.parameters = parameters;
+			int h = queryId != null ? queryId.hashCode() : Arrays.hashCode(queryVector);
+			h = 31 * h + k;
+			h = 31 * h + (parameters != null ? parameters.hashCode() : 0);
+			this.hash = h;
+		}
+
+		private static float[] quantize(double[] vector) {
+			float[] quantized = new float[vector.length];
+			for (int i = 0; i < vector.length; i++) {
+				quantized[i] = (float) vector[i];
+			}
+			return quantized;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && k == other.k
+					&& (queryId == null ? other.queryId == null : queryId.equals(other.queryId))
+					&& Arrays.equals(queryVector, other.queryVector)
+					&& (parameters == null ? other.parameters == null : parameters.equals(other.parameters));
+		}
+	}
+
+}
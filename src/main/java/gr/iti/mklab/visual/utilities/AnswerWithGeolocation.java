@@ -26,4 +26,12 @@ public class AnswerWithGeolocation extends Answer {
 		this.geolocationLookupTime = geolocationLookupTime;
 	}
 
+	public LatLng[] getGeolocations() {
+		return geolocations;
+	}
+
+	public long getGeolocationLookupTime() {
+		return geolocationLookupTime;
+	}
+
 }
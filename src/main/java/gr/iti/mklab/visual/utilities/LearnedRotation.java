@@ -0,0 +1,114 @@
+package gr.iti.mklab.visual.utilities;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.factory.DecompositionFactory;
+import org.ejml.factory.SingularValueDecomposition;
+import org.ejml.ops.CommonOps;
+
+/**
+ * This class can be used for applying an orthogonal transformation that is learned jointly with a product
+ * quantizer, as in Optimized Product Quantization (OPQ). The rotation is applied in the same way as a
+ * {@link RandomRotation}, i.e. a vector x is transformed into xR. It is learned by
+ * {@link gr.iti.mklab.visual.quantization.ProductQuantizationLearning} and stored in a text file with one
+ * comma separated row of the matrix per line.
+ * 
+ * @author Eleftherios Spyromitros-Xioufis
+ * 
+ */
+public class LearnedRotation extends RandomRotation {
+
+	/**
+	 * Constructor that uses the given orthogonal matrix as rotation matrix.
+	 * 
+	 * @param rotationMatrix
+	 *            A dim x dim orthogonal matrix
+	 */
+	public LearnedRotation(DenseMatrix64F rotationMatrix) {
+		super(rotationMatrix);
+	}
+
+	/**
+	 * Returns the orthogonal matrix R that minimizes ||XR - Y|| (orthogonal Procrustes problem). If X'Y =
+	 * USV' is the singular value decomposition of X'Y, then R = UV'. In OPQ, X contains the training vectors
+	 * and Y the reconstructions of the rotated training vectors by the product quantizer.
+	 * 
+	 * @param x
+	 *            An n x dim matrix with the original vectors
+	 * @param y
+	 *            An n x dim matrix with the target vectors
+	 * @return The dim x dim rotation matrix
+	 * @throws Exception
+	 */
+	public static DenseMatrix64F solveProcrustes(DenseMatrix64F x, DenseMatrix64F y) throws Exception {
+		int dim = x.numCols;
+		DenseMatrix64F xty = new DenseMatrix64F(dim, dim);
+		CommonOps.multTransA(x, y, xty);
+		SingularValueDecomposition<DenseMatrix64F> svd = DecompositionFactory.svd(dim, dim, true, true,
+				false);
+		if (!svd.decompose(xty)) {
+			throw new Exception("SVD failed!");
+		}
+		DenseMatrix64F u = svd.getU(null, false);
+		DenseMatrix64F v = svd.getV(null, false);
+		DenseMatrix64F rotation = new DenseMatrix64F(dim, dim);
+		CommonOps.multTransB(u, v, rotation);
+		return rotation;
+	}
+
+	/**
+	 * Loads a rotation matrix from the given file.
+	 * 
+	 * @param filename
+	 *            Full path to the file containing the rotation matrix
+	 * @param dim
+	 *            The dimensionality of the vectors
+	 * @return The rotation
+	 * @throws Exception
+	 */
+	public static LearnedRotation loadFromFile(String filename, int dim) throws Exception {
+		DenseMatrix64F rotationMatrix = new DenseMatrix64F(dim, dim);
+		BufferedReader in = new BufferedReader(new FileReader(new File(filename)));
+		for (int i = 0; i < dim; i++) {
+			String line = in.readLine();
+			if (line == null) {
+				in.close();
+				throw new Exception("The rotation file has fewer than " + dim + " rows!");
+			}
+			String[] rowString = line.split(",");
+			if (rowString.length != dim) {
+				in.close();
+				throw new Exception("Row " + (i + 1) + " of the rotation file does not have " + dim
+						+ " values!");
+			}
+			for (int j = 0; j < dim; j++) {
+				rotationMatrix.set(i, j, Double.parseDouble(rowString[j]));
+			}
+		}
+		in.close();
+		return new LearnedRotation(rotationMatrix);
+	}
+
+	/**
+	 * Writes the rotation matrix to the given file, one comma separated row per line.
+	 * 
+	 * @param filename
+	 *            Full path to the file
+	 * @throws Exception
+	 */
+	public void saveToFile(String filename) throws Exception {
+		BufferedWriter out = new BufferedWriter(new FileWriter(filename));
+		for (int i = 0; i < randomMatrix.numRows; i++) {
+			for (int j = 0; j < randomMatrix.numCols - 1; j++) {
+				out.write(randomMatrix.get(i, j) + ",");
+			}
+			out.write(randomMatrix.get(i, randomMatrix.numCols - 1) + "\n");
+		}
+		out.close();
+	}
+}
@@ -55,6 +55,21 @@ public class RandomPermutation {
 		return permuted;
 	}
 
+	/**
+	 * Applies the inverse of the random permutation to a vector.
+	 * 
+	 * @param vector
+	 *            The permuted vector
+	 * @return The vector before permutation
+	 */
+	public double[] inversePermute(double[] vector) {
+		double[] original = new double[vector.length];
+		for (int i = 0; i < vector.length; i++) {
+			original[randomlyPermutatedIndices[i]] = vector[i];
+		}
+		return original;
+	}
+
 	public static void main(String args[]) {
 		RandomPermutation rp = new RandomPermutation(1, 3);
 
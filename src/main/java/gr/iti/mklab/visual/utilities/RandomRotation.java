@@ -17,7 +17,7 @@ public class RandomRotation {
 	/**
 	 * This is the random rotation matrix.
 	 */
-	private DenseMatrix64F randomMatrix;
+	protected DenseMatrix64F randomMatrix;
 
 	/**
 	 * Constructor that initializes a random rotation matrix using the EJML library.
@@ -34,6 +34,17 @@ public class RandomRotation {
 		randomMatrix = RandomMatrices.createOrthogonal(dim, dim, rand);
 	}
 
+	/**
+	 * Constructor that uses the given orthogonal matrix as rotation matrix, e.g. a learned one (see
+	 * {@link LearnedRotation}).
+	 * 
+	 * @param rotationMatrix
+	 *            A dim x dim orthogonal matrix
+	 */
+	protected RandomRotation(DenseMatrix64F rotationMatrix) {
+		randomMatrix = rotationMatrix;
+	}
+
 	/**
 	 * Randomly rotates a vector using the random rotation matrix that was created in the constructor.
 	 * 
@@ -47,4 +58,19 @@ public class RandomRotation {
 		CommonOps.mult(original, randomMatrix, transformed);
 		return transformed.getData();
 	}
+
+	/**
+	 * Applies the inverse of the random rotation to a vector. Since the rotation matrix is orthogonal, its
+	 * inverse is its transpose.
+	 * 
+	 * @param vector
+	 *            The rotated vector
+	 * @return The vector before rotation
+	 */
+	public double[] inverseRotate(double[] vector) {
+		DenseMatrix64F transformed = new DenseMatrix64F(1, vector.length);
+		DenseMatrix64F rotated = DenseMatrix64F.wrap(1, vector.length, vector);
+		CommonOps.multTransB(rotated, randomMatrix, transformed);
+		return transformed.getData();
+	}
 }
@@ -0,0 +1,212 @@
+package gr.iti.mklab.visual.utilities;
+
+/**
+ * This class collects the k results with the smallest distances during k-nearest neighbor search. It is a
+ * binary max-heap (the worst of the collected results is at the root) over two parallel primitive arrays of
+ * ids and distances, so offering a candidate allocates no objects, and a candidate that is not better than
+ * the current k-th result is rejected with a single comparison (see {@link #threshold()}). Results with
+ * equal distances are ordered by id.
+ *
+ * @author Eleftherios Spyromitros-Xioufis
+ *
+ */
+public class TopKCollector {
+
+	/**
+	 * The maximum number of results.
+	 */
+	private final int k;
+
+	/**
+	 * The ids of the collected results, in heap order (or in increasing distance order after
+	 * {@link #sort()}).
+	 */
+	private final int[] ids;
+
+	/**
+	 * The distances of the collected results, in the same order as {@link #ids}.
+	 */
+	private final double[] distances;
+
+	/**
+	 * The number of collected results.
+	 */
+	private int size;
+
+	/**
+	 * Whether the results have been sorted. No more results can be offered after sorting.
+	 */
+	private boolean sorted;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param k
+	 *            The maximum number of results
+	 */
+	public TopKCollector(int k) {
+		this.k = k;
+		this.ids = new int[k];
+		this.distances = new double[k];
+	}
+
+	/**
+	 * Returns the distance that a candidate should beat in order to be collected, i.e. the distance of the
+	 * k-th result if k results have been collected and positive infinity otherwise. Can be used for early
+	 * termination of distance computations.
+	 *
+	 * @return
+	 */
+	public double threshold() {
+		if (size < k) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return k > 0 ? distances[0] : Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Offers a candidate result. The candidate is collected if less than k results have been collected or if
+	 * it is better than the worst collected result, which is then discarded.
+	 *
+	 * @param id
+	 *            The id of the candidate
+	 * @param distance
+	 *            The distance of the candidate
+	 * @return Whether the candidate was collected
+	 */
+	public boolean offer(int id, double distance) {
+		if (size < k) {
+			if (sorted) {
+				throw new IllegalStateException("Results cannot be offered after sorting!");
+			}
+			// append and sift up
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!greater(distance, id, distances[parent], ids[parent])) {
+					break;
+				}
+				ids[i] = ids[parent];
+				distances[i] = distances[parent];
+				i = parent;
+			}
+			ids[i] = id;
+			distances[i] = distance;
+			return true;
+		}
+		if (k == 0 || distance > distances[0] || !greater(distances[0], ids[0], distance, id)) {
+			return false;
+		}
+		if (sorted) {
+			throw new IllegalStateException("Results cannot be offered after sorting!");
+		}
+		siftDown(id, distance, size);
+		return true;
+	}
+
+	/**
+	 * Offers all the results collected by the given collector.
+	 *
+	 * @param other
+	 *            The collector
+	 */
+	public void offerAll(TopKCollector other) {
+		for (int i = 0; i < other.size; i++) {
+			offer(other.ids[i], other.distances[i]);
+		}
+	}
+
+	/**
+	 * Replaces the root of the heap of the first heapSize positions with the given result and restores the
+	 * heap property.
+	 */
+	private void siftDown(int id, double distance, int heapSize) {
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize
+					&& greater(distances[child + 1], ids[child + 1], distances[child], ids[child])) {
+				child++;
+			}
+			if (!greater(distances[child], ids[child], distance, id)) {
+				break;
+			}
+			ids[i] = ids[child];
+			distances[i] = distances[child];
+			i = child;
+		}
+		ids[i] = id;
+		distances[i] = distance;
+	}
+
+	/**
+	 * Returns whether the result (distance1, id1) is worse than the result (distance2, id2).
+	 */
+	private static boolean greater(double distance1, int id1, double distance2, int id2) {
+		return distance1 > distance2 || (distance1 == distance2 && id1 > id2);
+	}
+
+	/**
+	 * Sorts the collected results by increasing distance (in place, with heap sort). After sorting, the i-th
+	 * best result is given by {@link #getId(int)} and {@link #getDistance(int)} and no more results can be
+	 * offered.
+	 */
+	public void sort() {
+		if (sorted) {
+			return;
+		}
+		for (int end = size - 1; end > 0; end--) {
+			// move the worst remaining result to the end and restore the heap of the remaining results
+			int id = ids[end];
+			double distance = distances[end];
+			ids[end] = ids[0];
+			distances[end] = distances[0];
+			siftDown(id, distance, end);
+		}
+		sorted = true;
+	}
+
+	/**
+	 * Returns the number of collected results.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the maximum number of results.
+	 *
+	 * @return
+	 */
+	public int capacity() {
+		return k;
+	}
+
+	/**
+	 * Returns the id of the result at the given position (the i-th best result after {@link #sort()}).
+	 *
+	 * @param i
+	 *            The position
+	 * @return
+	 */
+	public int getId(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * Returns the distance of the result at the given position (the i-th best result after {@link #sort()}).
+	 *
+	 * @param i
+	 *            The position
+	 * @return
+	 */
+	public double getDistance(int i) {
+		return distances[i];
+	}
+
+}